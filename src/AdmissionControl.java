@@ -0,0 +1,130 @@
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <H1>Admission control</H1>
+ * Limits rate of new calls (SIP INVITE) per source ip address, so one
+ * misbehaving PBX or SIP scanner can not overload all nodes.<BR>
+ * <BR>
+ * Each source has token bucket which holds up to <I>admissionBurst</I>
+ * tokens and refills at <I>admissionRate</I> tokens per sec. Each INVITE
+ * takes one token, INVITE without token is rejected.<BR>
+ * <BR>
+ * Buckets are kept in fixed size table, split in stripes with own lock.
+ * Each stripe is LRU ordered and drops least recently used source when
+ * it is full, so table does not grow under flood from spoofed addresses.
+ * Dropped source starts again with full bucket.
+ * @author eigorde
+ *
+ */
+public class AdmissionControl {
+
+	/**
+	 * Number of stripes, power of 2.
+	 */
+	private static final int STRIPES = 16;
+
+	/**
+	 * Token bucket of one source.
+	 */
+	private static class TokenBucket {
+
+		/**
+		 * Tokens left, fractions included.
+		 */
+		double tokens;
+
+		/**
+		 * Time stamp of last refill, in nsec.
+		 */
+		long updatedAt;
+
+		TokenBucket(double tokens, long updatedAt) {
+			this.tokens = tokens;
+			this.updatedAt = updatedAt;
+		}
+	}
+
+	/**
+	 * LRU ordered bucket tables.
+	 */
+	private LinkedHashMap<InetAddress, TokenBucket>[] stripes;
+
+	/**
+	 * <H1>Admission control</H1><BR>
+	 * Create empty bucket table.
+	 * @param tableSize max. number of sources in table
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public AdmissionControl(int tableSize) {
+		final int stripeSize = Math.max(tableSize / STRIPES, 1);
+		stripes = new LinkedHashMap[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new LinkedHashMap<InetAddress, TokenBucket>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<InetAddress, TokenBucket> eldest) {
+					return size() > stripeSize;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Take token for new call from source.
+	 * @param source ip address of caller
+	 * @return <I>0</I> if call is admitted, otherwise time in sec. after which
+	 * source gets next token, eg. value for <I>Retry-After</I> header
+	 */
+	public long admit(InetAddress source) {
+
+		double rate = LoadBalancer.admissionRate;
+		if (rate <= 0) {
+			// Admission control is disabled.
+			return 0;
+		}
+		double burst = Math.max(LoadBalancer.admissionBurst, 1);
+
+		LinkedHashMap<InetAddress, TokenBucket> stripe = stripes[(source.hashCode() ^ (source.hashCode() >>> 16)) & (STRIPES - 1)];
+		long now = System.nanoTime();
+
+		synchronized (stripe) {
+			TokenBucket bucket = stripe.get(source);
+			if (bucket == null) {
+				bucket = new TokenBucket(burst, now);
+				stripe.put(source, bucket);
+			}
+			else {
+				/*
+				 * Refill for time since last INVITE.
+				 */
+				bucket.tokens = Math.min(burst, bucket.tokens + rate * (now - bucket.updatedAt) / 1e9);
+				bucket.updatedAt = now;
+			}
+
+			if (bucket.tokens >= 1) {
+				bucket.tokens = bucket.tokens - 1;
+				return 0;
+			}
+
+			return Math.max((long) Math.ceil((1 - bucket.tokens) / rate), 1);
+		}
+	}
+
+	/**
+	 * Get number of sources in table.
+	 * @return number of sources
+	 */
+	public int size() {
+		int size = 0;
+		for (LinkedHashMap<InetAddress, TokenBucket> stripe : stripes) {
+			synchronized (stripe) {
+				size = size + stripe.size();
+			}
+		}
+		return size;
+	}
+
+}
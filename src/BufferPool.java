@@ -0,0 +1,117 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <H1>Buffer pool</H1>
+ * Reusable byte arrays for SIP messages, in size classes of 2 KB, 8 KB and
+ * 64 KB. Most messages fit in small buffer, while large INVITE with
+ * multipart body still fits in biggest one, so memory stays low and
+ * nothing is truncated.<BR>
+ * <BR>
+ * Each class keeps limited number of free buffers. Request which finds free
+ * buffer is a hit, otherwise new buffer is allocated and it is a miss.
+ * Buffer is returned with <I>release()</I> when message is done, buffer of
+ * unknown size or over class limit is left to garbage collector.
+ * @author eigorde
+ *
+ */
+public class BufferPool {
+
+	/**
+	 * Buffer sizes of classes, in ascending order.
+	 */
+	static final int[] SIZES = { 2048, 8192, 65536 };
+
+	/**
+	 * Max. number of free buffers kept in each class.
+	 */
+	private static final int[] LIMITS = { 1024, 256, 32 };
+
+	/**
+	 * Free buffers of each class.
+	 */
+	private ArrayBlockingQueue<byte[]>[] free;
+
+	/**
+	 * Hit counter of each class.
+	 */
+	private LongAdder[] hits;
+
+	/**
+	 * Miss counter of each class.
+	 */
+	private LongAdder[] misses;
+
+	/**
+	 * Requests larger than biggest class.
+	 */
+	private LongAdder oversize;
+
+	/**
+	 * <H1>Buffer pool</H1><BR>
+	 * Empty pool, buffers are allocated on first use.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public BufferPool() {
+		free = new ArrayBlockingQueue[SIZES.length];
+		hits = new LongAdder[SIZES.length];
+		misses = new LongAdder[SIZES.length];
+		for (int i = 0; i < SIZES.length; i++) {
+			free[i] = new ArrayBlockingQueue<byte[]>(LIMITS[i]);
+			hits[i] = new LongAdder();
+			misses[i] = new LongAdder();
+		}
+		oversize = new LongAdder();
+	}
+
+	/**
+	 * Get buffer of at least given size.
+	 * @param size required size in bytes
+	 * @return buffer from smallest class which fits, or new buffer of exact size
+	 * if size is over biggest class
+	 */
+	public byte[] acquire(int size) {
+		for (int i = 0; i < SIZES.length; i++) {
+			if (size <= SIZES[i]) {
+				byte[] buffer = free[i].poll();
+				if (buffer != null) {
+					hits[i].increment();
+					return buffer;
+				}
+				misses[i].increment();
+				return new byte[SIZES[i]];
+			}
+		}
+		oversize.increment();
+		return new byte[size];
+	}
+
+	/**
+	 * Return buffer to pool. Buffer must not be used after this.
+	 * @param buffer buffer from <I>acquire()</I>
+	 */
+	public void release(byte[] buffer) {
+		for (int i = 0; i < SIZES.length; i++) {
+			if (buffer.length == SIZES[i]) {
+				free[i].offer(buffer);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Present pool counters in tabular form.
+	 * @return table with size, free buffers, hits and misses of each class
+	 */
+	public String getTable() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%10s %10s %14s %14s\r\n", "Size", "Free", "Hits", "Misses"));
+		for (int i = 0; i < SIZES.length; i++) {
+			sb.append(String.format("%10s %10d %14d %14d\r\n", (SIZES[i] / 1024) + " KB", free[i].size(),
+					hits[i].sum(), misses[i].sum()));
+		}
+		sb.append(String.format("%10s %10s %14s %14d\r\n", "Oversize", "-", "-", oversize.sum()));
+		return sb.toString();
+	}
+
+}
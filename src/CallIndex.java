@@ -0,0 +1,183 @@
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BiFunction;
+
+/**
+ * <H1>Call index</H1>
+ * Secondary indexes of call table, kept by {@link LoadBalancer} together
+ * with call table, so lookups like "all calls on node" or "calls from this
+ * PBX" do not scan whole table.<BR>
+ * <BR>
+ * Indexes:
+ * <UL>
+ *  <LI>node ip address to calls, eg. <I>dstAddress</I> of call record</LI>
+ *  <LI>source ip address to calls, eg. <I>srcAddress</I> of call record</LI>
+ *  <LI>Call-ID sorted in skip list, for prefix search</LI>
+ * </UL>
+ * Each index maps Call-ID to call record, same as call table, so lookup
+ * needs no second access to call table. Number of calls per node or source
+ * is size of its map, and does not depend on call table size.<BR>
+ * <BR>
+ * Indexes are updated under lock of Call-ID in call table, so updates of one
+ * call are applied in same order as to call table. Readers take no lock, so
+ * they may see index a moment before or after call table. Users should check
+ * fields of call record they get, if exact match matters.
+ * @author eigorde
+ *
+ */
+public class CallIndex {
+
+	/**
+	 * Calls on each node.
+	 */
+	private ConcurrentHashMap<InetAddress, Map<String, CallType>> byNode;
+
+	/**
+	 * Calls from each source.
+	 */
+	private ConcurrentHashMap<InetAddress, Map<String, CallType>> bySource;
+
+	/**
+	 * All calls, sorted by Call-ID.
+	 */
+	private ConcurrentSkipListMap<String, CallType> byCallID;
+
+	/**
+	 * <H1>Call index</H1><BR>
+	 * Empty index.
+	 */
+	public CallIndex() {
+		byNode = new ConcurrentHashMap<InetAddress, Map<String, CallType>>();
+		bySource = new ConcurrentHashMap<InetAddress, Map<String, CallType>>();
+		byCallID = new ConcurrentSkipListMap<String, CallType>();
+	}
+
+	/**
+	 * Add call record to indexes.
+	 * @param callID unique identifier of call record
+	 * @param callType call record
+	 */
+	public void add(String callID, CallType callType) {
+		byCallID.put(callID, callType);
+		addTo(byNode, callType.dstAddress, callID, callType);
+		addTo(bySource, callType.srcAddress, callID, callType);
+	}
+
+	/**
+	 * Remove call record from indexes. Nothing is removed if Call-ID is
+	 * indexed with another record meanwhile.
+	 * @param callID unique identifier of call record
+	 * @param callType removed call record
+	 */
+	public void remove(String callID, CallType callType) {
+		byCallID.remove(callID, callType);
+		removeFrom(byNode, callType.dstAddress, callID, callType);
+		removeFrom(bySource, callType.srcAddress, callID, callType);
+	}
+
+	/**
+	 * Add call to set of calls under address. Set is created under lock of
+	 * its key in index, so it can not be dropped by concurrent remove.
+	 * @param index node or source index
+	 * @param address node or source address
+	 * @param callID unique identifier of call record
+	 * @param callType call record
+	 */
+	private static void addTo(ConcurrentHashMap<InetAddress, Map<String, CallType>> index, InetAddress address,
+			final String callID, final CallType callType) {
+		if (address == null) {
+			return;
+		}
+		index.compute(address, new BiFunction<InetAddress, Map<String, CallType>, Map<String, CallType>>() {
+			@Override
+			public Map<String, CallType> apply(InetAddress key, Map<String, CallType> calls) {
+				if (calls == null) {
+					calls = new ConcurrentHashMap<String, CallType>();
+				}
+				calls.put(callID, callType);
+				return calls;
+			}
+		});
+	}
+
+	/**
+	 * Remove call from set of calls under address, and drop empty set.
+	 * @param index node or source index
+	 * @param address node or source address
+	 * @param callID unique identifier of call record
+	 * @param callType call record
+	 */
+	private static void removeFrom(ConcurrentHashMap<InetAddress, Map<String, CallType>> index, InetAddress address,
+			final String callID, final CallType callType) {
+		if (address == null) {
+			return;
+		}
+		index.computeIfPresent(address, new BiFunction<InetAddress, Map<String, CallType>, Map<String, CallType>>() {
+			@Override
+			public Map<String, CallType> apply(InetAddress key, Map<String, CallType> calls) {
+				calls.remove(callID, callType);
+				return calls.isEmpty() ? null : calls;
+			}
+		});
+	}
+
+	/**
+	 * Get calls on node.
+	 * @param node ip address of node
+	 * @return Call-ID to call record map, weakly consistent, do not modify it
+	 */
+	public Map<String, CallType> getNodeCalls(InetAddress node) {
+		Map<String, CallType> calls = byNode.get(node);
+		if (calls == null) {
+			return Collections.emptyMap();
+		}
+		return calls;
+	}
+
+	/**
+	 * Get calls from source.
+	 * @param source ip address of caller, eg. PBX
+	 * @return Call-ID to call record map, weakly consistent, do not modify it
+	 */
+	public Map<String, CallType> getSourceCalls(InetAddress source) {
+		Map<String, CallType> calls = bySource.get(source);
+		if (calls == null) {
+			return Collections.emptyMap();
+		}
+		return calls;
+	}
+
+	/**
+	 * Get calls whose Call-ID starts with prefix.
+	 * @param prefix start of Call-ID, empty string for all calls
+	 * @return Call-ID to call record map, sorted by Call-ID, do not modify it
+	 */
+	public Map<String, CallType> getCalls(String prefix) {
+		if (prefix.length() == 0) {
+			return byCallID;
+		}
+		return byCallID.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+	}
+
+	/**
+	 * Get number of calls on node.
+	 * @param node ip address of node
+	 * @return number of calls
+	 */
+	public int countNodeCalls(InetAddress node) {
+		Map<String, CallType> calls = byNode.get(node);
+		return (calls == null) ? 0 : calls.size();
+	}
+
+	/**
+	 * Get number of distinct call sources.
+	 * @return number of source addresses
+	 */
+	public int getSourceCount() {
+		return bySource.size();
+	}
+
+}
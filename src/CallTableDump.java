@@ -0,0 +1,267 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * <H1>Call table dump</H1>
+ * Cursor over call table for telnet printout. Records are read directly
+ * from concurrent call table, without class lock and without copy of the
+ * table, so dump of large table does not stop dispatcher.<BR>
+ * <BR>
+ * Iteration is weakly consistent, eg. call added or removed while dump is
+ * in progress may or may not be printed, but every call which is in table
+ * for whole dump is printed once. Cursor may stop after a page and continue
+ * later with next page.<BR>
+ * <BR>
+ * Dump with node, source or Call-ID filter walks only matching calls in
+ * {@link CallIndex}, not whole call table. Call-ID filter prints calls
+ * sorted by Call-ID.<BR>
+ * <BR>
+ * Filters, in any order:
+ * <UL>
+ *  <LI><I>node A.B.C.D[:port]</I>, calls on given node</LI>
+ *  <LI><I>source A.B.C.D</I>, calls from given source, eg. PBX</LI>
+ *  <LI><I>callid XX</I>, calls with Call-ID which starts with XX</LI>
+ *  <LI><I>bye</I>, calls with bye flag, eg. calls that are about to close</LI>
+ *  <LI><I>age XX</I>, calls older than XX sec.</LI>
+ *  <LI><I>page XX</I>, print XX calls per page, <I>0</I> for all</LI>
+ * </UL>
+ * @author eigorde
+ *
+ */
+public class CallTableDump {
+
+	/**
+	 * Position in call table.
+	 */
+	private Iterator<Map.Entry<String, CallType>> cursor;
+
+	/**
+	 * Next matching record, or <I>null</I>.
+	 */
+	private Map.Entry<String, CallType> next;
+
+	/**
+	 * Node address, or <I>null</I> for any node.
+	 */
+	private InetAddress node;
+
+	/**
+	 * Node port, or <I>0</I> for any port.
+	 */
+	private int nodePort;
+
+	/**
+	 * Source address, or <I>null</I> for any source.
+	 */
+	private InetAddress source;
+
+	/**
+	 * Start of Call-ID, or <I>null</I> for any Call-ID.
+	 */
+	private String prefix;
+
+	/**
+	 * Only calls with bye flag.
+	 */
+	private boolean byeOnly;
+
+	/**
+	 * Min. age of call, in msec.
+	 */
+	private long minAge;
+
+	/**
+	 * Number of calls per page, or <I>0</I> for all.
+	 */
+	private int pageSize;
+
+	/**
+	 * Number of printed calls.
+	 */
+	private int count;
+
+	/**
+	 * Time when dump was started (UNIX time).
+	 */
+	private long startedAt;
+
+	/**
+	 * <H1>Call table dump</H1><BR>
+	 * Parse filters and place cursor at start of call table.
+	 * @param args filters, see class description, may be empty
+	 * @throws IllegalArgumentException if filter is not recognized
+	 * @throws UnknownHostException if node address is not valid
+	 */
+	public CallTableDump(String args) throws UnknownHostException {
+		String[] words = args.trim().split("\\s+");
+		for (int i = 0; i < words.length; i++) {
+			String word = words[i];
+			if (word.length() == 0) {
+				continue;
+			}
+			if (word.equalsIgnoreCase("bye")) {
+				byeOnly = true;
+			}
+			else if (word.equalsIgnoreCase("node") && i + 1 < words.length) {
+				String address = words[++i];
+				int colon = address.lastIndexOf(':');
+				if (colon > 0 && address.indexOf(':') == colon) {
+					nodePort = Integer.parseInt(address.substring(colon + 1));
+					address = address.substring(0, colon);
+				}
+				node = InetAddress.getByName(address);
+			}
+			else if (word.equalsIgnoreCase("source") && i + 1 < words.length) {
+				source = InetAddress.getByName(words[++i]);
+			}
+			else if (word.equalsIgnoreCase("callid") && i + 1 < words.length) {
+				prefix = words[++i];
+			}
+			else if (word.equalsIgnoreCase("age") && i + 1 < words.length) {
+				minAge = Long.parseLong(words[++i]) * 1000;
+			}
+			else if (word.equalsIgnoreCase("page") && i + 1 < words.length) {
+				pageSize = Integer.parseInt(words[++i]);
+			}
+			else {
+				throw new IllegalArgumentException("Unknown filter: " + word);
+			}
+		}
+
+		startedAt = System.currentTimeMillis();
+		/*
+		 * Walk narrowest index which covers filters.
+		 */
+		if (prefix != null) {
+			cursor = LoadBalancer.callIndex.getCalls(prefix).entrySet().iterator();
+		}
+		else if (node != null) {
+			cursor = LoadBalancer.callIndex.getNodeCalls(node).entrySet().iterator();
+		}
+		else if (source != null) {
+			cursor = LoadBalancer.callIndex.getSourceCalls(source).entrySet().iterator();
+		}
+		else {
+			cursor = LoadBalancer.getCallRecordEntries().iterator();
+		}
+	}
+
+	/**
+	 * Move cursor to next record which matches filters.
+	 * @return <I>true</I> if there is one, see <I>appendRow()</I>
+	 */
+	public boolean hasNext() {
+		while (next == null && cursor.hasNext()) {
+			Map.Entry<String, CallType> entry = cursor.next();
+			if (matches(entry.getValue())) {
+				next = entry;
+			}
+		}
+		return next != null;
+	}
+
+	/**
+	 * Check record against filters.
+	 * @param callType call record
+	 * @return <I>true</I> if record should be printed
+	 */
+	private boolean matches(CallType callType) {
+		if (byeOnly && !callType.bye) {
+			return false;
+		}
+		if (node != null && !node.equals(callType.dstAddress)) {
+			return false;
+		}
+		if (nodePort != 0 && nodePort != callType.dstPort) {
+			return false;
+		}
+		if (source != null && !source.equals(callType.srcAddress)) {
+			return false;
+		}
+		if (minAge > 0 && startedAt - callType.createdAt < minAge) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Print header line.
+	 * @param sb printout
+	 * @param width terminal width
+	 */
+	public void appendHeader(StringBuilder sb, int width) {
+		pad(sb.append("Call ID"), "Call ID".length(), width / 2);
+		pad(sb.append("Source:port, destination:port"), "Source:port, destination:port".length(), width / 3);
+		sb.append("Age\r\n");
+	}
+
+	/**
+	 * Print record found by <I>hasNext()</I>, and move past it.
+	 * @param sb printout
+	 * @param width terminal width
+	 */
+	public void appendRow(StringBuilder sb, int width) {
+		String callID = next.getKey();
+		CallType callType = next.getValue();
+		next = null;
+		count++;
+
+		column(sb, callID, width / 2);
+		int start = sb.length();
+		sb.append(callType.srcAddress.getHostAddress()).append(':').append(callType.srcPort).append(',')
+				.append(callType.dstAddress.getHostAddress()).append(':').append(callType.dstPort).append(',')
+				.append(callType.bye);
+		pad(sb, sb.length() - start, width / 3);
+		sb.append((startedAt - callType.createdAt) / 1000).append(" sec.\r\n");
+	}
+
+	/**
+	 * Print value in fixed width column, truncate it with three dots
+	 * if it is too long.
+	 * @param sb printout
+	 * @param value column value
+	 * @param len column width
+	 */
+	private static void column(StringBuilder sb, String value, int len) {
+		if (value.length() < len) {
+			pad(sb.append(value), value.length(), len);
+		}
+		else {
+			sb.append(value, 0, Math.max(len - 3, 0)).append("...");
+		}
+	}
+
+	/**
+	 * Fill column with spaces.
+	 * @param sb printout
+	 * @param used chars already in column
+	 * @param len column width
+	 */
+	private static void pad(StringBuilder sb, int used, int len) {
+		for (int i = used; i < len; i++) {
+			sb.append(' ');
+		}
+		if (used >= len) {
+			sb.append(' ');
+		}
+	}
+
+	/**
+	 * Get number of calls per page.
+	 * @return page size, or <I>0</I> for all calls
+	 */
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Get number of printed calls, in all pages.
+	 * @return number of calls
+	 */
+	public int getCount() {
+		return count;
+	}
+
+}
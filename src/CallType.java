@@ -34,6 +34,41 @@ public class CallType {
      */
     public boolean bye;
     
+    /**
+     * Time when INVITE was forwarded to node, in nsec, or <I>0</I> after first
+     * response from node. Local only, it is not sent to peers or saved.
+     */
+    public volatile long inviteSentAt;
+    
+    /**
+     * Dialog is established, eg. node answered INVITE with 2xx. Local only.
+     */
+    public volatile boolean established;
+    
+    /**
+     * Time when record of failed or cancelled call setup is released (UNIX time),
+     * or <I>0</I> if release is not scheduled. Local only.
+     */
+    public volatile long releaseAt;
+    
+    /**
+     * Call setup failed with final response, other than redirect or challenge,
+     * so record is released by ACK of caller. Local only.
+     */
+    public volatile boolean failed;
+    
+    /**
+     * Tcp connection of caller, or <I>null</I> if call came over udp.
+     * Local only, call synced from peer uses udp.
+     */
+    public volatile TcpConnection connection;
+    
+    /**
+     * Time when record was created here, or received from peer (UNIX time).
+     * Local only.
+     */
+    public long createdAt = System.currentTimeMillis();
+    
     /**
      * <B>CallType</B> data type<BR>
      * <BR>
@@ -74,31 +109,45 @@ public class CallType {
      * @throws UnknownHostException 
      */
     public CallType(byte[] callTypeBytes) throws UnknownHostException {
-    	
-    	byte srcInetLen = callTypeBytes[0];
-    	byte[] srcAddress, dstAddress;
-    	byte[] srcPort = {0, 0}, dstPort = {0, 0};
-    	
-    	srcAddress = new byte[srcInetLen];
-    	System.arraycopy(callTypeBytes, 1, srcAddress, 0, srcInetLen);
+    	this(callTypeBytes, 0);
+    }
 
-    	srcPort[0] = callTypeBytes[1 + srcInetLen];
-    	srcPort[1] = callTypeBytes[2 + srcInetLen];
-    	
-    	byte dstInetLen = callTypeBytes[3 + srcInetLen];
-    	
-    	dstAddress = new byte[dstInetLen];
-    	System.arraycopy(callTypeBytes, 4 + srcInetLen, dstAddress, 0, dstInetLen);
-    	
-    	dstPort[0] = callTypeBytes[4 + srcInetLen + dstInetLen];
-    	dstPort[1] = callTypeBytes[5 + srcInetLen + dstInetLen];
-    	
-        this.srcPort = ((srcPort[0] & 0xFF) << 8) + (srcPort[1] & 0xFF);
+    /**
+     * <B>CallType</B> data type<BR>
+     * <BR>
+     * Same as <I>CallType(byte[] callTypeBytes)</I>, but reads raw bytes in place,
+     * starting at <I>offset</I> in a larger buffer, eg. received datagram.<BR>
+     * @param data buffer which holds raw bytes of callType object
+     * @param offset position of first byte (<I>inetLen</I>) in buffer
+     * @throws UnknownHostException if ip address length is neither <I>4</I> nor <I>16</I>,
+     * or buffer is too short
+     */
+    public CallType(byte[] data, int offset) throws UnknownHostException {
+
+    	int srcInetLen = data[offset];
+    	if (srcInetLen != 4 && srcInetLen != 16) {
+    		throw new UnknownHostException("Invalid source address length: " + srcInetLen);
+    	}
+    	int dstInetLen = data[offset + 3 + srcInetLen];
+    	if (dstInetLen != 4 && dstInetLen != 16) {
+    		throw new UnknownHostException("Invalid destination address length: " + dstInetLen);
+    	}
+    	if (offset + 7 + srcInetLen + dstInetLen > data.length) {
+    		throw new UnknownHostException("Call record truncated.");
+    	}
+
+    	byte[] srcAddress = new byte[srcInetLen];
+    	System.arraycopy(data, offset + 1, srcAddress, 0, srcInetLen);
+
+    	byte[] dstAddress = new byte[dstInetLen];
+    	System.arraycopy(data, offset + 4 + srcInetLen, dstAddress, 0, dstInetLen);
+
+        this.srcPort = ((data[offset + 1 + srcInetLen] & 0xFF) << 8) + (data[offset + 2 + srcInetLen] & 0xFF);
         this.srcAddress = InetAddress.getByAddress(srcAddress);
-        this.dstPort = ((dstPort[0] & 0xFF) << 8) + (dstPort[1] & 0xFF);
+        this.dstPort = ((data[offset + 4 + srcInetLen + dstInetLen] & 0xFF) << 8) + (data[offset + 5 + srcInetLen + dstInetLen] & 0xFF);
         this.dstAddress = InetAddress.getByAddress(dstAddress);
-        
-        bye = (callTypeBytes[6 + srcInetLen + dstInetLen] == 1);
+
+        bye = (data[offset + 6 + srcInetLen + dstInetLen] == 1);
     }
 
     /**
@@ -0,0 +1,202 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+/**
+ * <H1>Checkpoint</H1>
+ * Periodically saves call table to local file, so that Load Balancer can
+ * restore it after restart, before dispatcher starts to receive SIP messages.<BR>
+ * <BR>
+ * State is kept in snapshot and {@link WriteAheadLog}:
+ * <UL>
+ *  <LI><I>snapshot</I>, full call table, written through memory-mapped buffer
+ *  to temporary file and then renamed over previous snapshot</LI>
+ *  <LI><I>write-ahead log</I>, with every change of call table since snapshot</LI>
+ * </UL>
+ * When log grows larger than snapshot, a new snapshot is written and log
+ * segments which it covers are deleted. On restart, log is replayed over
+ * snapshot.<BR>
+ * <BR>
+ * Snapshot format:<BR>
+ * <TABLE border=2><TR><TD>magic</TD><TD>count (n)</TD><TD>callID-1 length</TD><TD>callID-1</TD>
+ * <TD>callType-1 length</TD><TD>callType-1</TD><TD>...</TD></TR></TABLE><BR>
+ * @author eigorde
+ *
+ */
+public class Checkpoint implements Runnable {
+
+	/**
+	 * Snapshot file magic number, "LBC1".
+	 */
+	private static final int MAGIC = 0x4C424331;
+
+	/**
+	 * Max. length of one encoded record.
+	 */
+	private static final int MAX_RECORD_LEN = 1 + 1 + 255 + 1 + 255;
+
+	/**
+	 * Log may grow up to this size before new snapshot is written,
+	 * even when snapshot is smaller.
+	 */
+	private static final long MIN_LOG_LEN = 1024 * 1024;
+
+	/**
+	 * Snapshot file.
+	 */
+	private File snapshotFile;
+
+	/**
+	 * Log of changes since snapshot.
+	 */
+	private WriteAheadLog wal;
+
+	/**
+	 * Encode buffer, grows as needed and is reused.
+	 */
+	private byte[] buffer;
+
+	/**
+	 * Size of last written snapshot.
+	 */
+	private long snapshotLen;
+
+	/**
+	 * <H1>Checkpoint</H1><BR>
+	 * Use given file name for snapshot, and log which is kept next to it.
+	 * @param fileName snapshot file name, eg. <I>calls.db</I>
+	 * @param wal write-ahead log
+	 */
+	public Checkpoint(String fileName, WriteAheadLog wal) {
+		snapshotFile = new File(fileName);
+		this.wal = wal;
+		buffer = new byte[64 * 1024];
+		snapshotLen = snapshotFile.length();
+	}
+
+	@Override
+	public void run() {
+
+		while (true)
+			try {
+				Thread.sleep(LoadBalancer.checkpointInterval);
+
+				if (wal.getSinceSnapshot() > Math.max(MIN_LOG_LEN, snapshotLen) || wal.isSuspended()) {
+					/*
+					 * Start new log segment, write snapshot, and then
+					 * drop segments which snapshot covers. Suspended log
+					 * needs snapshot to cover records it dropped.
+					 */
+					long firstSegment = wal.beginSnapshot();
+					writeSnapshot();
+					wal.compact(firstSegment);
+				}
+
+			} catch (InterruptedException e) {
+				// Quit while loop.
+				break;
+			} catch (IOException e) {
+				// Print error on console.
+				e.printStackTrace();
+			}
+	}
+
+	/**
+	 * Make sure encode buffer has room for one more record.
+	 * @param indexPos current position in buffer
+	 */
+	private void ensureCapacity(int indexPos) {
+		if (indexPos + MAX_RECORD_LEN > buffer.length) {
+			byte[] newBuffer = new byte[buffer.length * 2];
+			System.arraycopy(buffer, 0, newBuffer, 0, indexPos);
+			buffer = newBuffer;
+		}
+	}
+
+	/**
+	 * Write full call table to new snapshot.
+	 * @throws IOException
+	 */
+	void writeSnapshot() throws IOException {
+
+		int indexPos = 8;
+		int count = 0;
+
+		for (Map.Entry<String, CallType> entry : LoadBalancer.getCallRecordEntries()) {
+			/*
+			 * CallID length is 1 byte, same as in sync frame.
+			 */
+			if (entry.getKey().getBytes().length > SyncFrame.MAX_CALLID_LEN) {
+				continue;
+			}
+			ensureCapacity(indexPos);
+			indexPos = SyncFrame.putRecord(buffer, indexPos, entry.getKey(), entry.getValue());
+			count++;
+		}
+
+		ByteBuffer header = ByteBuffer.wrap(buffer, 0, 8);
+		header.putInt(MAGIC);
+		header.putInt(count);
+
+		File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+		RandomAccessFile file = new RandomAccessFile(tmpFile, "rw");
+		try {
+			file.setLength(indexPos);
+			MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexPos);
+			map.put(buffer, 0, indexPos);
+			map.force();
+		} finally {
+			file.close();
+		}
+
+		/*
+		 * Replace previous snapshot.
+		 */
+		if (!tmpFile.renameTo(snapshotFile)) {
+			snapshotFile.delete();
+			if (!tmpFile.renameTo(snapshotFile)) {
+				throw new IOException("Unable to rename " + tmpFile + " to " + snapshotFile);
+			}
+		}
+		snapshotLen = indexPos;
+
+		if (LoadBalancer.verbose == 3) {
+			LoadBalancer.log(Thread.currentThread().getName(), "Checkpoint: snapshot with " + count + " records written.");
+		}
+	}
+
+	/**
+	 * Restore call table from snapshot and write-ahead log, if files exist.<BR>
+	 * This should be done at startup, before dispatcher starts.
+	 * @return number of records in call table after restore
+	 * @throws IOException
+	 */
+	public int load() throws IOException {
+
+		if (snapshotFile.length() >= 8) {
+			RandomAccessFile file = new RandomAccessFile(snapshotFile, "r");
+			try {
+				MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+				if (map.getInt() == MAGIC) {
+					int count = map.getInt();
+					for (int i = 0; i < count && map.hasRemaining(); i++) {
+						if (!WriteAheadLog.readRecord(map, true)) {
+							break;
+						}
+					}
+				}
+			} finally {
+				file.close();
+			}
+		}
+
+		wal.replay();
+
+		return LoadBalancer.getCallRecordEntries().size();
+	}
+
+}
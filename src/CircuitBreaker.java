@@ -0,0 +1,130 @@
+/**
+ * <H1>Circuit breaker</H1>
+ * Keeps new calls away from node which rejects them or does not answer.<BR>
+ * <BR>
+ * States:
+ * <UL>
+ *  <LI><I>closed</I>, node receives calls. After <I>breakerThreshold</I> failures
+ *  in a row, breaker opens</LI>
+ *  <LI><I>open</I>, node receives no new calls for <I>breakerOpenTime</I> msec, or
+ *  as long as node asked in <I>Retry-After</I> header</LI>
+ *  <LI><I>half-open</I>, after open time, node receives one trial call. If it
+ *  succeeds, breaker closes, otherwise it opens again</LI>
+ * </UL>
+ * Failure is 503 or 480 response to INVITE, or INVITE without any response
+ * within <I>inviteTimeout</I>. Success is provisional (except 100) or final
+ * response to INVITE, other than failure.
+ * @author eigorde
+ *
+ */
+public class CircuitBreaker {
+
+	/**
+	 * Breaker states.
+	 */
+	static final int CLOSED = 0;
+	static final int OPEN = 1;
+	static final int HALF_OPEN = 2;
+
+	/**
+	 * Current state.
+	 */
+	private int state = CLOSED;
+
+	/**
+	 * Failures in a row.
+	 */
+	private int failures;
+
+	/**
+	 * Time stamp until breaker is open (UNIX time).
+	 */
+	private long openUntil;
+
+	/**
+	 * Trial call was sent in half-open state, and waits for result.
+	 */
+	private boolean trialSent;
+
+	/**
+	 * Check if node may receive new call. State is not changed.
+	 * @param currentTime current time stamp (UNIX time)
+	 * @return <I>true</I> if breaker is closed, or trial call may be sent
+	 */
+	public synchronized boolean isAvailable(long currentTime) {
+		switch (state) {
+		case OPEN:
+			return currentTime >= openUntil;
+		case HALF_OPEN:
+			return !trialSent;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * New call was sent to node. After open time, this call is trial call.
+	 * @param currentTime current time stamp (UNIX time)
+	 */
+	public synchronized void callSent(long currentTime) {
+		if (state == OPEN && currentTime >= openUntil) {
+			state = HALF_OPEN;
+			trialSent = false;
+		}
+		if (state == HALF_OPEN) {
+			trialSent = true;
+		}
+	}
+
+	/**
+	 * Node has accepted call. Late success of older call does not close
+	 * breaker before open time expires.
+	 * @return <I>true</I> if breaker has just closed
+	 */
+	public synchronized boolean success() {
+		failures = 0;
+		if (state == OPEN && System.currentTimeMillis() < openUntil) {
+			return false;
+		}
+		if (state != CLOSED) {
+			state = CLOSED;
+			trialSent = false;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Node has rejected call, or did not answer in time.
+	 * @param retryAfter time in msec which node asked to wait, or <I>0</I>
+	 * @return <I>true</I> if breaker has just opened
+	 */
+	public synchronized boolean failure(long retryAfter) {
+		failures++;
+		if (state == HALF_OPEN || failures >= LoadBalancer.breakerThreshold || retryAfter > 0) {
+			boolean opened = (state != OPEN);
+			state = OPEN;
+			trialSent = false;
+			openUntil = System.currentTimeMillis() + ((retryAfter > 0) ? retryAfter : LoadBalancer.breakerOpenTime);
+			return opened;
+		}
+		return false;
+	}
+
+	/**
+	 * Get state as text. Open breaker whose open time has passed is still
+	 * open until trial call moves it to half-open.
+	 * @return <I>closed</I>, <I>open</I>, <I>open (trial due)</I> or <I>half-open</I>
+	 */
+	public synchronized String getStateString() {
+		switch (state) {
+		case OPEN:
+			return (System.currentTimeMillis() >= openUntil) ? "open (trial due)" : "open";
+		case HALF_OPEN:
+			return "half-open";
+		default:
+			return "closed";
+		}
+	}
+
+}
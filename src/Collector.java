@@ -3,11 +3,16 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.SocketAddress;
-import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * <H1>Collector</H1><BR>
@@ -34,7 +39,11 @@ import java.util.List;
  * }
  * </PRE>
  * This class won't take care how long discovery thread runs, in general
- * it is running until <I>stopDiscovery()</I> method occurs.
+ * it is running until <I>stopDiscovery()</I> method occurs.<BR>
+ * <BR>
+ * When Collector binds its own port, it uses non-blocking datagram channel,
+ * so that <I>sendSipOptions(int, int)</I> never blocks a discovery sweep.
+ * SIP OPTIONS message is precompiled in {@link OptionsTemplate}.
  * <BR> 
  * @author eigorde
  *
@@ -43,12 +52,89 @@ public class Collector implements Runnable {
 
 	private final int BUFFER_LEN = 4096;
 
+	/**
+	 * Time to live of multicast queries, enough to cross a few routers on site.
+	 */
+	private static final int MULTICAST_TTL = 4;
+
 	private SocketAddress socket;
 	private DatagramSocket datagramSocket;
 
-	private List<String> discoveredHosts;
+	/**
+	 * Non-blocking channel, when Collector binds its own port.
+	 */
+	private DatagramChannel channel;
+
+	/**
+	 * Selector for received replies on <I>channel</I>.
+	 */
+	private Selector selector;
+
+	/**
+	 * Hosts which replied with SIP OK, and their reply round trip time in usec.
+	 * Keyed by raw address, read by other threads while replies are collected.
+	 */
+	private ConcurrentHashMap<InetAddress, Long> discoveredHosts;
 
 	private boolean socketOpen;
+
+	/**
+	 * Precompiled SIP OPTIONS message, built on first use.
+	 */
+	private volatile OptionsTemplate template;
+
+	/**
+	 * Send buffer for rendered SIP OPTIONS message.
+	 */
+	private byte[] sendData;
+
+	/**
+	 * Buffer over <I>sendData</I>, reused for each probe on channel.
+	 */
+	private ByteBuffer sendBuffer;
+
+	/**
+	 * Packet over <I>sendData</I>, reused for each probe on shared socket.
+	 */
+	private DatagramPacket sendPacket;
+
+	/**
+	 * Raw ipv4 address of last target, reused for each probe.
+	 */
+	private byte[] addressRaw = new byte[4];
+
+	/**
+	 * Last ipv4 target of <I>sendSipOptions(int, int)</I>, or <I>null</I>.
+	 * Repeated probes of same node reuse it.
+	 */
+	private InetSocketAddress lastTarget;
+
+	/**
+	 * Ipv4 address of <I>lastTarget</I> as integer.
+	 */
+	private int lastAddress;
+
+	/**
+	 * Remote address as text, reused for each probe.
+	 */
+	private byte[] hostText;
+
+	/**
+	 * Probe counter, low bits of Call-ID sequence.
+	 */
+	private long sequence;
+
+	/**
+	 * Time when Collector was made, in nsec. Send time in Call-ID
+	 * sequence is relative to it.
+	 */
+	private long startNanos;
+
+
+	/**
+	 * Number of low bits in Call-ID sequence used by probe counter.
+	 */
+	private static final int SEQUENCE_BITS = 16;
 	
 	/**
 	 * <H1>Collector</H1><BR>
@@ -62,9 +148,12 @@ public class Collector implements Runnable {
 		socket = new InetSocketAddress(hostAddress, bindPort);
 		datagramSocket = null;
 
-		discoveredHosts = new ArrayList<String>();
+		discoveredHosts = new ConcurrentHashMap<InetAddress, Long>();
 		
 		socketOpen = false;
+
+		hostText = new byte[OptionsTemplate.MAX_HOST_LEN];
+		startNanos = System.nanoTime();
 	}
 	
 	/**
@@ -78,9 +167,12 @@ public class Collector implements Runnable {
 		this.socket = null;
 		this.datagramSocket = datagramSocket;
 
-		discoveredHosts = new ArrayList<String>();
+		discoveredHosts = new ConcurrentHashMap<InetAddress, Long>();
 		
 		socketOpen = false;
+
+		hostText = new byte[OptionsTemplate.MAX_HOST_LEN];
+		startNanos = System.nanoTime();
 	}
 	
 	@Override
@@ -88,11 +180,17 @@ public class Collector implements Runnable {
 
 		if (datagramSocket == null) {
 			try {
-				datagramSocket = new DatagramSocket(socket);
-			} catch (SocketException e) {
+				channel = DatagramChannel.open();
+				channel.configureBlocking(false);
+				channel.socket().bind(socket);
+				selector = Selector.open();
+				channel.register(selector, SelectionKey.OP_READ);
+			} catch (IOException e) {
 				e.printStackTrace();
 				return;
-			}		
+			}
+			runChannel();
+			return;
 		}
 
 		byte[] receiveData = new byte[BUFFER_LEN];
@@ -105,19 +203,40 @@ public class Collector implements Runnable {
 			try {
 				datagramSocket.receive(receivePacket);
 
-				String message = new String(receivePacket.getData());
-				String method = message.substring(0, message.indexOf('\n') - 1);
-				// String callID = message.substring(message.indexOf("Call-ID:") + "Call-ID:".length() + 1, message.indexOf('\n', message.indexOf("Call-ID:")) - 1);
+				collect(receiveData, receivePacket.getLength(), receivePacket.getAddress());
+
+			} catch (IOException e) {
+				if (isSocketOpen()) {
+					e.printStackTrace();
+					setSocketOpen(false);
+				}
+			}
+
+		datagramSocket.close();
+	}
+
+	/**
+	 * Receive loop on non-blocking channel. Runs until <I>stopDiscovery()</I>.
+	 */
+	private void runChannel() {
+
+		ByteBuffer receiveBuffer = ByteBuffer.allocate(BUFFER_LEN);
+
+		setSocketOpen(true);
+
+		while (isSocketOpen())
+			try {
+				selector.select(100);
+				selector.selectedKeys().clear();
 
 				/*
-				 *  SIP OK message
+				 * Drain all replies which are waiting.
 				 */
-				if (method.contains("200 OK")) {
-					String newHost = receivePacket.getAddress().getHostAddress();
-					if (!discoveredHosts.contains(newHost)) {
-						// Store ip address of host which has respond with OK
-						discoveredHosts.add(newHost);
-					}
+				SocketAddress from;
+				while ((from = channel.receive(receiveBuffer)) != null) {
+					collect(receiveBuffer.array(), receiveBuffer.position(),
+							((InetSocketAddress) from).getAddress());
+					receiveBuffer.clear();
 				}
 
 			} catch (IOException e) {
@@ -127,7 +246,50 @@ public class Collector implements Runnable {
 				}
 			}
 
-		datagramSocket.close();
+		/*
+		 * Close selector first, so that channel is deregistered and
+		 * its port is released right away.
+		 */
+		try {
+			selector.close();
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Check received message and store sender if it is SIP OK.<BR>
+	 * Status line is matched on bytes, and round trip time is taken from
+	 * send time which is encoded in Call-ID sequence.
+	 * @param data received datagram
+	 * @param length datagram length
+	 * @param address sender address
+	 */
+	private void collect(byte[] data, int length, InetAddress address) {
+
+		if (!OptionsTemplate.isSipOk(data, length)) {
+			return;
+		}
+
+		/*
+		 *  SIP OK message, store ip address of host which has respond with OK.
+		 */
+		long rtt = -1;
+		OptionsTemplate options = template;
+		if (options != null) {
+			long sequence = options.readSequence(data, length);
+			if (sequence >= 0) {
+				rtt = (System.nanoTime() - startNanos) / 1000 - (sequence >>> SEQUENCE_BITS);
+			}
+		}
+		if (discoveredHosts.putIfAbsent(address, rtt) == null && LoadBalancer.verbose == 3) {
+			LoadBalancer.log(Thread.currentThread().getName(), "SIP OK from " + address.getHostAddress()
+					+ ", rtt " + rtt + " usec.");
+		}
 	}
 
 	/**
@@ -147,32 +309,6 @@ public class Collector implements Runnable {
 		socketOpen = state;
 	}
 	
-	/**
-	 * Send message to socket. This will convert string into bytes,
-	 * and send it to remote ip address and port via udp socket.
-	 * @param message message to send, like SIP OPTIONS 
-	 * @param address remote ip address
-	 * @param port remote port, usually <I>5060</I>
-	 * @throws IOException
-	 */
-	private void send(String message, InetAddress address, int port) throws IOException {
-		
-		byte[] data = message.getBytes();
-		
-    	/*
-    	 *  Build a new udp datagram.
-    	 */
-		DatagramPacket packet = new DatagramPacket(data, data.length,
-				address, port);
-		
-		
-		if (LoadBalancer.verbose == 3) {
-			LoadBalancer.log(Thread.currentThread().getName(), "OPTIONS message sent to: " + address.getHostAddress() + ":" + port);
-		}
-		
-		datagramSocket.send(packet);
-	}
-	
 	/**
 	 * Return random number between <I>min</I> and <I>max</I> value.
 	 * @param min minimum value
@@ -184,6 +320,64 @@ public class Collector implements Runnable {
 		return retVal;
 	}
 
+	/**
+	 * Build SIP OPTIONS template for local endpoint, once.
+	 */
+	private void initTemplate() {
+		if (template != null) {
+			return;
+		}
+		String service = Thread.currentThread().getName();
+		String local_ip;
+		int local_port;
+		if (channel != null) {
+			local_ip = OptionsTemplate.hostText(((InetSocketAddress) socket).getAddress());
+			local_port = channel.socket().getLocalPort();
+		}
+		else {
+			local_ip = OptionsTemplate.hostText(datagramSocket.getLocalAddress());
+			local_port = datagramSocket.getLocalPort();
+		}
+		template = new OptionsTemplate(service, local_ip, local_port,
+				System.currentTimeMillis() + randomNumber(100000, 999999));
+		sendData = new byte[template.getMaxLength()];
+		sendBuffer = ByteBuffer.wrap(sendData);
+		sendPacket = new DatagramPacket(sendData, sendData.length);
+	}
+
+	/**
+	 * Render SIP OPTIONS for remote address in <I>hostText</I> and send it.
+	 * @param hostLen length of remote address text
+	 * @param target remote address and port
+	 * @return <I>false</I> if channel send buffer is full and nothing was sent
+	 * @throws IOException
+	 */
+	private boolean send(int hostLen, InetSocketAddress target) throws IOException {
+
+		/*
+		 * Sequence carries send time in usec, and probe counter in low bits.
+		 */
+		long sendMicros = (System.nanoTime() - startNanos) / 1000;
+		long callSequence = (sendMicros << SEQUENCE_BITS) | (sequence & ((1 << SEQUENCE_BITS) - 1));
+
+		int length = template.write(sendData, hostText, hostLen, callSequence);
+
+		if (channel != null) {
+			sendBuffer.clear();
+			sendBuffer.limit(length);
+			if (channel.send(sendBuffer, target) == 0) {
+				return false;
+			}
+		}
+		else {
+			sendPacket.setData(sendData, 0, length);
+			sendPacket.setSocketAddress(target);
+			datagramSocket.send(sendPacket);
+		}
+		sequence++;
+		return true;
+	}
+
 	/**
 	 * Send SIP OPTIONS message.
 	 * @param address remote address
@@ -200,69 +394,71 @@ public class Collector implements Runnable {
 	 * @param port port number, usually SIP servers listen on udp port 5060
 	 * @throws IOException
 	 */
-	public void sendSipOptions(InetAddress address, int port) throws IOException {
-		
-		HashMap <String, String> mapVariable = new HashMap<String, String>();
-		
-		/*
-		 *  Variables in SIP OPTIONS message		
-		 */
-		String service = Thread.currentThread().getName();
-		String remote_ip = address.getHostAddress();
-		String transport = "UDP";
-		String local_ip = datagramSocket.getLocalAddress().getHostAddress();
-		String local_port = String.valueOf(datagramSocket.getLocalPort());
-		String call_id = local_ip + "-" + local_port + "-" + String.valueOf(System.currentTimeMillis() + randomNumber(100000, 999999));
-		
-		String[] optionsMessage = {
-				"OPTIONS sip:[service]@[remote_ip] SIP/2.0",
-				"Via: SIP/2.0/[transport] [local_ip]:[local_port]",
-				"Max-Forwards: 70",
-				"To: <sip:[service]@[remote_ip]>",
-				"From: sipp <[service]@[local_ip]:[local_port]>",
-				"Call-ID: [call_id]",
-				"CSeq: 1 OPTIONS",
-				"Contact: <sip:[service]@[local_ip]:[local_port]>",
-				"Accept: application/sdp",
-				"Content-Length: 0",
-				""
-		};
+	public synchronized void sendSipOptions(InetAddress address, int port) throws IOException {
 		
-		mapVariable.put("[service]", service);
-		mapVariable.put("[remote_ip]", remote_ip);
-		mapVariable.put("[transport]", transport);
-		mapVariable.put("[local_ip]", local_ip);
-		mapVariable.put("[local_port]", local_port);
-		mapVariable.put("[call_id]", call_id);
-		
-		StringBuilder sb = new StringBuilder();
-		
-		/*
-		 *  Build message
-		 */
-		for (String line : optionsMessage) {
-			sb.append(line);
-			sb.append("\r\n");
+		initTemplate();
+
+		byte[] remote_ip = OptionsTemplate.hostText(address).getBytes();
+		System.arraycopy(remote_ip, 0, hostText, 0, remote_ip.length);
+
+		if (LoadBalancer.verbose == 3) {
+			LoadBalancer.log(Thread.currentThread().getName(), "OPTIONS message sent to: " + address.getHostAddress() + ":" + port);
 		}
-		
+
 		/*
-		 *  Do replacement of variable fields in SIP OPTIONS message
+		 *  Send to socket
 		 */
-		for (String key : mapVariable.keySet()) {
-			int start = sb.indexOf(key);
-			while (start >= 0) {
-				int end = start + key.length();
-				String str = mapVariable.get(key);
-				sb.replace(start, end, str);
-				start = sb.indexOf(key);
-			}
+		send(remote_ip.length, new InetSocketAddress(address, port));
+
+	}
+
+	/**
+	 * Send multicast queries from given ip interface, eg. for SIP OPTIONS
+	 * to <I>sip.mcast.net</I>. Only when Collector binds its own port.
+	 * @param address local ip interface
+	 * @throws IOException
+	 */
+	public synchronized void setMulticastInterface(InetAddress address) throws IOException {
+		if (channel == null) {
+			return;
 		}
-		
+		NetworkInterface networkInterface = NetworkInterface.getByInetAddress(address);
+		if (networkInterface != null) {
+			channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+		}
+		channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, MULTICAST_TTL);
+	}
+
+	/**
+	 * Send SIP OPTIONS message to ipv4 address, without blocking. Used
+	 * for discovery sweep, address is written to message directly from
+	 * integer value.
+	 * @param address remote ipv4 address as 32-bit integer
+	 * @param port port number, usually SIP servers listen on udp port 5060
+	 * @return <I>false</I> if send buffer is full, and message should be sent again later
+	 * @throws IOException
+	 */
+	public synchronized boolean sendSipOptions(int address, int port) throws IOException {
+
+		initTemplate();
+
+		int hostLen = OptionsTemplate.putIPv4(hostText, 0, address);
+
 		/*
-		 *  Send to socket
+		 * Socket address is made only for new target, eg. once per
+		 * address in sweep. Channel send needs one, there is no send
+		 * to raw address.
 		 */
-		send(sb.toString(), address, port);
+		if (lastTarget == null || lastAddress != address || lastTarget.getPort() != port) {
+			addressRaw[0] = (byte) (address >>> 24);
+			addressRaw[1] = (byte) (address >>> 16);
+			addressRaw[2] = (byte) (address >>> 8);
+			addressRaw[3] = (byte) address;
+			lastTarget = new InetSocketAddress(InetAddress.getByAddress(addressRaw), port);
+			lastAddress = address;
+		}
 
+		return send(hostLen, lastTarget);
 	}
 	
 	/**
@@ -273,7 +469,23 @@ public class Collector implements Runnable {
 		if (isSocketOpen()) {
 			stopDiscovery();
 		}
-		return discoveredHosts;
+		List<String> hosts = new ArrayList<String>(discoveredHosts.size());
+		for (InetAddress address : discoveredHosts.keySet()) {
+			hosts.add(address.getHostAddress());
+		}
+		return hosts;
+	}
+
+	/**
+	 * Get round trip time of SIP OPTIONS to host, measured by first SIP OK.
+	 * Safe to call while replies are collected.
+	 * @param address host address
+	 * @return round trip time in usec, or <I>-1</I> if host did not reply
+	 * or reply could not be matched to query
+	 */
+	public long getRoundTripTime(InetAddress address) {
+		Long rtt = discoveredHosts.get(address);
+		return (rtt != null) ? rtt : -1;
 	}
 
 	/**
@@ -283,6 +495,24 @@ public class Collector implements Runnable {
 	 */
 	public void stopDiscovery() {
 		setSocketOpen(false);
-		datagramSocket.close();
+		if (selector != null) {
+			selector.wakeup();
+			/*
+			 * Wait until receive loop closes channel, since
+			 * port might be bound again by dispatcher.
+			 */
+			synchronized (this) {
+				while (channel.isOpen()) {
+					try {
+						wait(100);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+			}
+		}
+		else {
+			datagramSocket.close();
+		}
 	}
 }
@@ -0,0 +1,95 @@
+import java.util.List;
+
+/**
+ * <H1>Discovery Service</H1>
+ * Runs {@link ServerDiscovery} in background, first immediately at startup
+ * and then every <I>discoveryInterval</I> sec., if it is set. Each SIP server which answers
+ * is added to node list, so dispatcher can start before first discovery
+ * completes, and new servers are used without restart.<BR>
+ * <BR>
+ * Collector binds an ephemeral udp port on discovery interface, since
+ * dispatcher already listens on SIP port. SIP servers reply to port in
+ * <I>Via</I> header of SIP OPTIONS message.<BR>
+ * <BR>
+ * Nodes are never removed by discovery. Node which stops answering is
+ * skipped by dispatcher after <I>deadInterval</I>, same as any other node.
+ * @author eigorde
+ *
+ */
+public class DiscoveryService implements Runnable {
+
+	/**
+	 * Port where SIP servers are expected to listen.
+	 */
+	private int sipPort;
+
+	/**
+	 * <H1>Discovery Service</H1><BR>
+	 * Discover SIP servers which listen on given port.
+	 * @param sipPort udp port of SIP servers, usually <I>5060</I>
+	 */
+	public DiscoveryService(int sipPort) {
+		this.sipPort = sipPort;
+	}
+
+	@Override
+	public void run() {
+
+		while (true)
+			try {
+				scan();
+
+				if (LoadBalancer.discoveryInterval <= 0) {
+					// Discovery runs only once.
+					break;
+				}
+
+				Thread.sleep(LoadBalancer.discoveryInterval * 1000);
+
+			} catch (InterruptedException e) {
+				// Quit while loop.
+				break;
+			}
+	}
+
+	/**
+	 * Run one discovery round, and add servers which answered to node list.
+	 * @throws InterruptedException
+	 */
+	private void scan() throws InterruptedException {
+
+		long startTime = System.currentTimeMillis();
+
+		ServerDiscovery serverDiscovery = new ServerDiscovery(LoadBalancer.discoveryInterface, 0, sipPort,
+				LoadBalancer.discoveryTimeout * 1000);
+		Thread discovery = new Thread(serverDiscovery, "discoveryThread");
+
+		/*
+		 *  Start discovery and wait to complete.
+		 */
+		discovery.start();
+		discovery.join();
+
+		List<String> hosts = serverDiscovery.getDiscoveredHosts();
+
+		String newNodes = "";
+		for (String host : hosts) {
+			if (LoadBalancer.getNodeIndex(host) == -1) {
+				newNodes = newNodes + host + " ";
+			}
+			/*
+			 * New node is added, known node just refreshes tracker.
+			 */
+			LoadBalancer.addNode(host);
+		}
+
+		if (newNodes.length() > 0) {
+			LoadBalancer.log(Thread.currentThread().getName(), "Found: " + newNodes);
+		}
+		if (LoadBalancer.verbose == 3) {
+			LoadBalancer.log(Thread.currentThread().getName(), "Discovery done, " + hosts.size() + " servers answered in "
+					+ (System.currentTimeMillis() - startTime) + " msec.");
+		}
+	}
+
+}
@@ -4,20 +4,24 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
-import java.util.ArrayList;
-import java.util.List;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
 
 /**
  * <H1>Dispatcher</H1>
  * Dispatcher listens on sip port and waits until a call comes.<BR>
  * <BR>
  * A SIP INVITE message will cause a new record in call table,
- * and will be routed to next node in list.<BR>
+ * and will be routed to next node in list. Retransmitted INVITE and re-INVITE
+ * of known call are routed to node of call, see {@link TransactionCache}.<BR>
  * <BR>
  * All other SIP messages are routed to node according to call table.<BR>
  * For entries that do not exist in call table, an error message is printed to
  * console. Such calls are lost.<BR>
  * <BR>
+ * Call which fails, eg. node answers INVITE with 3xx-6xx or caller sends CANCEL,
+ * is removed from call table after ACK, or after timer B if ACK never comes.<BR>
+ * <BR>
  * Each change in call table is also broadcasted to peers so they should update 
  * their call tables. 
  * @author eigorde
@@ -25,6 +29,49 @@ import java.util.List;
  */
 public class Dispatcher implements Runnable {
 	
+    /**
+     * Should be done better, eg. to use any port number for sip,
+     * since nodes might listen on any port for sip message.
+     */
+    private static final int sipPort = 5060;
+
+    /**
+     * <I>Retry-After</I> from node keeps its breaker open at most this many
+     * times <I>breakerOpenTime</I>.
+     */
+    private static final int MAX_RETRY_AFTER = 10;
+
+    /**
+     * Transport for sync with peers.
+     */
+    private SyncTransport syncTransport;
+
+    /**
+     * INVITEs sent to nodes, in order of sending, to detect
+     * nodes which do not answer within inviteTimeout.
+     */
+    private ArrayDeque<CallType> pendingInvites = new ArrayDeque<CallType>();
+
+    /**
+     * 503 response for INVITEs over admission limit.
+     */
+    private RejectTemplate rejectTemplate = new RejectTemplate(Long.toHexString(System.currentTimeMillis()));
+
+    /**
+     * Send buffer for 503 response.
+     */
+    private byte[] rejectData = new byte[rejectTemplate.getMaxLength(LoadBalancer.BUFFER_LEN)];
+
+    /**
+     * INVITE transactions, to route retransmissions to same node.
+     */
+    private TransactionCache transactionCache = new TransactionCache();
+
+    /**
+     * CallIDs of failed or cancelled calls, in order of release time.
+     */
+    private ArrayDeque<String> releaseQueue = new ArrayDeque<String>();
+
 	public Dispatcher () throws SocketException {
 		/*
 		 * Bind now.
@@ -33,26 +80,23 @@ public class Dispatcher implements Runnable {
 			LoadBalancer.anyDatagramSocket = new DatagramSocket(LoadBalancer.bindPort);
 		}
 		
+		/*
+		 * Wake up at least once per sec. to release failed calls.
+		 */
+		LoadBalancer.anyDatagramSocket.setSoTimeout(1000);
+		
+		syncTransport = LoadBalancer.newSyncTransport();
+		
 	}
 	
     @Override
     public void run() {
 
-        byte[] receiveData = new byte[LoadBalancer.BUFFER_LEN];
-
-        McastSync mcastSync = new McastSync();
-
-        Collector collector = new Collector(LoadBalancer.anyDatagramSocket);
-
-        List<String> queryNodeList = new ArrayList<String>();
-        
-        long lastCheckNodeTracker = System.currentTimeMillis();
-
         /*
-         * Should be done better, eg. to use any port number for sip,
-         * since nodes might listen on any port for sip message.
+         * One buffer for whole datagram, it is used only while message
+         * is dispatched, so it is reused for all messages.
          */
-        final int sipPort = 5060;
+        byte[] receiveData = LoadBalancer.bufferPool.acquire(LoadBalancer.MAX_DATAGRAM_LEN);
 
         while (true) 
         	 try {
@@ -65,392 +109,744 @@ public class Dispatcher implements Runnable {
                     LoadBalancer.log(Thread.currentThread().getName(), "waiting for incoming packet.");
                 }
                 
+                // Release calls which did not get ACK in time.
+                synchronized (this) {
+                	releaseExpired(releaseQueue, syncTransport);
+                }
+                
                 // Wait for new udp datagram.
                 LoadBalancer.anyDatagramSocket.receive(receivePacket);
 
-                String message = new String(receivePacket.getData(), 0, receivePacket.getLength());
-                
-                /*
-                 * Check for garbage and discard.
-                 */
-                if (receivePacket.getLength() < 10) {
-                	continue;
+                dispatch(receiveData, receivePacket.getLength(),
+                		(InetSocketAddress) receivePacket.getSocketAddress(), null);
+
+            } catch (SocketTimeoutException e) {
+            	// No datagram, check release timers again.
+            } catch (RuntimeException e) {
+            	/*
+            	 * Malformed datagram, drop it and keep dispatcher running.
+            	 */
+            	LoadBalancer.log(Thread.currentThread().getName(), "Datagram dropped: " + e);
+            } catch (IOException e) {
+                // Print error on console.
+                e.printStackTrace();
+                // Quit while loop.
+                break;
+            }
+
+        // Close udp socket.
+        syncTransport.close();
+    
+    }
+
+    /**
+     * Route one SIP message, received over udp or tcp. This is routing core,
+     * shared by all transports, so it runs for one message at a time.
+     * @param receiveData message bytes, starting at index <I>0</I>
+     * @param length message length
+     * @param source address and port of sender
+     * @param connection tcp connection of sender, or <I>null</I> for udp
+     * @throws IOException
+     */
+    synchronized void dispatch(byte[] receiveData, int length, InetSocketAddress source,
+    		TcpConnection connection) throws IOException {
+
+        DatagramPacket receivePacket = new DatagramPacket(receiveData, length, source);
+
+        String message = new String(receiveData, 0, length);
+        
+        /*
+         * Check for garbage and discard.
+         */
+        if (length < 10) {
+        	return;
+        }
+        
+        String method = message.substring(0, message.indexOf('\n') - 1);
+        String callID = message.substring(message.indexOf("Call-ID:") + "Call-ID:".length() + 1,
+                message.indexOf('\n', message.indexOf("Call-ID:")) - 1);
+        
+        if (LoadBalancer.verbose == 3) {
+            LoadBalancer.log(Thread.currentThread().getName(), "method = " + method + ".");
+            LoadBalancer.log(Thread.currentThread().getName(), "callID = " + callID + ".");
+        }
+        
+        /*
+         * Check SIP message type.
+         */
+        if (method.contains("INVITE")) {
+        	/*
+        	 * Retransmission of INVITE goes to node which got
+        	 * first one, without new sync.
+        	 */
+        	String transactionKey = TransactionCache.getKey(message, callID);
+        	CallType transaction = transactionCache.get(transactionKey);
+        	if (transaction != null) {
+        		forward(receivePacket, transaction);
+        		
+        		if (LoadBalancer.verbose == 3) {
+        			LoadBalancer.log(Thread.currentThread().getName(), "INVITE retransmission routed to "
+        					+ transaction.dstAddress.getHostAddress() + ": " + callID);
+        		}
+        		return;
+        	}
+        	
+        	/*
+        	 * Re-INVITE in existing dialog, or INVITE with credentials
+        	 * after challenge, stays on node of call.
+        	 */
+        	CallType callPointer = LoadBalancer.getCallRecord(callID);
+        	if (callPointer != null) {
+        		/*
+        		 * New INVITE after redirect or challenge stops release timer.
+        		 */
+        		if (!callPointer.established) {
+        			callPointer.releaseAt = 0;
+        			callPointer.failed = false;
+        		}
+        		transactionCache.put(transactionKey, callPointer);
+        		forward(receivePacket, callPointer);
+        		
+        		if (LoadBalancer.verbose == 3) {
+        			LoadBalancer.log(Thread.currentThread().getName(), "Re-INVITE routed by call table: " + callID);
+        		}
+        		return;
+        	}
+        	
+        	/*
+        	 * Source over its rate gets 503, before any node is
+        	 * selected.
+        	 */
+        	long retryAfter = LoadBalancer.admissionControl.admit(receivePacket.getAddress());
+        	if (retryAfter > 0) {
+        		// Message over tcp can be longer than udp buffer.
+        		if (rejectData.length < rejectTemplate.getMaxLength(length)) {
+        			rejectData = new byte[rejectTemplate.getMaxLength(length)];
+        		}
+        		int rejectLength = rejectTemplate.write(rejectData, receiveData, length, retryAfter);
+        		send(rejectData, rejectLength, receivePacket.getAddress(), receivePacket.getPort(), connection);
+        		
+        		if (LoadBalancer.verbose == 3) {
+        			LoadBalancer.log(Thread.currentThread().getName(), "Call rejected, source "
+        					+ receivePacket.getAddress().getHostAddress() + " over admission rate: " + callID);
+        		}
+        		
+        		// Increase stat. counter.
+        		LoadBalancer.stat.increment(LoadBalancer.stat.SIP_REJECTED);
+        		LoadBalancer.metrics.increment(Metrics.DROP_REJECTED);
+        		return;
+        	}
+        	
+        	/*
+        	 * Nodes which did not answer earlier INVITEs in time
+        	 * are reported to circuit breaker, before node is selected.
+        	 */
+        	checkInviteTimeouts(pendingInvites);
+        	
+            /*
+             * SIP INVITE should be distributed across nodes in
+             * node list, static, discovered or reported to watchdog.
+             */
+        	String currentNode = LoadBalancer.getCurrentNode();
+        	
+        	/*
+        	 * Node list can be empty, eg. discovery did not find
+        	 * any SIP server yet. Drop call, caller will retry.
+        	 */
+        	if (currentNode == null) {
+                if (LoadBalancer.verbose > 1) {
+                    LoadBalancer.log(Thread.currentThread().getName(), "No node available, call dropped: " + callID);
                 }
+                LoadBalancer.metrics.increment(Metrics.DROP_NO_NODE);
+        		return;
+        	}
+
+        	/*
+        	 * CallID length is 1 byte in sync frames and on disk,
+        	 * longer one can not be stored.
+        	 */
+        	if (callID.getBytes().length > SyncFrame.MAX_CALLID_LEN) {
+        		if (LoadBalancer.verbose > 1) {
+        			LoadBalancer.log(Thread.currentThread().getName(), "CallID too long, call dropped.");
+        		}
+        		return;
+        	}
+
+            // Create new call type object which will be stored in call table and send to peers for sync.
+            CallType callType = new CallType(receivePacket.getAddress(), receivePacket.getPort(),
+            		InetAddress.getByName(currentNode), sipPort);
+            
+            // Caller on tcp gets responses on same connection.
+            callType.connection = connection;
+            
+            // Store new call in table, and its first transaction.
+            LoadBalancer.putCallRecord(callID, callType);
+            transactionCache.put(transactionKey, callType);
+
+            // Immediately sync. with peers.
+            syncTransport.sendImmediately(callID, callType);
+            
+            if (LoadBalancer.verbose == 3) {                    
+                LoadBalancer.log(Thread.currentThread().getName(), "Call stored in table [" + callType.srcAddress.getHostAddress() + ":"
+                    + callType.srcPort + " --> " + callType.dstAddress.getHostAddress() + ":" + callType.dstPort
+                    + "].");
+            }
+            
+            // Finally, forward datagram to node.
+            callType.inviteSentAt = System.nanoTime();
+            sendToNode(receiveData, length, callType);
+            LoadBalancer.getNodeInfo(currentNode).breaker.callSent(System.currentTimeMillis());
+            pendingInvites.add(callType);
+            
+            // Increase stat. counter.
+        	LoadBalancer.stat.increment(LoadBalancer.stat.SIP_INVITE);
+        	LoadBalancer.metrics.increment(Metrics.CALLS);
+        	
+            /*
+             * Adjust nodePointer to next el. in list.
+             * This has to be done here.
+             */
+        	LoadBalancer.updateCurrentNode();
+
+        }
+        else if (method.contains("REGISTER")) {
+        	/*
+        	 * SIP REGISTER message should update phone
+        	 * table and and store source ip address. 
+        	 */
+        	
+        	
+        	// IP addr. of received packet (from).
+        	String ipAddress = receivePacket.getAddress().getHostAddress();
+            
+        	// Log for debugging
+    		if (LoadBalancer.verbose == 3) {
+    			/*
+    			 * Output whole message.
+    			 */
+    			LoadBalancer.log(Thread.currentThread().getName(), "REGISTAR request received from " + ipAddress + "\n" + message);
+    		}
+    		else if (LoadBalancer.verbose == 2) {
+    			/*
+    			 * Just inform.
+    			 */
+    			LoadBalancer.log(Thread.currentThread().getName(), "REGISTAR request received from: " + ipAddress);
+    		}
+    		
+        	// Nonce and md5result might be present in REGISTER message
+        	String nonce = "";
+        	String md5result = "";
+        	
+        	// Complete Via, To, From, CSeq, Content-Length, Expires lines of REGISTER message
+        	int idxSpace = method.indexOf(' ');
+        	String requestUri = method.substring(idxSpace + 1,
+                    method.indexOf(' ', idxSpace + 1));
+            String via = message.substring(message.indexOf("Via:"),
+                    message.indexOf('\n', message.indexOf("Via:")) - 1);
+            String to = message.substring(message.indexOf("To:"),
+                    message.indexOf('\n', message.indexOf("To:")) - 1);
+            String from = message.substring(message.indexOf("From:"),
+                    message.indexOf('\n', message.indexOf("From:")) - 1);
+            String cseq = message.substring(message.indexOf("CSeq:"),
+                    message.indexOf('\n', message.indexOf("CSeq:")) - 1);
+            String contentLen = message.substring(message.indexOf("Content-Length:"),
+                    message.indexOf('\n', message.indexOf("Content-Length:")) - 1);
+            String expires = message.substring(message.indexOf("Expires:"),
+                    message.indexOf('\n', message.indexOf("Expires:")) - 1);
+                                
+            int idxContact = message.indexOf("Contact:");
+            String contact = "";
+            if (idxContact > 0) {
+            	contact = message.substring(idxContact,
+            			message.indexOf('\n', idxContact) - 1);
+            }
+            else {
+            	contact = "Contact: <" + requestUri + ">";
+            }
+            
+            /*
+             * Extract nonce or generate new one.
+             */
+            if (message.indexOf("nonce") > 0) {
+                nonce = message.substring(message.indexOf("nonce") + 7,
+                        message.indexOf('\"', message.indexOf("nonce") + 7));                    	
+            }
+            else {
+            	nonce = String.format("%x", System.currentTimeMillis());
+            }
+            
+            /*
+             * Try to extract md5 response if possible.
+             */
+            if (message.indexOf("Authorization:") > 0) {
+            	int idxAuthorization = message.indexOf("Authorization:");
+                String authorization = message.substring(idxAuthorization,
+                        message.indexOf('\n', idxAuthorization));
                 
-                String method = message.substring(0, message.indexOf('\n') - 1);
-                String callID = message.substring(message.indexOf("Call-ID:") + "Call-ID:".length() + 1,
-                        message.indexOf('\n', message.indexOf("Call-ID:")) - 1);
+                int idxResponse = authorization.indexOf("response=");
+                md5result = authorization.substring(
+                		idxResponse + 10,
+                		authorization.indexOf('\"', idxResponse + 10));
+            }
+            
+            /*
+             * Extract user part in From: line:
+             * From: <sip:1001@192.168.110.1;transport=UDP>;tag=485af632
+             * user = 1001
+             */
+            String user = from.substring(from.indexOf('<') + 1, from.indexOf('>') - 1);
+            user = user.substring(0, user.indexOf('@'));
+            if (user.indexOf(':') > 0) {
+            	user = user.substring(user.indexOf(':') + 1);
+            }
+
+            /*
+             * Build OK message and replay.
+             */
+            String[] okMessage = {
+            		"SIP/2.0 200 OK",
+            		via.replaceAll("rport", "received=" + ipAddress),
+            		from,
+            		to,            				
+            		"Call-ID: " + callID,
+            		cseq,
+            		"Server: " + LoadBalancer.ver,
+            		"Allow: INVITE, ACK, CANCEL, OPTIONS, BYE, REFER, SUBSCRIBE, NOTIFY, INFO, PUBLISH",
+            		"Supported: replaces, timer",                    		
+            		contact,
+            		contentLen,
+            		expires				
+            };
+
+            /*
+             * Build Unauthorized message and replay
+             */
+            String[] unauthorizedMessage = {
+            		"SIP/2.0 401 Unauthorized",
+            		via + ";received=" + ipAddress + ";rport=" + receivePacket.getPort(),
+            		from,
+            		to,            				
+            		"Call-ID: " + callID,
+            		cseq,
+            		"Server: " + LoadBalancer.ver,
+            		"Allow: INVITE, ACK, CANCEL, OPTIONS, BYE, REFER, SUBSCRIBE, NOTIFY, INFO, PUBLISH",
+            		"Supported: replaces, timer",
+            		"WWW-Authenticate: Digest algorithm=MD5, realm=\"" + LoadBalancer.realm + "\", nonce=\"" + nonce + "\"",
+            		contentLen,				
+            };
+
+        	
+    		StringBuilder sb = new StringBuilder();
+    		
+    		if (expires.endsWith(" 0")) {
+    			/*
+    			 * Unregister user or phone number when
+    			 *  Expires: 0 
+    			 * line is present in REGISTER message.
+    			 */
+    			LoadBalancer.registrator.unregister(user);
+				/*
+				 *  Build OK message.
+				 */
+				for (String line : okMessage) {
+					sb.append(line);
+					sb.append("\r\n");
+				} 
+    		}
+    		else {
+    			/*
+    			 * Try to perform register in db.
+    			 */
+    			if (LoadBalancer.registrator.register(user, ipAddress, LoadBalancer.realm, nonce, requestUri, md5result)) {
+    				/*
+    				 *  Build OK message.
+    				 */
+    				for (String line : okMessage) {
+    					sb.append(line);
+    					sb.append("\r\n");
+    				}                		
+    			}
+    			else {
+    				/*
+    				 *  Build Unauthorized message.
+    				 */
+    				for (String line : unauthorizedMessage) {
+    					sb.append(line);
+    					sb.append("\r\n");
+    				}                		
+    			}
+    		}
+    		
+    		sb.append("\r\n");
+    		
+    		String replayMessage = sb.toString();
+    				
+            // Log for debugging
+    		if (LoadBalancer.verbose == 3) {
+    			/*
+    			 * Output whole message.
+    			 */
+    			LoadBalancer.log(Thread.currentThread().getName(),
+    					"REGISTAR replay sent back to: " + ipAddress + "\n" + replayMessage);
+    		}
+    		else if (LoadBalancer.verbose == 2) {
+    			/*
+    			 * Just inform.
+    			 */
+    			LoadBalancer.log(Thread.currentThread().getName(), "REGISTAR replay sent back to: " + ipAddress);
+    		}
+            
+            // Build replay.
+            byte[] replayData = replayMessage.getBytes();
+            send(replayData, replayData.length, receivePacket.getAddress(), receivePacket.getPort(), connection);
+            
+        }
+        else {
+            /*
+             * Locate call in call table.
+             */
+            CallType callPointer = LoadBalancer.getCallRecord(callID);
+
+            if (callPointer == null) {
+
+            	// This is error condition !
+            	if (LoadBalancer.verbose > 0) {                        
+            		LoadBalancer.log(Thread.currentThread().getName(), "callID " + callID + " not found in call table.");
+            	}
+
+            	// Increase stat. counter.
+            	LoadBalancer.stat.increment(LoadBalancer.stat.SIP_NOT_FOUND);
+            	LoadBalancer.metrics.increment(Metrics.DROP_NOT_FOUND);
+            } else {
                 
-                if (LoadBalancer.verbose == 3) {
-                    LoadBalancer.log(Thread.currentThread().getName(), "method = " + method + ".");
-                    LoadBalancer.log(Thread.currentThread().getName(), "callID = " + callID + ".");
+                if (LoadBalancer.verbose == 3) {                        
+                    LoadBalancer.log(Thread.currentThread().getName(), "Call found in table [" + callPointer.srcAddress.getHostAddress() + ":"
+                        + callPointer.srcPort + " --> " + callPointer.dstAddress.getHostAddress() + ":"
+                        + callPointer.dstPort + "].");
                 }
                 
                 /*
-                 * Check SIP message type.
+                 * Check from which direction SIP message came.
                  */
-                if (method.contains("INVITE")) {
-                    /*
-                     * SIP INVITE should be distributed across nodes in
-                     * node list, or to node which has been last reported to watchdog.
-                     */
-                	String currentNode = LoadBalancer.getCurrentNode();
-                	
-                	// Build a new udp datagram.
-                    DatagramPacket sendPacket = new DatagramPacket(receiveData, message.length(), new InetSocketAddress(
-                            InetAddress.getByName(currentNode), sipPort));
-
-                    // Create new call type object which will be stored in call table and send to peers for sync.
-                    CallType callType = new CallType(receivePacket.getAddress(), receivePacket.getPort(),
-                    		InetAddress.getByName(currentNode), sipPort);
-                    
-                    // Store new call in table.
-                    LoadBalancer.putCallRecord(callID, callType);
-
-                    // Immediately sync. with peers.
-                    mcastSync.sendImmediately(callID, callType);
-                    
-                    if (LoadBalancer.verbose == 3) {                    
-                        LoadBalancer.log(Thread.currentThread().getName(), "Call stored in table [" + callType.srcAddress.getHostAddress() + ":"
-                            + callType.srcPort + " --> " + callType.dstAddress.getHostAddress() + ":" + callType.dstPort
-                            + "].");
-                    }
-                    
-                    // Finally, forward datagram to node.
-                    LoadBalancer.anyDatagramSocket.send(sendPacket);
-                    
-                    // Increase stat. counter.
-                	LoadBalancer.stat.increment(LoadBalancer.stat.SIP_INVITE);
-                	
-                    /*
-                     * Adjust nodePointer to next el. in list in case
-                     * that watchdog is disabled. This has to be done
-                     * here.
-                     */
-                	LoadBalancer.updateCurrentNode();
-
-                	/*
-                	 * Check if nodes in tracker list should be updated.
-                	 * But only if SIP OPTIONS tracking is enabled.
-                	 */
-                	long delta = System.currentTimeMillis() - lastCheckNodeTracker;
-                	if (delta > LoadBalancer.helloInterval && LoadBalancer.sipOptions) {
-                		queryNodeList.clear();
-                		lastCheckNodeTracker = System.currentTimeMillis();
-                		
-                		for (Integer index : LoadBalancer.getNodeTrackerKeySet()) {
-                			delta = lastCheckNodeTracker - LoadBalancer.getNodeTracker(index);
-                			String node = LoadBalancer.getNode(index);
-                			if (delta > LoadBalancer.helloInterval) {
-                				/*
-                				 * Query each node that didn't send any packet with in helloInterval time.
-                				 * This will also query dead nodes. Maybe some of them came up again.
-                				 */
-                				collector.sendSipOptions(node, sipPort);
-                				queryNodeList.add(node);
-                			}
-                			else if (delta > LoadBalancer.deadInterval &&
-                					delta < LoadBalancer.deadInterval + LoadBalancer.helloInterval) {
-                    			/*
-                    			 * Dead node. Just report.
-                    			 */
-                                if (LoadBalancer.verbose > 1) {                
-                                    LoadBalancer.log(Thread.currentThread().getName(), "Dead node: " + node);
-                                }  
-                			}
-                		}
-                	}
-                	
-                }
-                else if (method.contains("REGISTER")) {
+                if (receivePacket.getAddress().equals(callPointer.dstAddress)) {
                 	/*
-                	 * SIP REGISTER message should update phone
-                	 * table and and store source ip address. 
+                	 * SIP server ---> Load balancer ---> outside network --> remote SIP peer
                 	 */
-                	
-                	
-                	// IP addr. of received packet (from).
-                	String ipAddress = receivePacket.getAddress().getHostAddress();
-                    
-                	// Log for debugging
-            		if (LoadBalancer.verbose == 3) {
-            			/*
-            			 * Output whole message.
-            			 */
-            			LoadBalancer.log(Thread.currentThread().getName(), "REGISTAR request received from " + ipAddress + "\n" + message);
-            		}
-            		else if (LoadBalancer.verbose == 2) {
-            			/*
-            			 * Just inform.
-            			 */
-            			LoadBalancer.log(Thread.currentThread().getName(), "REGISTAR request received from: " + ipAddress);
-            		}
-            		
-                	// Nonce and md5result might be present in REGISTER message
-                	String nonce = "";
-                	String md5result = "";
-                	
-                	// Complete Via, To, From, CSeq, Content-Length, Expires lines of REGISTER message
-                	int idxSpace = method.indexOf(' ');
-                	String requestUri = method.substring(idxSpace + 1,
-                            method.indexOf(' ', idxSpace + 1));
-                    String via = message.substring(message.indexOf("Via:"),
-                            message.indexOf('\n', message.indexOf("Via:")) - 1);
-                    String to = message.substring(message.indexOf("To:"),
-                            message.indexOf('\n', message.indexOf("To:")) - 1);
-                    String from = message.substring(message.indexOf("From:"),
-                            message.indexOf('\n', message.indexOf("From:")) - 1);
-                    String cseq = message.substring(message.indexOf("CSeq:"),
-                            message.indexOf('\n', message.indexOf("CSeq:")) - 1);
-                    String contentLen = message.substring(message.indexOf("Content-Length:"),
-                            message.indexOf('\n', message.indexOf("Content-Length:")) - 1);
-                    String expires = message.substring(message.indexOf("Expires:"),
-                            message.indexOf('\n', message.indexOf("Expires:")) - 1);
-                                        
-                    int idxContact = message.indexOf("Contact:");
-                    String contact = "";
-                    if (idxContact > 0) {
-                    	contact = message.substring(idxContact,
-                    			message.indexOf('\n', idxContact) - 1);
-                    }
-                    else {
-                    	contact = "Contact: <" + requestUri + ">";
-                    }
+                    sendToCaller(receiveData, length, callPointer);
                     
                     /*
-                     * Extract nonce or generate new one.
+                     * Update tracker.
                      */
-                    if (message.indexOf("nonce") > 0) {
-                        nonce = message.substring(message.indexOf("nonce") + 7,
-                                message.indexOf('\"', message.indexOf("nonce") + 7));                    	
-                    }
-                    else {
-                    	nonce = String.format("%x", System.currentTimeMillis());
-                    }
+                    LoadBalancer.updateNodeTracker(callPointer.dstAddress);
                     
                     /*
-                     * Try to extract md5 response if possible.
+                     * First response to INVITE gives call setup time of node.
                      */
-                    if (message.indexOf("Authorization:") > 0) {
-                    	int idxAuthorization = message.indexOf("Authorization:");
-                        String authorization = message.substring(idxAuthorization,
-                                message.indexOf('\n', idxAuthorization));
-                        
-                        int idxResponse = authorization.indexOf("response=");
-                        md5result = authorization.substring(
-                        		idxResponse + 10,
-                        		authorization.indexOf('\"', idxResponse + 10));
+                    long inviteSentAt = callPointer.inviteSentAt;
+                    if (inviteSentAt != 0) {
+                    	callPointer.inviteSentAt = 0;
+                    	long setupTime = (System.nanoTime() - inviteSentAt) / 1000;
+                    	LoadBalancer.getNodeInfo(callPointer.dstAddress.getHostAddress()).setupAnswered(setupTime);
+                    	LoadBalancer.metrics.setupAnswered(setupTime);
                     }
                     
                     /*
-                     * Extract user part in From: line:
-                     * From: <sip:1001@192.168.110.1;transport=UDP>;tag=485af632
-                     * user = 1001
+                     * Feed circuit breaker with responses to INVITE.
                      */
-                    String user = from.substring(from.indexOf('<') + 1, from.indexOf('>') - 1);
-                    user = user.substring(0, user.indexOf('@'));
-                    if (user.indexOf(':') > 0) {
-                    	user = user.substring(user.indexOf(':') + 1);
+                    if (method.startsWith("SIP/2.0 ") && isInviteResponse(message)) {
+                    	int status = getStatusCode(method);
+                    	updateBreaker(callPointer.dstAddress.getHostAddress(), status, message);
+                    	
+                    	/*
+                    	 * Track dialog state. Failed call setup is released
+                    	 * when caller sends ACK, or when timer expires.
+                    	 * Redirect and challenge (401, 407) are released only by
+                    	 * timer, since caller may send new INVITE with same
+                    	 * Call-ID, which must reach same node.
+                    	 */
+                    	if (status >= 200 && status < 300) {
+                    		callPointer.established = true;
+                    		callPointer.releaseAt = 0;
+                    	}
+                    	else if (status >= 300 && !callPointer.established) {
+                    		callPointer.failed = status >= 400 && status != 401 && status != 407;
+                    		scheduleRelease(releaseQueue, callID, callPointer);
+                    	}
                     }
-
-                    /*
-                     * Build OK message and replay.
-                     */
-                    String[] okMessage = {
-                    		"SIP/2.0 200 OK",
-                    		via.replaceAll("rport", "received=" + ipAddress),
-                    		from,
-                    		to,            				
-                    		"Call-ID: " + callID,
-                    		cseq,
-                    		"Server: " + LoadBalancer.ver,
-                    		"Allow: INVITE, ACK, CANCEL, OPTIONS, BYE, REFER, SUBSCRIBE, NOTIFY, INFO, PUBLISH",
-                    		"Supported: replaces, timer",                    		
-                    		contact,
-                    		contentLen,
-                    		expires				
-                    };
-
-                    /*
-                     * Build Unauthorized message and replay
-                     */
-                    String[] unauthorizedMessage = {
-                    		"SIP/2.0 401 Unauthorized",
-                    		via + ";received=" + ipAddress + ";rport=" + receivePacket.getPort(),
-                    		from,
-                    		to,            				
-                    		"Call-ID: " + callID,
-                    		cseq,
-                    		"Server: " + LoadBalancer.ver,
-                    		"Allow: INVITE, ACK, CANCEL, OPTIONS, BYE, REFER, SUBSCRIBE, NOTIFY, INFO, PUBLISH",
-                    		"Supported: replaces, timer",
-                    		"WWW-Authenticate: Digest algorithm=MD5, realm=\"" + LoadBalancer.realm + "\", nonce=\"" + nonce + "\"",
-                    		contentLen,				
-                    };
-
-                	
-            		StringBuilder sb = new StringBuilder();
-            		
-            		if (expires.endsWith(" 0")) {
-            			/*
-            			 * Unregister user or phone number when
-            			 *  Expires: 0 
-            			 * line is present in REGISTER message.
-            			 */
-            			LoadBalancer.registrator.unregister(user);
-        				/*
-        				 *  Build OK message.
-        				 */
-        				for (String line : okMessage) {
-        					sb.append(line);
-        					sb.append("\r\n");
-        				} 
-            		}
-            		else {
-            			/*
-            			 * Try to perform register in db.
-            			 */
-            			if (LoadBalancer.registrator.register(user, ipAddress, LoadBalancer.realm, nonce, requestUri, md5result)) {
-            				/*
-            				 *  Build OK message.
-            				 */
-            				for (String line : okMessage) {
-            					sb.append(line);
-            					sb.append("\r\n");
-            				}                		
-            			}
-            			else {
-            				/*
-            				 *  Build Unauthorized message.
-            				 */
-            				for (String line : unauthorizedMessage) {
-            					sb.append(line);
-            					sb.append("\r\n");
-            				}                		
-            			}
-            		}
-            		
-            		sb.append("\r\n");
-            		
-            		String replayMessage = sb.toString();
-            				
-                    // Log for debugging
-            		if (LoadBalancer.verbose == 3) {
-            			/*
-            			 * Output whole message.
-            			 */
-            			LoadBalancer.log(Thread.currentThread().getName(),
-            					"REGISTAR replay sent back to: " + ipAddress + "\n" + replayMessage);
-            		}
-            		else if (LoadBalancer.verbose == 2) {
-            			/*
-            			 * Just inform.
-            			 */
-            			LoadBalancer.log(Thread.currentThread().getName(), "REGISTAR replay sent back to: " + ipAddress);
-            		}
                     
-                    // Build replay.
-                    DatagramPacket sendPacket = new DatagramPacket(replayMessage.getBytes(), replayMessage.getBytes().length,
-                    		new InetSocketAddress(receivePacket.getAddress(), receivePacket.getPort()));
-                    LoadBalancer.anyDatagramSocket.send(sendPacket);
+                } else {
+                	/*
+                	 * Remote SIP peer ---> outside network --> Load balancer ---> SIP server  
+                	 */                        	
+                    sendToNode(receiveData, length, callPointer);
+                }
+            	
+                /*
+                 * CANCEL of call which is not established yet
+                 * starts release timer, in case node does not answer.
+                 */
+                if (method.startsWith("CANCEL") && !callPointer.established) {
+                	scheduleRelease(releaseQueue, callID, callPointer);
+                }
+                
+                /*
+                 * ACK to failure response ends failed call setup.
+                 */
+                if (method.startsWith("ACK") && callPointer.failed && callPointer.releaseAt != 0
+                		&& !callPointer.established) {
+                	releaseCall(callID, callPointer, syncTransport);
+                }
+                /*
+                 * Remove call from table if bye flag is set.
+                 */
+                else if (callPointer.bye) {
+                    LoadBalancer.removeCallRecord(callID);
                     
+                    if (LoadBalancer.verbose == 3) {                            
+                        LoadBalancer.log(Thread.currentThread().getName(), "CallID " + callID + " removed.");
+                    }
+                    
+                    syncTransport.sendImmediately(callID, callPointer);
+                    
+                    // Increase stat. counter.
+                	LoadBalancer.stat.increment(LoadBalancer.stat.SIP_BYE);
                 }
-                else {
-                    /*
-                     * Locate call in call table.
-                     */
-                    CallType callPointer = LoadBalancer.getCallRecord(callID);
 
-                    if (callPointer == null) {
-                    	
-                    	if (method.contains("200 OK") &&
-                    			queryNodeList.contains(receivePacket.getAddress().getHostAddress())) {
-                    		/*
-                    		 * This is SIP OK reply to SIP OPTIONS query.
-                    		 * Update node tracker for that ip address.
-                    		 */
-                    		LoadBalancer.updateNodeTracker(receivePacket.getAddress());
-                    		
-                    	}
-                    	else {
+                /*
+                 * Set bye flag upon SIP BYE message arrival.
+                 */
+                if (method.contains("BYE")) {
+                    callPointer.bye = true;
+                }
 
-                    		// This is error condition !
-                    		if (LoadBalancer.verbose > 0) {                        
-                    			LoadBalancer.log(Thread.currentThread().getName(), "callID " + callID + " not found in call table.");
-                    		}
+            }
+        }
 
-                    		// Increase stat. counter.
-                    		LoadBalancer.stat.increment(LoadBalancer.stat.SIP_NOT_FOUND);
-                    	}
-                    } else {
-                        
-                        if (LoadBalancer.verbose == 3) {                        
-                            LoadBalancer.log(Thread.currentThread().getName(), "Call found in table [" + callPointer.srcAddress.getHostAddress() + ":"
-                                + callPointer.srcPort + " --> " + callPointer.dstAddress.getHostAddress() + ":"
-                                + callPointer.dstPort + "].");
-                        }
-                        
-                        /*
-                         * Check from which direction SIP message came.
-                         */
-                        if (receivePacket.getAddress().equals(callPointer.dstAddress)) {
-                        	/*
-                        	 * SIP server ---> Load balancer ---> outside network --> remote SIP peer
-                        	 */
-                            DatagramPacket sendPacket = new DatagramPacket(receiveData, message.length(), new InetSocketAddress(
-                                    callPointer.srcAddress, callPointer.srcPort));
-                            LoadBalancer.anyDatagramSocket.send(sendPacket);
-                            
-                            /*
-                             * Update tracker.
-                             */
-                            LoadBalancer.updateNodeTracker(callPointer.dstAddress);
-                            
-                        } else {
-                        	/*
-                        	 * Remote SIP peer ---> outside network --> Load balancer ---> SIP server  
-                        	 */                        	
-                            DatagramPacket sendPacket = new DatagramPacket(receiveData, message.length(), new InetSocketAddress(
-                                    callPointer.dstAddress, callPointer.dstPort));
-                            LoadBalancer.anyDatagramSocket.send(sendPacket);
-                        }
-                    	
-                        /*
-                         * Remove call from table if bye flag is set.
-                         */
-                        if (callPointer.bye) {
-                            LoadBalancer.removeCallRecord(callID);
-                            
-                            if (LoadBalancer.verbose == 3) {                            
-                                LoadBalancer.log(Thread.currentThread().getName(), "CallID " + callID + " removed.");
-                            }
-                            
-                            mcastSync.sendImmediately(callID, callPointer);
-                            
-                            // Increase stat. counter.
-                        	LoadBalancer.stat.increment(LoadBalancer.stat.SIP_BYE);
-                        }
-
-                        /*
-                         * Set bye flag upon SIP BYE message arrival.
-                         */
-                        if (method.contains("BYE")) {
-                            callPointer.bye = true;
-                        }
+    }
 
-                    }
-                }
+    /**
+     * Forward message according to call record, to node if it came
+     * from caller, or to caller if it came from node.
+     * @param receivePacket received message
+     * @param callPointer call record
+     * @throws IOException
+     */
+    private void forward(DatagramPacket receivePacket, CallType callPointer) throws IOException {
+    	if (receivePacket.getAddress().equals(callPointer.dstAddress)) {
+    		sendToCaller(receivePacket.getData(), receivePacket.getLength(), callPointer);
+    	}
+    	else {
+    		sendToNode(receivePacket.getData(), receivePacket.getLength(), callPointer);
+    	}
+    }
 
-            } catch (IOException e) {
-                // Print error on console.
-                e.printStackTrace();
-                // Quit while loop.
-                break;
-            }
+    /**
+     * Send message to node of call. Call from tcp caller goes to node over
+     * tcp too, on connection shared by all calls of that node.
+     * @param data message
+     * @param length message length
+     * @param callPointer call record
+     * @throws IOException
+     */
+    private void sendToNode(byte[] data, int length, CallType callPointer) throws IOException {
+    	LoadBalancer.metrics.increment(Metrics.TO_NODES);
+    	InetSocketAddress node = new InetSocketAddress(callPointer.dstAddress, callPointer.dstPort);
+    	if (callPointer.connection != null && LoadBalancer.tcpTransport != null) {
+    		send(data, length, callPointer.dstAddress, callPointer.dstPort,
+    				LoadBalancer.tcpTransport.getNodeConnection(node));
+    	}
+    	else {
+    		LoadBalancer.anyDatagramSocket.send(new DatagramPacket(data, length, node));
+    	}
+    }
 
-        // Close udp socket.
-        mcastSync.close();
-    
+    /**
+     * Send message to caller, on its tcp connection or over udp.
+     * @param data message
+     * @param length message length
+     * @param callPointer call record
+     * @throws IOException
+     */
+    private void sendToCaller(byte[] data, int length, CallType callPointer) throws IOException {
+    	LoadBalancer.metrics.increment(Metrics.TO_CALLERS);
+    	send(data, length, callPointer.srcAddress, callPointer.srcPort, callPointer.connection);
+    }
+
+    /**
+     * Send message on tcp connection, or over udp if there is none.
+     * Message for closed connection is dropped, since tcp peer does not
+     * listen on its source port.
+     * @param data message
+     * @param length message length
+     * @param address ip address of peer
+     * @param port port of peer
+     * @param connection tcp connection, or <I>null</I> for udp
+     * @throws IOException
+     */
+    private void send(byte[] data, int length, InetAddress address, int port, TcpConnection connection) throws IOException {
+    	if (connection == null) {
+    		LoadBalancer.anyDatagramSocket.send(new DatagramPacket(data, length, new InetSocketAddress(address, port)));
+    	}
+    	else if (!connection.send(data, length)) {
+    		LoadBalancer.metrics.increment(Metrics.DROP_CLOSED);
+    		if (LoadBalancer.verbose > 1) {
+    			LoadBalancer.log(Thread.currentThread().getName(), "Message dropped, connection to "
+    					+ address.getHostAddress() + ":" + port + " is closed.");
+    		}
+    	}
+    }
+
+    /**
+     * Report nodes which did not answer INVITE within <I>inviteTimeout</I>
+     * to their circuit breaker. INVITEs are checked in order of sending, and
+     * answered ones are just dropped from queue.
+     * @param pendingInvites INVITEs sent to nodes, oldest first
+     */
+    private void checkInviteTimeouts(ArrayDeque<CallType> pendingInvites) {
+    	long now = System.nanoTime();
+    	CallType callType;
+    	while ((callType = pendingInvites.peek()) != null) {
+    		long inviteSentAt = callType.inviteSentAt;
+    		if (inviteSentAt != 0 && now - inviteSentAt < LoadBalancer.inviteTimeout * 1000000L) {
+    			break;
+    		}
+    		pendingInvites.poll();
+    		if (inviteSentAt != 0) {
+    			callType.inviteSentAt = 0;
+    			String node = callType.dstAddress.getHostAddress();
+    			if (LoadBalancer.getNodeInfo(node).breaker.failure(0) && LoadBalancer.verbose > 1) {
+    				LoadBalancer.log(Thread.currentThread().getName(), "Circuit breaker opened for node " + node + ", INVITE timeout.");
+    			}
+    		}
+    	}
+    }
+
+    /**
+     * Check if SIP response is response to INVITE, by its CSeq line.
+     * @param message SIP response
+     * @return <I>true</I> for response to INVITE
+     */
+    private static boolean isInviteResponse(String message) {
+    	int idxCSeq = message.indexOf("CSeq:");
+    	if (idxCSeq < 0) {
+    		return false;
+    	}
+    	int idxEnd = message.indexOf('\n', idxCSeq);
+    	if (idxEnd < 0) {
+    		idxEnd = message.length();
+    	}
+    	return message.substring(idxCSeq, idxEnd).contains("INVITE");
+    }
+
+    /**
+     * Get status code of SIP response.
+     * @param statusLine first line of response, eg. <I>SIP/2.0 503 Service Unavailable</I>
+     * @return status code, or <I>-1</I> if it is not valid
+     */
+    private static int getStatusCode(String statusLine) {
+    	try {
+    		return Integer.parseInt(statusLine.substring(8, 11));
+    	} catch (RuntimeException e) {
+    		return -1;
+    	}
+    }
+
+    /**
+     * Schedule release of call record, if it is not scheduled yet.
+     * @param releaseQueue CallIDs in order of release time
+     * @param callID CallID of call
+     * @param callPointer call record
+     */
+    private void scheduleRelease(ArrayDeque<String> releaseQueue, String callID, CallType callPointer) {
+    	if (callPointer.releaseAt == 0) {
+    		callPointer.releaseAt = System.currentTimeMillis() + TransactionCache.TRANSACTION_TIME;
+    		releaseQueue.add(callID);
+    	}
+    }
+
+    /**
+     * Release calls whose release time has passed. Queue is in order of
+     * release time, since all calls wait same time.
+     * @param releaseQueue CallIDs in order of release time
+     * @param syncTransport transport for removal sync with peers
+     * @throws IOException
+     */
+    private void releaseExpired(ArrayDeque<String> releaseQueue, SyncTransport syncTransport) throws IOException {
+    	long currentTime = System.currentTimeMillis();
+    	String callID;
+    	while ((callID = releaseQueue.peek()) != null) {
+    		CallType callPointer = LoadBalancer.getCallRecord(callID);
+    		if (callPointer == null || callPointer.releaseAt == 0) {
+    			// Already released, or call was established meanwhile.
+    			releaseQueue.poll();
+    			continue;
+    		}
+    		if (callPointer.releaseAt > currentTime) {
+    			break;
+    		}
+    		releaseQueue.poll();
+    		releaseCall(callID, callPointer, syncTransport);
+    	}
+    }
+
+    /**
+     * Remove record of failed or cancelled call, and send removal to peers.
+     * @param callID CallID of call
+     * @param callPointer call record
+     * @param syncTransport transport for removal sync with peers
+     * @throws IOException
+     */
+    private void releaseCall(String callID, CallType callPointer, SyncTransport syncTransport) throws IOException {
+    	callPointer.bye = true;
+    	callPointer.releaseAt = 0;
+    	LoadBalancer.removeCallRecord(callID);
+    	syncTransport.sendImmediately(callID, callPointer);
+    	
+    	if (LoadBalancer.verbose == 3) {
+    		LoadBalancer.log(Thread.currentThread().getName(), "CallID " + callID + " released, call setup failed.");
+    	}
+    }
+
+    /**
+     * Report response of node to INVITE to its circuit breaker. 503 and 480
+     * are failures, with time from <I>Retry-After</I> header if present. Other
+     * responses, except 100, are success.
+     * @param node ip address of node
+     * @param status status code of response
+     * @param message whole response
+     */
+    private static void updateBreaker(String node, int status, String message) {
+    	CircuitBreaker breaker = LoadBalancer.getNodeInfo(node).breaker;
+    	
+    	if (status == 503 || status == 480) {
+    		long retryAfter = 0;
+    		int idxRetry = message.indexOf("Retry-After:");
+    		if (idxRetry > 0) {
+    			int pos = idxRetry + "Retry-After:".length();
+    			while (pos < message.length() && message.charAt(pos) == ' ') {
+    				pos++;
+    			}
+    			/*
+    			 * At most 9 ASCII digits, so value can not overflow,
+    			 * and clamp it, node should not hold breaker open forever.
+    			 */
+    			int end = Math.min(pos + 9, message.length());
+    			while (pos < end && message.charAt(pos) >= '0' && message.charAt(pos) <= '9') {
+    				retryAfter = retryAfter * 10 + (message.charAt(pos) - '0');
+    				pos++;
+    			}
+    			retryAfter = Math.min(retryAfter * 1000, LoadBalancer.breakerOpenTime * MAX_RETRY_AFTER);
+    		}
+    		if (breaker.failure(retryAfter) && LoadBalancer.verbose > 1) {
+    			LoadBalancer.log(Thread.currentThread().getName(), "Circuit breaker opened for node " + node
+    					+ ", status " + status + ".");
+    		}
+    	}
+    	else if (status > 100) {
+    		if (breaker.success() && LoadBalancer.verbose > 1) {
+    			LoadBalancer.log(Thread.currentThread().getName(), "Circuit breaker closed for node " + node + ".");
+    		}
+    	}
     }
     
 }
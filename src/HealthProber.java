@@ -0,0 +1,230 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <H1>Health Prober</H1>
+ * Sends SIP OPTIONS query to each node every <I>helloInterval</I> msec,
+ * regardless of SIP traffic, and waits for SIP OK replies on its own
+ * udp socket. Dispatcher is not involved in probing at all.<BR>
+ * <BR>
+ * Each query is stored in pending table, keyed by Call-ID sequence number.
+ * Reply is matched by Call-ID, its round trip time is stored in
+ * {@link NodeInfo} and node tracker is refreshed. Queries without reply
+ * are dropped from pending table after <I>deadInterval</I>.<BR>
+ * <BR>
+ * Probing is done only when <I>sipOptions</I> is enabled.
+ * @author eigorde
+ *
+ */
+public class HealthProber implements Runnable {
+
+	/**
+	 * Port where nodes listen for SIP messages.
+	 */
+	private int sipPort;
+
+	/**
+	 * Socket for queries and replies, bound to ephemeral port.
+	 */
+	private DatagramSocket datagramSocket;
+
+	/**
+	 * Precompiled SIP OPTIONS message.
+	 */
+	private OptionsTemplate template;
+
+	/**
+	 * Send buffer for rendered SIP OPTIONS message.
+	 */
+	private byte[] sendData;
+
+	/**
+	 * Sequence number of next query, last part of Call-ID.
+	 */
+	private long sequence;
+
+	/**
+	 * Query which waits for reply.
+	 */
+	private static class Probe {
+
+		/**
+		 * Node which was queried.
+		 */
+		final NodeInfo node;
+
+		/**
+		 * Send time, in nsec.
+		 */
+		final long sentAt;
+
+		Probe(NodeInfo node, long sentAt) {
+			this.node = node;
+			this.sentAt = sentAt;
+		}
+	}
+
+	/**
+	 * Queries without reply, keyed by Call-ID sequence number.
+	 */
+	private ConcurrentHashMap<Long, Probe> pending;
+
+	/**
+	 * <H1>Health Prober</H1><BR>
+	 * Bind socket for queries.
+	 * @param sipPort udp port where nodes listen, usually <I>5060</I>
+	 * @throws SocketException
+	 */
+	public HealthProber(int sipPort) throws SocketException {
+		this.sipPort = sipPort;
+		datagramSocket = new DatagramSocket();
+		pending = new ConcurrentHashMap<Long, Probe>();
+	}
+
+	@Override
+	public void run() {
+
+		template = new OptionsTemplate(Thread.currentThread().getName(),
+				OptionsTemplate.hostText(datagramSocket.getLocalAddress()), datagramSocket.getLocalPort(),
+				System.currentTimeMillis());
+		sendData = new byte[template.getMaxLength()];
+
+		/*
+		 * Replies are received in separate thread.
+		 */
+		Thread receiver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				receive();
+			}
+		}, Thread.currentThread().getName() + "Receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+
+		while (true)
+			try {
+				Thread.sleep(LoadBalancer.helloInterval);
+
+				if (LoadBalancer.sipOptions) {
+					probe();
+				}
+				expire();
+
+			} catch (InterruptedException e) {
+				// Quit while loop.
+				break;
+			}
+
+		datagramSocket.close();
+	}
+
+	/**
+	 * Send query to each node in node list, and report dead nodes.
+	 */
+	private void probe() {
+
+		long currentTime = System.currentTimeMillis();
+
+		for (Integer index : LoadBalancer.getNodeListKeySet().toArray(new Integer[0])) {
+			String address = LoadBalancer.getNode(index);
+			if (address == null) {
+				continue;
+			}
+
+			try {
+				InetAddress inetAddress = InetAddress.getByName(address);
+				NodeInfo node = LoadBalancer.getNodeInfo(address);
+
+				byte[] host = OptionsTemplate.hostText(inetAddress).getBytes();
+				int length = template.write(sendData, host, host.length, sequence);
+
+				pending.put(sequence, new Probe(node, System.nanoTime()));
+				sequence++;
+
+				datagramSocket.send(new DatagramPacket(sendData, length, inetAddress, sipPort));
+				node.probeSent();
+
+			} catch (IOException e) {
+				if (LoadBalancer.verbose > 0) {
+					LoadBalancer.log(Thread.currentThread().getName(), "Query to " + address + " failed: " + e.getMessage());
+				}
+			}
+
+			long delta = currentTime - LoadBalancer.getNodeTracker(index);
+			if (delta > LoadBalancer.deadInterval &&
+					delta < LoadBalancer.deadInterval + LoadBalancer.helloInterval) {
+				/*
+				 * Dead node. Just report.
+				 */
+				if (LoadBalancer.verbose > 1) {
+					LoadBalancer.log(Thread.currentThread().getName(), "Dead node: " + address);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drop queries without reply after dead interval.
+	 */
+	private void expire() {
+		long limit = System.nanoTime() - LoadBalancer.deadInterval * 1000000L;
+		Iterator<Map.Entry<Long, Probe>> it = pending.entrySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().getValue().sentAt - limit < 0) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Receive loop for SIP OK replies.
+	 */
+	private void receive() {
+
+		byte[] receiveData = new byte[LoadBalancer.BUFFER_LEN];
+		DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
+
+		while (!datagramSocket.isClosed())
+			try {
+				receivePacket.setLength(receiveData.length);
+				datagramSocket.receive(receivePacket);
+
+				int length = receivePacket.getLength();
+				if (!OptionsTemplate.isSipOk(receiveData, length)) {
+					continue;
+				}
+
+				long callSequence = template.readSequence(receiveData, length);
+				if (callSequence < 0) {
+					continue;
+				}
+
+				Probe probe = pending.remove(callSequence);
+				if (probe == null) {
+					// Late or duplicate reply.
+					continue;
+				}
+
+				long rtt = (System.nanoTime() - probe.sentAt) / 1000;
+				probe.node.probeAnswered(rtt);
+				LoadBalancer.updateNodeTracker(receivePacket.getAddress());
+
+				if (LoadBalancer.verbose == 3) {
+					LoadBalancer.log(Thread.currentThread().getName(), "Node " + probe.node.address
+							+ " answered in " + probe.node.getRttString());
+				}
+
+			} catch (IOException e) {
+				if (!datagramSocket.isClosed()) {
+					e.printStackTrace();
+				}
+			}
+	}
+
+}
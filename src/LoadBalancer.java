@@ -3,10 +3,14 @@ import java.io.PrintStream;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.text.DecimalFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Hashtable;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
 
 public class LoadBalancer {
 
@@ -25,6 +29,17 @@ public class LoadBalancer {
      */
     public final static int BUFFER_LEN = 4096;
 
+    /**
+     * Max. length of SIP message in udp datagram, dispatcher receives
+     * whole datagram so large messages are not truncated.
+     */
+    public final static int MAX_DATAGRAM_LEN = 65535;
+
+    /**
+     * Pool of message buffers, see {@link BufferPool}.
+     */
+    static BufferPool bufferPool = new BufferPool();
+
     /**
      * UDP port number to bind. By default, it will bind on all interfaces.
      */
@@ -40,6 +55,12 @@ public class LoadBalancer {
      * Ip interface to which telnet service should bind.
      */
     static String telnetInterface = null;
+
+    /**
+     * Number of worker threads which run telnet commands,
+     * shared by all telnet sessions.
+     */
+    static int telnetThreads = 2;
     
     /**
      * Watchdog udp port number to receive keep alive messages from nodes.<BR>
@@ -56,6 +77,53 @@ public class LoadBalancer {
      * Any socket.
      */
     static DatagramSocket anyDatagramSocket;
+    
+    /**
+     * Number of event loop threads of tcp transport, <I>0</I> disables SIP over tcp.
+     * Tcp is disabled by default, so no new listener is opened unless operator asks for it.
+     */
+    static int tcpThreads = 0;
+    
+    /**
+     * Tcp transport, listens on <I>bindPort</I> too, see {@link TcpTransport}.
+     */
+    static TcpTransport tcpTransport;
+    
+    /**
+     * Port for SIP over TLS, <I>0</I> disables TLS.
+     */
+    static int tlsPort = 0;
+    
+    /**
+     * Key store with server certificate for TLS, PKCS12 or JKS.
+     */
+    static String tlsKeystore = null;
+    
+    /**
+     * Password of TLS key store.
+     */
+    static String tlsPassword = null;
+    
+    /**
+     * Number of threads for TLS handshake tasks.
+     */
+    static int tlsThreads = 2;
+    
+    /**
+     * Max. number of TLS sessions kept for resumption.
+     */
+    static int tlsSessionCache = 20000;
+    
+    /**
+     * Lifetime of TLS session for resumption.<BR>
+     * Unit: sec.
+     */
+    static int tlsSessionTimeout = 86400;
+    
+    /**
+     * TLS transport, see {@link TcpTransport}.
+     */
+    static TcpTransport tlsTransport;
 
     /**
      * List of nodes defined statically at startup as command argument(s).<BR>
@@ -69,6 +137,17 @@ public class LoadBalancer {
      * 
      */
     private static int nodePointer;
+    
+    /**
+     * Sorted ids of nodes in <I>nodeList</I>, rebuilt when node list changes.
+     */
+    private static int[] nodeKeys = new int[0];
+    
+    /**
+     * Ip addresses of nodes, in same order as <I>nodeKeys</I>. Array is
+     * replaced, never modified, so it can be read without class lock.
+     */
+    private static volatile String[] nodeAddresses = new String[0];
 
     /**
      * Node tracker should keep information about last packet received from SIP
@@ -80,6 +159,11 @@ public class LoadBalancer {
      */
     private static ConcurrentHashMap<Integer, Long> nodeTracker;
     
+    /**
+     * Health data of nodes, measured by health prober. Key is ip address of node.
+     */
+    private static ConcurrentHashMap<String, NodeInfo> nodeInfo = new ConcurrentHashMap<String, NodeInfo>();
+    
     /**
      * <H1>Call table</H1><BR>
      * This hashmap will store for each new call a <I>call record</I> which contains source --> destination link.<BR>
@@ -98,6 +182,12 @@ public class LoadBalancer {
      */
     private static ConcurrentHashMap<String, CallType> callTable = new ConcurrentHashMap<String, CallType>();
 
+    /**
+     * Indexes of call table by node, source and Call-ID prefix. They are
+     * updated in same functions which update <I>callTable</I>.
+     */
+    static final CallIndex callIndex = new CallIndex();
+
     /**
      * Watchdog table for storing info about nodes which have reported their status to watchdog process.
      */
@@ -116,10 +206,33 @@ public class LoadBalancer {
      * Default: 4 sec.
      */
     static long discoveryTimeout = 4;
+    
+    /**
+     * Rate of SIP OPTIONS queries during discovery. If it is <I>0</I>,
+     * then queries are spread over half of discovery timeout.<BR>
+     * Unit: packets per sec.
+     */
+    static long discoveryRate = 0;
+    
+    /**
+     * Discovery mode, <I>sweep</I> sends query to each address in subnet,
+     * <I>multicast</I> sends query to SIP multicast group <I>224.0.1.75</I>.
+     * Ipv6 interface always uses multicast.
+     */
+    static String discoveryMode = "sweep";
+    
+    /**
+     * Interval between discovery rounds. If it is <I>0</I>, discovery
+     * runs only once at startup, same as before background discovery.
+     * Sweep of large subnet sends one SIP OPTIONS per address, so interval
+     * should be long.<BR>
+     * Unit: sec.
+     */
+    static long discoveryInterval = 0;
 
     /**
      * SIP OPTIONS query and verification of SIP nodes.<BR>
-     * This flag is used by Dispatcher process to periodically
+     * This flag is used by health prober to periodically
      * query nodes in list and track their availability.<BR>
      * By default, this is turned on. 
      */
@@ -137,6 +250,117 @@ public class LoadBalancer {
      */
     static long deadInterval = 10000;
     
+    /**
+     * Node selection for new calls, <I>roundrobin</I>, <I>latency</I> or <I>headroom</I>.
+     * Latency selection prefers node with lowest average latency, headroom selection
+     * prefers node with most free capacity reported in watchdog heartbeat, see {@link NodeInfo}.
+     */
+    static String balancing = "roundrobin";
+    
+    /**
+     * Failures in a row (503, 480 or INVITE timeout) after which node circuit breaker opens.
+     */
+    static int breakerThreshold = 5;
+    
+    /**
+     * Time for which open circuit breaker keeps new calls away from node, unless
+     * node sends <I>Retry-After</I>.<BR>
+     * Unit: msec.
+     */
+    static long breakerOpenTime = 30000;
+    
+    /**
+     * Time in which node should answer INVITE, otherwise it counts as failure.<BR>
+     * Unit: msec.
+     */
+    static long inviteTimeout = 4000;
+    
+    /**
+     * Rate of new calls (SIP INVITE) admitted from one source ip address,
+     * <I>0</I> disables admission control.<BR>
+     * Unit: calls per sec.
+     */
+    static double admissionRate = 0;
+    
+    /**
+     * Number of calls which one source can send at once, above <I>admissionRate</I>.
+     */
+    static int admissionBurst = 10;
+    
+    /**
+     * Max. number of source ip addresses tracked by admission control.
+     */
+    static int admissionTableSize = 65536;
+    
+    /**
+     * Per-source token buckets for new calls, see {@link AdmissionControl}.
+     */
+    static AdmissionControl admissionControl;
+    
+    /**
+     * Random generator for latency based node selection.
+     */
+    private static Random random = new Random();
+    
+    /**
+     * Rate at which full call table is sent to peers upon <I>ALL</I> request.<BR>
+     * If it is 0, then frames are not paced.<BR>
+     * Unit: bytes per sec.
+     */
+    static long syncRate = 256000;
+    
+    /**
+     * Time window in which several <I>ALL</I> requests are answered with
+     * single pass over call table.<BR>
+     * Unit: msec.
+     */
+    static long syncWindow = 500;
+    
+    /**
+     * List of peers for unicast synchronization, in form <I>host:port,host:port,...</I><BR>
+     * If it is <I>null</I>, then peers are synchronized via multicast group.
+     */
+    static String syncPeers = null;
+    
+    /**
+     * Udp port to receive frames from peers, used with <I>syncPeers</I> list.
+     */
+    static int syncPort = 5555;
+    
+    /**
+     * Responder to synchronization requests from peers.
+     */
+    static SyncResponder syncResponder;
+    
+    /**
+     * Snapshot file for call table checkpoints. If it is <I>null</I>,
+     * then checkpoints are disabled.
+     */
+    static String checkpointFile = null;
+    
+    /**
+     * Checkpoint interval, eg. how often changes in call table are saved.<BR>
+     * Unit: msec.
+     */
+    static long checkpointInterval = 1000;
+    
+    /**
+     * Checkpoint process, or <I>null</I> if checkpoints are disabled.
+     */
+    static Checkpoint checkpoint = null;
+    
+    /**
+     * Group commit interval of write-ahead log, eg. how often appended
+     * changes are written and forced to disk.<BR>
+     * Unit: msec.
+     */
+    static long walFlushInterval = 5;
+    
+    /**
+     * Write-ahead log of call table changes, or <I>null</I> if checkpoints are disabled.
+     */
+    static WriteAheadLog wal = null;
+    
     /**
      * Local Register for user authorization.
      */
@@ -157,6 +381,11 @@ public class LoadBalancer {
      */
     static Stat stat = new Stat();
     
+    /**
+     * Lock free counters and call setup histogram, for <I>top</I> view.
+     */
+    static final Metrics metrics = new Metrics();
+    
     /**
      * Verbose level. Used by Dispatcher, Synchronizer and Watchdog
      * processes. According to verbosity level, a log function will
@@ -182,6 +411,8 @@ public class LoadBalancer {
                 + "  --telnetInterface A.B.C.D\n"
                 + "  will start telnet management interface on tcp port XX and ip interface A.B.C.D.\n"
                 + "  Default port is 4444 if not specified. To enable telnet interface, specify at least one ip interface or 0.0.0.0.\n\n"
+                + "  --telnetThreads XX\n"
+                + "  number of threads which run telnet commands, for all sessions. Default is 2.\n\n"
                 + "  --watchdogPort XX\n"
                 + "  --watchdogInterface A.B.C.D\n"
                 + "  will start watchdog listener on ip interface A.B.C.D and udp port XX. By default, it is disabled.\n"
@@ -190,10 +421,63 @@ public class LoadBalancer {
                 + "  --discoveryTimeout XX\n"
                 + "  will do auto discovery of SIP servers. A.B.C.D is local ip interface and XX is timeout in sec.\n"
                 + "  Default timeout is 4 sec. Do not use discovery with node list together.\n\n"
+                + "  --discoveryRate XX\n"
+                + "  send discovery queries at XX packets per sec. Default is 0, queries are spread over half of timeout.\n\n"
+                + "  --discoveryMode [sweep|multicast]\n"
+                + "  sweep sends query to each address in subnet (default), multicast sends query to SIP multicast\n"
+                + "  group 224.0.1.75 (ff02::75 and ff05::75 for ipv6). Ipv6 interface always uses multicast.\n\n"
+                + "  --discoveryInterval XX\n"
+                + "  repeat discovery in background every XX sec., and add new SIP servers to node list. Default is 0,\n"
+                + "  discovery runs only once at startup. Sweep sends one query per address, so use long interval.\n\n"
+                + "  --balancing [roundrobin | latency | headroom]\n"
+                + "  roundrobin sends new calls to each node in turn (default). latency prefers nodes with lowest\n"
+                + "  average SIP OPTIONS round trip time and call setup time, recovered nodes get traffic back gradually.\n"
+                + "  headroom prefers nodes with most free cpu and call capacity, as reported in watchdog heartbeat.\n\n"
+                + "  --breakerThreshold XX\n"
+                + "  --breakerOpenTime XX\n"
+                + "  --inviteTimeout XX\n"
+                + "  after XX (default 5) failures in a row, eg. 503 or 480 response or no response to INVITE within\n"
+                + "  inviteTimeout msec. (default 4000), node gets no new calls for breakerOpenTime msec. (default 30000)\n"
+                + "  or for time in Retry-After header. Then one trial call is sent, and node is used again if it succeeds.\n\n"
+                + "  --tcpThreads XX\n"
+                + "  accept SIP over tcp on same port as udp, served by XX event loop threads (default 0, disabled).\n"
+                + "  Calls from tcp callers go to nodes over tcp too.\n\n"
+                + "  --tlsPort XX\n"
+                + "  --tlsKeystore [file]\n"
+                + "  --tlsPassword [password]\n"
+                + "  accept SIP over TLS on port XX (default 0, disabled, usually 5061) with certificate from key store\n"
+                + "  [file] (PKCS12 or JKS). TLS ends on load balancer, calls go to nodes over tcp if tcpThreads\n"
+                + "  is set, otherwise over udp.\n\n"
+                + "  --tlsThreads XX\n"
+                + "  --tlsSessionCache XX\n"
+                + "  --tlsSessionTimeout XX\n"
+                + "  TLS handshakes run in pool of XX threads (default 2), outside of tcp event loops.\n"
+                + "  Up to tlsSessionCache sessions (default 20000) are kept for tlsSessionTimeout sec. (default 86400),\n"
+                + "  so clients which reconnect resume session by session id or session ticket.\n\n"
+                + "  --admissionRate XX\n"
+                + "  --admissionBurst XX\n"
+                + "  --admissionTableSize XX\n"
+                + "  each source ip address may send XX new calls per sec. (default 0, unlimited) with burst of\n"
+                + "  admissionBurst calls (default 10). INVITE over limit gets 503 response with Retry-After header.\n"
+                + "  At most admissionTableSize sources (default 65536) are tracked, least recently seen are dropped.\n\n"
                 + "  --sipOptions [true | false]\n"
                 + "  SIP OPTIONS will enable periodic checking of nodes in list by sending SIP OPTIONS message.\n"
                 + "  Nodes that reply, are marked as alive, and those that do not replay, are marked dead.\n"
                 + "  This is turned on by default. Please turn it off if you use watchdog service, otherwise results might be unpredictable.\n\n"
+                + "  --syncRate XX\n"
+                + "  --syncWindow XX\n"
+                + "  full call table is sent to peers at rate of XX bytes per sec. (default 256000, 0 is unlimited),\n"
+                + "  and requests received within window of XX msec. (default 500) are answered only once.\n\n"
+                + "  --syncPeers A.B.C.D:XX,E.F.G.H:YY,...\n"
+                + "  --syncPort XX\n"
+                + "  synchronize with listed peers over unicast instead of multicast group 226.13.25.1:5555,\n"
+                + "  and receive their updates on udp port XX (default 5555). Port may be omitted in peer list.\n\n"
+                + "  --checkpointFile [file]\n"
+                + "  --checkpointInterval XX\n"
+                + "  --walFlushInterval XX\n"
+                + "  restore call table from file at startup. Changes are appended to log [file].wal.N\n"
+                + "  and forced to disk every XX msec. (default 5). Log is checked every XX msec.\n"
+                + "  (checkpointInterval, default 1000), and full snapshot is rewritten when log grows.\n\n"
                 + "  --realmName [domain]\n"
                 + "  Use custom realm name when processing REGISTER requests.\n\n"
                 + "  --verbose X\n"
@@ -257,12 +541,62 @@ public class LoadBalancer {
                         telnetInterface = op.getSwitch(switchName);
                     else if (switchName.equalsIgnoreCase("--telnetPort"))
                         telnetPort = Integer.parseInt(op.getSwitch(switchName));
+                    else if (switchName.equalsIgnoreCase("--telnetThreads"))
+                        telnetThreads = Integer.parseInt(op.getSwitch(switchName));
                     else if (switchName.equalsIgnoreCase("--discoveryInterface"))
                         discoveryInterface = op.getSwitch(switchName);
                     else if (switchName.equalsIgnoreCase("--discoveryTimeout"))
                         discoveryTimeout = Integer.parseInt(op.getSwitch(switchName));
+                    else if (switchName.equalsIgnoreCase("--discoveryRate"))
+                        discoveryRate = Long.parseLong(op.getSwitch(switchName));
+                    else if (switchName.equalsIgnoreCase("--discoveryMode"))
+                        discoveryMode = op.getSwitch(switchName);
+                    else if (switchName.equalsIgnoreCase("--discoveryInterval"))
+                        discoveryInterval = Long.parseLong(op.getSwitch(switchName));
+                    else if (switchName.equalsIgnoreCase("--balancing"))
+                        balancing = op.getSwitch(switchName);
+                    else if (switchName.equalsIgnoreCase("--breakerThreshold"))
+                        breakerThreshold = Integer.parseInt(op.getSwitch(switchName));
+                    else if (switchName.equalsIgnoreCase("--breakerOpenTime"))
+                        breakerOpenTime = Long.parseLong(op.getSwitch(switchName));
+                    else if (switchName.equalsIgnoreCase("--inviteTimeout"))
+                        inviteTimeout = Long.parseLong(op.getSwitch(switchName));
+                    else if (switchName.equalsIgnoreCase("--tcpThreads"))
+                        tcpThreads = Integer.parseInt(op.getSwitch(switchName));
+                    else if (switchName.equalsIgnoreCase("--tlsPort"))
+                        tlsPort = Integer.parseInt(op.getSwitch(switchName));
+                    else if (switchName.equalsIgnoreCase("--tlsKeystore"))
+                        tlsKeystore = op.getSwitch(switchName);
+                    else if (switchName.equalsIgnoreCase("--tlsPassword"))
+                        tlsPassword = op.getSwitch(switchName);
+                    else if (switchName.equalsIgnoreCase("--tlsThreads"))
+                        tlsThreads = Integer.parseInt(op.getSwitch(switchName));
+                    else if (switchName.equalsIgnoreCase("--tlsSessionCache"))
+                        tlsSessionCache = Integer.parseInt(op.getSwitch(switchName));
+                    else if (switchName.equalsIgnoreCase("--tlsSessionTimeout"))
+                        tlsSessionTimeout = Integer.parseInt(op.getSwitch(switchName));
+                    else if (switchName.equalsIgnoreCase("--admissionRate"))
+                        admissionRate = Double.parseDouble(op.getSwitch(switchName));
+                    else if (switchName.equalsIgnoreCase("--admissionBurst"))
+                        admissionBurst = Integer.parseInt(op.getSwitch(switchName));
+                    else if (switchName.equalsIgnoreCase("--admissionTableSize"))
+                        admissionTableSize = Integer.parseInt(op.getSwitch(switchName));
                     else if (switchName.equalsIgnoreCase("--sipOptions"))
                         sipOptions = op.getSwitch(switchName).equalsIgnoreCase("true");
+                    else if (switchName.equalsIgnoreCase("--syncRate"))
+                        syncRate = Long.parseLong(op.getSwitch(switchName));
+                    else if (switchName.equalsIgnoreCase("--syncWindow"))
+                        syncWindow = Long.parseLong(op.getSwitch(switchName));
+                    else if (switchName.equalsIgnoreCase("--syncPeers"))
+                        syncPeers = op.getSwitch(switchName);
+                    else if (switchName.equalsIgnoreCase("--syncPort"))
+                        syncPort = Integer.parseInt(op.getSwitch(switchName));
+                    else if (switchName.equalsIgnoreCase("--checkpointFile"))
+                        checkpointFile = op.getSwitch(switchName);
+                    else if (switchName.equalsIgnoreCase("--checkpointInterval"))
+                        checkpointInterval = Long.parseLong(op.getSwitch(switchName));
+                    else if (switchName.equalsIgnoreCase("--walFlushInterval"))
+                        walFlushInterval = Long.parseLong(op.getSwitch(switchName));
                     else if (switchName.equalsIgnoreCase("--realmName"))
                         realm = op.getSwitch(switchName);
                     else if (switchName.equalsIgnoreCase("--verbose"))
@@ -283,6 +617,7 @@ public class LoadBalancer {
                 counter++;
             }
             nodePointer = 0;
+            rebuildNodeKeys();
 
             /*
              * Set realm value if not specified.
@@ -319,69 +654,94 @@ public class LoadBalancer {
             log(Thread.currentThread().getName(), "Node list is empty.");
 
         /*
-         * Start discovery module.
+         * Restore call table from last checkpoint, before
+         * dispatcher starts to receive SIP messages.
          */
-        if (discoveryInterface != null) {
+        if (checkpointFile != null) {
+        	long startTime = System.currentTimeMillis();
+        	WriteAheadLog changeLog = new WriteAheadLog(checkpointFile);
+        	Checkpoint restore = new Checkpoint(checkpointFile, changeLog);
+        	int count = restore.load();
+        	log(Thread.currentThread().getName(), "Call table restored from " + checkpointFile + ": " + count
+        			+ " records in " + (System.currentTimeMillis() - startTime) + " msec.");
         	
-    		long startTime = System.currentTimeMillis();
-    		
-    		long timeout = discoveryTimeout * 1000;
-    		
-    		ServerDiscovery serverDiscovery = new ServerDiscovery(discoveryInterface, bindPort, timeout);
-    		Thread discovery = new Thread(serverDiscovery, "discoveryService");
+        	/*
+        	 * From now on, log changes. Replayed records are
+        	 * not logged again, since wal was null during restore.
+        	 */
+        	wal = changeLog;
+        	Thread walThread = new Thread(wal, "walThread");
+        	walThread.setPriority(Thread.MAX_PRIORITY);
+        	walThread.start();
+        	
+        	checkpoint = restore;
+        	Thread checkpointThread = new Thread(checkpoint, "checkpointThread");
+        	checkpointThread.setPriority(Thread.MIN_PRIORITY);
+        	checkpointThread.start();
+        }
+        
+        /*
+         * Start discovery module. It runs in background, and adds
+         * SIP servers to node list as they answer.
+         */
+        if (discoveryInterface != null) {
+    		Thread discovery = new Thread(new DiscoveryService(5060), "discoveryService");
     		
     		log(Thread.currentThread().getName(), "Starting discovery process.");
     		
-    		/*
-    		 *  Start discovery
-    		 */
     		discovery.start();
-    		/*
-    		 *  Wait to complete
-    		 */
-    		discovery.join();
-    		
-    		/*
-    		 *  Get result
-    		 */
-    		String serverList = "";
-    		int counter = 0;
-    		for (String item : serverDiscovery.getDiscoveredHosts()) {
-                /*
-                 * Add found items to list.
-                 */
-                nodeList.put(counter++, item);                    			
-    			serverList = serverList + item + " ";
-    		}
-    		
-    		/*
-    		 * Check that we have some servers in list. 
-    		 */
-    		if (nodeList.size() > 0) {
-    			nodePointer = 0;
-    		}
-    		else {
-    			log(Thread.currentThread().getName(), "Nothing found. Please start SIP servers and restart.");
-    			return;
-    		}
-    		
-    		long endTime = System.currentTimeMillis();
-    		
-    		log(Thread.currentThread().getName(), "Found: " + serverList);
-    		log(Thread.currentThread().getName(), "Elapsed: " + String.valueOf(endTime - startTime) + " msec.");
-    		        	
         }
         else {
         	log(Thread.currentThread().getName(), "Discovery disabled.");
         }
         
+        /*
+         * Token buckets for new calls, checked by dispatcher.
+         */
+        admissionControl = new AdmissionControl(admissionTableSize);
+        
         /*
          * Start dispatcher.
          */
-        Thread dispacherThread = new Thread(new Dispatcher(), "dispacherThread");
+        Dispatcher dispatcher = new Dispatcher();
+        Thread dispacherThread = new Thread(dispatcher, "dispacherThread");
         log(Thread.currentThread().getName(), "Starting dispatcher process.");
         dispacherThread.start();
 
+        /*
+         * Start tcp transport, it feeds same dispatcher.
+         */
+        if (tcpThreads > 0) {
+        	tcpTransport = new TcpTransport(dispatcher, bindPort, tcpThreads);
+        	Thread tcpThread = new Thread(tcpTransport, "tcpTransport");
+        	log(Thread.currentThread().getName(), "Starting tcp transport with " + tcpThreads + " event loops.");
+        	tcpThread.start();
+        }
+
+        /*
+         * Start TLS transport, it needs server certificate.
+         */
+        if (tlsPort > 0) {
+        	if (tlsKeystore == null) {
+        		log(Thread.currentThread().getName(), "TLS disabled, no key store given with --tlsKeystore.");
+        	}
+        	else {
+        		tlsTransport = new TcpTransport(dispatcher, tlsPort, Math.max(tcpThreads, 1),
+        				TcpTransport.createSslContext(tlsKeystore, tlsPassword, tlsSessionCache, tlsSessionTimeout), tlsThreads);
+        		Thread tlsThread = new Thread(tlsTransport, "tlsTransport");
+        		log(Thread.currentThread().getName(), "Starting TLS transport on port " + tlsPort + ".");
+        		tlsThread.start();
+        	}
+        }
+
+        /*
+         * Start health prober, it queries nodes with SIP OPTIONS
+         * independently of dispatcher.
+         */
+        Thread healthProberThread = new Thread(new HealthProber(5060), "healthProberThread");
+        log(Thread.currentThread().getName(), "Starting health prober process.");
+        healthProberThread.start();
+
         /*
          * Print useful information on which port load balancer is listening.
          */
@@ -394,7 +754,7 @@ public class LoadBalancer {
          * When node list is not empty, then watchdog is disabled.
          */
         Thread watchdogThread = new Thread(new Watchdog(), "watchdogThread");
-        if (watchdogPort > 0 && nodeList.isEmpty()) {
+        if (watchdogPort > 0 && nodeList.isEmpty() && discoveryInterface == null) {
             log(Thread.currentThread().getName(), "Starting watchdog process.");
             watchdogThread.start();
         }
@@ -402,17 +762,31 @@ public class LoadBalancer {
             log(Thread.currentThread().getName(), "Watchdog is disabled.");
         }
         
+        /*
+         * Start responder for synchronization requests.
+         * Keep it behind sip traffic.
+         */
+        syncResponder = new SyncResponder(newSyncTransport());
+        Thread syncResponderThread = new Thread(syncResponder, "syncResponderThread");
+        syncResponderThread.setPriority(Thread.MIN_PRIORITY);
+        syncResponderThread.start();
+        
         /*
          * Start synchronization process.
          */        
         Thread syncThread = new Thread(new Synchronization(), "syncThread");
-        log(Thread.currentThread().getName(), "Starting McastSync process.");
+        if (syncPeers != null) {
+        	log(Thread.currentThread().getName(), "Starting PeerSync process on port " + syncPort + ", peers: " + syncPeers);
+        }
+        else {
+        	log(Thread.currentThread().getName(), "Starting McastSync process.");
+        }
         syncThread.start();
         
         /*
          * Configure and start telnet service.
          */
-        TelnetServer ts = new TelnetServer(telnetInterface, telnetPort);
+        TelnetServer ts = new TelnetServer(telnetInterface, telnetPort, telnetThreads);
         ts.configTelnetServer();
         Thread telnetThread = new Thread(ts, "telnetThread");
         if (telnetInterface != null) {        
@@ -426,58 +800,73 @@ public class LoadBalancer {
         /*
          * Synchronize with peers who are already running.
          */
-        McastSync mcastSync = new McastSync();
+        SyncTransport syncTransport = newSyncTransport();
         log(Thread.currentThread().getName(), "Broadcasting synchronization request to all peers.");
-        //mcastSync.requestSync();
-        mcastSync.sendSync();
-        mcastSync.close();
+        syncTransport.sendSync();
+        syncTransport.close();
 
     }
     
+    /**
+     * Create transport for synchronization with peers. If list of peers is set,
+     * then unicast {@link PeerSync} is used, otherwise multicast {@link McastSync}.
+     * @return new transport instance
+     */
+    static SyncTransport newSyncTransport() {
+    	if (syncPeers != null) {
+    		return new PeerSync();
+    	}
+    	return new McastSync();
+    }
+    
     /**
      * Update node pointer, so that we have available next node for new call.
      */
     public static synchronized void updateCurrentNode() {
     	/*
-    	 * Node list must not be empty and watchdog disabled.
+    	 * Node list must not be empty.
     	 */
-        if (!nodeList.isEmpty() && watchdogPort == 0) {
-
-        	/*
-        	 * Save current pointer value.
-        	 */
-        	int currentPointer = nodePointer;
+        if (!nodeList.isEmpty() && !balancing.equalsIgnoreCase("roundrobin")) {
+        	selectTwoChoices();
+        }
+        else if (!nodeList.isEmpty()) {
 
         	/*
         	 * Save current time stamp.
         	 */
         	long currentTime = System.currentTimeMillis();
         	
-        	long delta = 0;
+        	/*
+        	 * Start with first node id after current one, or first one if
+        	 * we are at last item pointing. Node ids are sorted, but there
+        	 * may be gaps after nodes are deleted.
+        	 */
+        	int start = 0;
+        	while (start < nodeKeys.length && nodeKeys[start] <= nodePointer) {
+        		start++;
+        	}
+        	if (start == nodeKeys.length) {
+        		start = 0;
+        	}
         	
         	/*
         	 * Find next alive node.
         	 * This loop will skip all nodes that did not report
         	 * in time of deadInterval and will find next available node.
+        	 * If all nodes are dead, just switch to next one.
         	 */
-        	do {
-				/*
-				 * Switch to next one, or first one if we are at last item
-				 * pointing.
-				 */
-				if (nodePointer == LoadBalancer.nodeList.size() - 1) {
-					nodePointer = 0;
-				} else {
-					nodePointer++;
-				}
-
+        	nodePointer = nodeKeys[start];
+        	for (int i = 0; i < nodeKeys.length; i++) {
+        		int id = nodeKeys[(start + i) % nodeKeys.length];
 				/*
-				 * Calculate delta, with tolerance of deadInterval.
-				 * Quit loop if node pointer loops over whole list of nodes.
+				 * Node must be alive, with tolerance of deadInterval,
+				 * and its circuit breaker must allow new call.
 				 */
-				delta = currentTime - getNodeTracker(nodePointer);
-				
-        	} while (delta > deadInterval && currentPointer != nodePointer);
+        		if (isNodeAvailable(id, currentTime)) {
+        			nodePointer = id;
+        			break;
+        		}
+        	}
         	
 			if (verbose == 3) {
 				log(Thread.currentThread().getName(),
@@ -487,6 +876,99 @@ public class LoadBalancer {
         }    	
     }
     
+    /**
+     * Check if node may receive new call, eg. it is alive, it is not
+     * drained and its circuit breaker allows it.
+     * @param id node id
+     * @param currentTime current time stamp (UNIX time)
+     * @return <I>true</I> if node is available
+     */
+    private static boolean isNodeAvailable(int id, long currentTime) {
+    	if (currentTime - getNodeTracker(id) > deadInterval) {
+    		return false;
+    	}
+    	NodeInfo info = getNodeInfo(nodeList.get(id));
+    	if (info.draining) {
+    		return false;
+    	}
+    	return info.breaker.isAvailable(currentTime);
+    }
+    
+    /**
+     * Rebuild sorted array of node ids, after node list is changed.
+     */
+    private static void rebuildNodeKeys() {
+    	int[] keys = new int[nodeList.size()];
+    	int count = 0;
+    	for (Integer id : nodeList.keySet()) {
+    		keys[count++] = id;
+    	}
+    	Arrays.sort(keys);
+    	String[] addresses = new String[keys.length];
+    	for (int i = 0; i < keys.length; i++) {
+    		addresses[i] = nodeList.get(keys[i]);
+    	}
+    	nodeKeys = keys;
+    	nodeAddresses = addresses;
+    }
+    
+    /**
+     * Get selection score of node for current balancing mode, lower is better.
+     * @param id node id
+     * @param currentTime current time stamp (UNIX time)
+     * @return latency with penalty, or used capacity for headroom mode
+     */
+    private static double getNodeScore(int id, long currentTime) {
+    	NodeInfo info = getNodeInfo(nodeList.get(id));
+    	if (balancing.equalsIgnoreCase("headroom")) {
+    		return 1 - info.getHeadroom(currentTime);
+    	}
+    	return info.getScore(currentTime);
+    }
+    
+    /**
+     * Point to node with lower score out of two random alive nodes.<BR>
+     * <BR>
+     * Comparing just two nodes keeps selection cheap, and spreads calls among
+     * good nodes instead of sending all of them to single best node.
+     * If no node is alive, node pointer is not changed.
+     */
+    private static void selectTwoChoices() {
+    	long currentTime = System.currentTimeMillis();
+    	
+    	/*
+    	 * Collect alive nodes.
+    	 */
+    	int[] alive = new int[nodeKeys.length];
+    	int count = 0;
+    	for (int id : nodeKeys) {
+    		if (isNodeAvailable(id, currentTime)) {
+    			alive[count++] = id;
+    		}
+    	}
+    	
+    	if (count == 0) {
+    		return;
+    	}
+    	
+    	int first = alive[random.nextInt(count)];
+    	if (count > 1) {
+    		int second = alive[random.nextInt(count - 1)];
+    		if (second == first) {
+    			second = alive[count - 1];
+    		}
+    		if (getNodeScore(second, currentTime) < getNodeScore(first, currentTime)) {
+    			first = second;
+    		}
+    	}
+    	nodePointer = first;
+    	
+		if (verbose == 3) {
+			log(Thread.currentThread().getName(),
+					"Next node is " + getCurrentNode() + ".");
+		}
+    }
+    
     /**
      * Get ip address of selected node.
      * @param index id of node
@@ -502,10 +984,10 @@ public class LoadBalancer {
      */
     public static synchronized void addNode(String address) {
     	
-    	int max = 0;
+    	int max = -1;
     	
     	/*
-    	 * Find next free id value.
+    	 * Find next free id value, first node gets id 0.
     	 */
     	for (int id : nodeList.keySet()) {
     		if (max < id ) {
@@ -521,6 +1003,15 @@ public class LoadBalancer {
     	if (getNodeIndex(address) == -1) {
 			nodeList.put(newID, address);
 			nodeTracker.put(newID, System.currentTimeMillis());
+			rebuildNodeKeys();
+			
+			/*
+			 * Point to new node, if node pointer is not valid, eg.
+			 * node list was empty.
+			 */
+			if (!nodeList.containsKey(nodePointer)) {
+				nodePointer = newID;
+			}
     	}
     	else {
     		/*
@@ -541,6 +1032,54 @@ public class LoadBalancer {
     	if (id > -1) {
 			nodeList.remove(id);
 			nodeTracker.remove(id);
+			nodeInfo.remove(address);
+			rebuildNodeKeys();
+			
+			/*
+			 * Do not point to deleted node.
+			 */
+			if (id == nodePointer) {
+				updateCurrentNode();
+			}
+    	}
+    }
+    
+    /**
+     * Get ip addresses of all nodes, without class lock, eg. for
+     * telnet views refreshed while dispatcher is busy.
+     * @return copy of node addresses, sorted by node id
+     */
+    public static String[] getNodeAddresses() {
+    	return nodeAddresses.clone();
+    }
+    
+    /**
+     * Get health data of node, new entry is made for unknown node.
+     * @param address ip address of node
+     * @return health data of node
+     */
+    public static NodeInfo getNodeInfo(String address) {
+    	NodeInfo info = nodeInfo.get(address);
+    	if (info == null) {
+    		NodeInfo newInfo = new NodeInfo(address);
+    		info = nodeInfo.putIfAbsent(address, newInfo);
+    		if (info == null) {
+    			info = newInfo;
+    		}
+    	}
+    	return info;
+    }
+    
+    /**
+     * Get number of calls on node, from call index.
+     * @param address ip address of node
+     * @return number of calls in call table which go to node
+     */
+    public static int countNodeCalls(String address) {
+    	try {
+    		return callIndex.countNodeCalls(InetAddress.getByName(address));
+    	} catch (IOException e) {
+    		return 0;
     	}
     }
     
@@ -667,38 +1206,89 @@ public class LoadBalancer {
     }
     
     /**
-     * Store record in call table <I>callTable</I>. This is synchronized and 
-     * should be thread safe and protected against concurrent modifications.<BR>
+     * Store record in call table <I>callTable</I>. This takes no class lock,
+     * record is stored atomically with its index, see <I>updateCallRecord()</I>.<BR>
      * <B>NOTE:</B><BR>
      * Make sure you use this call instead of direct access to <I>callTable</I> object.
      * @param CallID unique identifier of each call record. This string is extracted from SIP INVITE message
      * @param callType call record which stores <I>source ip:port</I> and <I>destination ip:port</I>, so that SIP routing is possible
      */
-    public static synchronized void putCallRecord(String CallID, CallType callType) {
-    	callTable.put(CallID, callType);
+    public static void putCallRecord(String CallID, CallType callType) {
+    	updateCallRecord(CallID, callType);
     }
     
     /**
-     * Retrieve record from call table <I>callTable</I>. This is synchronized and 
-     * should be thread safe and protected against concurrent modifications.<BR>
+     * Retrieve record from call table <I>callTable</I>. This takes no class lock,
+     * concurrent hashmap is read directly.<BR>
      * <B>NOTE:</B><BR>
      * Make sure you use this call instead of direct access to <I>callTable</I> object.
      * @param CallID unique identifier of each call record. This string is extracted from SIP INVITE message
      * @return <I>callType</I> object which stores <I>source ip:port</I> and <I>destination ip:port</I>, so that SIP routing is possible
      */    
-    public static synchronized CallType getCallRecord(String CallID) {
+    public static CallType getCallRecord(String CallID) {
     	return callTable.get(CallID);
     }
     
     /**
-     * Delete record from call table <I>callTable</I>. This is synchronized and 
-     * should be thread safe and protected against concurrent modifications.<BR>
+     * Delete record from call table <I>callTable</I>. This takes no class lock,
+     * record is removed atomically with its index, see <I>updateCallRecord()</I>.<BR>
      * <B>NOTE:</B><BR>
      * Make sure you use this call instead of direct access to <I>callTable</I> object.
      * @param CallID unique identifier of each call record. This string is extracted from SIP INVITE message
      */
-    public static synchronized void removeCallRecord(String CallID) {
-    	callTable.remove(CallID);
+    public static void removeCallRecord(String CallID) {
+    	updateCallRecord(CallID, null);
+    }
+    
+    /**
+     * Store or remove record in call table, and update <I>callIndex</I> and
+     * write ahead log in same step. All three are updated under lock of key
+     * in call table, so concurrent updates of one Call-ID, eg. by dispatcher
+     * and sync thread, are applied in same order to each of them.
+     * @param CallID unique identifier of call record
+     * @param callType call record, or <I>null</I> to remove record
+     */
+    private static void updateCallRecord(final String CallID, final CallType callType) {
+    	callTable.compute(CallID, new BiFunction<String, CallType, CallType>() {
+    		@Override
+    		public CallType apply(String key, CallType oldCallType) {
+    			if (oldCallType != null) {
+    				callIndex.remove(CallID, oldCallType);
+    			}
+    			if (callType != null) {
+    				callIndex.add(CallID, callType);
+    			}
+    			if (wal != null && (oldCallType != null || callType != null)) {
+    				wal.append(CallID, callType);
+    			}
+    			return callType;
+    		}
+    	});
+    }
+    
+    /**
+     * Apply a batch of call records to call table <I>callTable</I>, eg. one frame
+     * received from peer.<BR>
+     * <BR>
+     * Records with call record set are stored, records with <I>null</I> call record
+     * are removed. Whole batch is applied in one pass, without taking class lock
+     * for each record, but each record is applied atomically with its index and
+     * write ahead log update, see <I>updateCallRecord()</I>. Call table is concurrent hashmap, so dispatcher lookups
+     * are never blocked while a large batch is applied.<BR>
+     * @param callIDs unique identifiers of call records
+     * @param callTypes call records, or <I>null</I> for records to remove
+     * @param count number of records in batch
+     * @return number of removed records, rest of the batch are stored records
+     */
+    public static int applyCallRecords(String[] callIDs, CallType[] callTypes, int count) {
+    	int removed = 0;
+    	for (int i = 0; i < count; i++) {
+    		if (callTypes[i] == null) {
+    			removed++;
+    		}
+    		updateCallRecord(callIDs[i], callTypes[i]);
+    	}
+    	return removed;
     }
     
     /**
@@ -712,6 +1302,16 @@ public class LoadBalancer {
     	return callTable.keySet();
     }
   
+    /**
+     * Get call records from table <I>callTable</I>, without taking class lock.<BR>
+     * Iteration is weakly consistent, eg. records added or removed while iterating
+     * may or may not be seen, but iteration never fails.
+     * @return a collection of CallID and call record pairs
+     */
+    public static Set<Map.Entry<String, CallType>> getCallRecordEntries() {
+    	return callTable.entrySet();
+    }
+  
     /**
      * Save last thread name for <I>log()</I> function call.
      */
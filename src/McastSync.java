@@ -18,11 +18,12 @@ import java.util.Map;
  * <H1>Multicast synchronizer</H1>
  * <BR>
  * This class is for keeping in sync two Load Balacer's.<BR>
- * It is used by {@link Synchronization} and {@link Dispatcher} process.
+ * It is used by {@link Synchronization} and {@link Dispatcher} process.<BR>
+ * This is default {@link SyncTransport}, unless list of peers is configured.
  * @author eigorde
  * 
  */
-public class McastSync {
+public class McastSync implements SyncTransport {
 
     private static final int BUFFER_LENGTH = 4096;
 
@@ -48,10 +49,12 @@ public class McastSync {
     /**
      * @deprecated This is used in <B>send()</B> and <B>receive()</B> functions.
      */
+    @Deprecated
     private String callID = "";
     /**
      * @deprecated This is used in <B>send()</B> and <B>receive()</B> functions.
      */
+    @Deprecated
     private String callType = null;
     
     /**
@@ -72,10 +75,57 @@ public class McastSync {
     /**
      * List of own ip interfaces. This is used to 
      * recognize and avoid
-     * locally generated multicast packets.  
+     * locally generated multicast packets.<BR>
+     * @deprecated Only used by <B>receive()</B> function. Frames are recognized
+     * by sender id in header, see {@link SyncFrame}.
      */
+    @Deprecated
     private List<InetAddress> ipInterfaces;
 
+    /**
+     * Receive buffer, reused for each datagram.
+     */
+    private byte[] receiveData;
+
+    /**
+     * Receive datagram, reused for each datagram.
+     */
+    private DatagramPacket receivePacket;
+
+    /**
+     * Frame decoder.
+     */
+    private SyncFrame decoder = new SyncFrame();
+
+    /**
+     * Listener which fills <I>receivedBuffer</I>, used by <B>retrieve()</B> function.
+     */
+    private SyncListener bufferListener = new SyncListener() {
+
+		@Override
+		public void callRecordsReceived(String[] callIDs, CallType[] callTypes, int count) {
+			for (int i = 0; i < count; i++) {
+				CallType callType = callTypes[i];
+				if (callType == null) {
+					try {
+						callType = new CallType(InetAddress.getByAddress(new byte[4]), 0,
+								InetAddress.getByAddress(new byte[4]), 0);
+						callType.bye = true;
+					} catch (UnknownHostException e) {
+						e.printStackTrace();
+						continue;
+					}
+				}
+				receivedBuffer.put(callIDs[i], callType);
+			}
+		}
+
+		@Override
+		public void syncRequested() {
+			requestALL = true;
+		}
+    };
+
     /**
      * <H1>McastSync</H1><BR>
      * By default, <B>McastSync</B> uses default <BR>
@@ -152,6 +202,9 @@ public class McastSync {
         callBuffer = new Hashtable<String, CallType>();
         receivedBuffer = new Hashtable<String, CallType>();
         
+        receiveData = new byte[BUFFER_LENGTH];
+        receivePacket = new DatagramPacket(receiveData, receiveData.length);
+        
         requestALL = false;
     }
 
@@ -186,6 +239,7 @@ public class McastSync {
      *            CallType string
      * @throws IOException
      */
+    @Deprecated
     public void send(String callID, CallType callType) throws IOException {
 
         String call = callType.toString();
@@ -231,7 +285,7 @@ public class McastSync {
      * Immediately sends update to peers without storing call record in buffer.<BR>
      * <BR>
      * Data format:<BR>
-     * <TABLE border=2><TR><TD>count (n)</TD><TD>callID-1 length</TD><TD>callID-1</TD>
+     * <TABLE border=2><TR><TD>sender id</TD><TD>count (n)</TD><TD>callID-1 length</TD><TD>callID-1</TD>
      * <TD>callType-1 length</TD><TD>callType-1</TD>
      * <TD>...</TD><TD>callID-n length</TD><TD>callID-n</TD><TD>callType-n length</TD>
      * <TD>callType-n</TD> </TR></TABLE><BR>
@@ -240,45 +294,37 @@ public class McastSync {
      * 
      * @throws IOException
      */    
+    @Override
     public void sendImmediately(String callID, CallType callType) throws IOException {
 
 		/*
 		 * Datagram buffer.
 		 */
 		byte[] buffer = new byte[BUFFER_LENGTH];
-		/*
-		 * Index position in datagram buffer which determines the size of
-		 * datagram.
-		 */
-		int indexPos = 1;
 
 		/*
-		 * Store CallID part in buffer.
+		 * Store record after header, one record in frame.
 		 */
-		int callIDLen = callID.length();
-		buffer[indexPos] = (byte) callIDLen;
-		indexPos++;
-		System.arraycopy(callID.getBytes(), 0, buffer, indexPos, callIDLen);
-		indexPos = indexPos + callIDLen;
-		/*
-		 * Store CallType part in buffer.
-		 */
-		int callTypeLen = callType.getBytes().length;
-		buffer[indexPos] = (byte) callTypeLen;
-		indexPos++;
-		System.arraycopy(callType.getBytes(), 0, buffer, indexPos, callTypeLen);
-		indexPos = indexPos + callTypeLen;
-
-		/*
-		 * Counter value, how many records are in buffer.
-		 */
-		buffer[0] = 1;
+		int indexPos = SyncFrame.putRecord(buffer, SyncFrame.HEADER_LEN, callID, callType);
+		SyncFrame.writeHeader(buffer, 1);
+		indexPos = SyncFrame.writeTimestamp(buffer, indexPos);
 
 		/*
 		 * Send datagram.
 		 */
+		sendFrame(buffer, indexPos);
+    }
+    
+    /**
+     * Send already encoded frame to multicast group, see {@link SyncFrame}.
+     * @param buffer datagram buffer with frame header and records
+     * @param length frame length
+     * @throws IOException
+     */
+    @Override
+    public void sendFrame(byte[] buffer, int length) throws IOException {
 		DatagramPacket dgram;
-		dgram = new DatagramPacket(buffer, indexPos,
+		dgram = new DatagramPacket(buffer, length,
 				InetAddress.getByName(mcastAddr), mcastPort);
 		socket.send(dgram);
     }
@@ -287,7 +333,7 @@ public class McastSync {
      * Flush call buffer and send call records to multicast group.<BR>
      * <BR>
      * Data format:<BR>
-     * <TABLE border=2><TR><TD>count (n)</TD><TD>callID-1 length</TD><TD>callID-1</TD>
+     * <TABLE border=2><TR><TD>sender id</TD><TD>count (n)</TD><TD>callID-1 length</TD><TD>callID-1</TD>
      * <TD>callType-1 length</TD><TD>callType-1</TD>
      * <TD>...</TD><TD>callID-n length</TD><TD>callID-n</TD><TD>callType-n length</TD>
      * <TD>callType-n</TD> </TR></TABLE><BR>
@@ -308,7 +354,7 @@ public class McastSync {
     		/*
     		 * How many elements from call buffer are transfered to datagram buffer.
     		 */
-			byte count = 0;
+			int count = 0;
 			/*
 			 * Datagram buffer.
 			 */
@@ -316,7 +362,7 @@ public class McastSync {
 			/*
 			 * Index position in datagram buffer which determines the size of datagram.
 			 */
-			int indexPos = 1;
+			int indexPos = SyncFrame.HEADER_LEN;
 
 			Iterator<Map.Entry<String, CallType>> iterator = callBuffer
 					.entrySet().iterator();
@@ -326,25 +372,9 @@ public class McastSync {
 				Map.Entry<String, CallType> entry = iterator.next();
 
 				/*
-				 * Store CallID part in buffer.
-				 */
-				String callID = entry.getKey();
-				int callIDLen = callID.length();
-				buffer[indexPos] = (byte) callIDLen;
-				indexPos++;
-				System.arraycopy(callID.getBytes(), 0, buffer, indexPos,
-						callIDLen);
-				indexPos = indexPos + callIDLen;
-				/*
-				 * Store CallType part in buffer.
+				 * Store CallID and CallType part in buffer.
 				 */
-				CallType callType = entry.getValue();
-				int callTypeLen = callType.getBytes().length;
-				buffer[indexPos] = (byte) callTypeLen;
-				indexPos++;
-				System.arraycopy(callType.getBytes(), 0, buffer, indexPos,
-						callTypeLen);
-				indexPos = indexPos + callTypeLen;
+				indexPos = SyncFrame.putRecord(buffer, indexPos, entry.getKey(), entry.getValue());
 
 				/*
 				 * Remove it from map.
@@ -359,20 +389,18 @@ public class McastSync {
 				/*
 				 * Check that datagram size does not exceed.
 				 */
-				if (indexPos > 1000) {
+				if (indexPos > SyncFrame.FRAME_LIMIT) {
 					break;
 				}
 			}
 
-			buffer[0] = (byte) count;
+			SyncFrame.writeHeader(buffer, count);
+			indexPos = SyncFrame.writeTimestamp(buffer, indexPos);
 
 			/*
 			 * Send datagram.
 			 */
-			DatagramPacket dgram;
-			dgram = new DatagramPacket(buffer, indexPos,
-					InetAddress.getByName(mcastAddr), mcastPort);
-			socket.send(dgram);
+			sendFrame(buffer, indexPos);
     	}
     	
     }
@@ -380,74 +408,49 @@ public class McastSync {
     /**
      * Receive <I>{callID, CallType}</I> records from multicast sender.<BR>
      * <BR>
-     * Packet format:<BR>
-      * <TABLE border=2><TR><TD>count (n)</TD><TD>callID-1 length</TD><TD>callID-1</TD>
-     * <TD>callType-1 length</TD><TD>callType-1</TD>
-     * <TD>...</TD><TD>callID-n length</TD><TD>callID-n</TD><TD>callType-n length</TD>
-     * <TD>callType-n</TD> </TR></TABLE><BR>
+     * Frame format is described in {@link SyncFrame}. Frames sent by this
+     * Load Balancer instance are recognized by sender id and skipped.<BR>
      * <BR>
-     * <B>NOTE:</B><I>retrieve()</I> call is blocking call. After it, you can get <BR>
-     * received values with <I>getReceivedCalls</I> function.<BR>
+     * Records are decoded directly from receive buffer, which is reused for each datagram,
+     * and passed to <I>listener</I> as one batch per frame.<BR>
+     * <BR>
+     * <B>NOTE:</B><I>retrieve()</I> call is blocking call. Listener is invoked on
+     * the calling thread, before this function returns.<BR>
+     * @param listener receiver of call records and synchronization requests
      * @throws IOException
      */   
-    public void retrieve() throws IOException {
-
-        byte[] data = new byte[BUFFER_LENGTH];
-
-        DatagramPacket dgram = new DatagramPacket(data, data.length);
+    @Override
+    public void retrieve(SyncListener listener) throws IOException {
 
         do {
+            // must reset length field!
+            receivePacket.setLength(receiveData.length);
             // Blocks until a datagram is received
-            mSocket.receive(dgram);
+            mSocket.receive(receivePacket);
             // avoid packets that locally origin
-        } while (ipInterfaces.contains(dgram.getAddress()));
+        } while (SyncFrame.isLocal(receiveData, receivePacket.getLength()));
+
+        decoder.decode(receiveData, receivePacket.getLength(), listener);
+    }
+
+    /**
+     * Receive <I>{callID, CallType}</I> records from multicast sender.<BR>
+     * <BR>
+     * <B>NOTE:</B><I>retrieve()</I> call is blocking call. After it, you can get <BR>
+     * received values with <I>getReceivedCalls</I> function.<BR>
+     * @deprecated Please use <B>retrieve(SyncListener listener)</B> function, which
+     * does not collect records in <I>receivedBuffer</I>.
+     * @throws IOException
+     */   
+    @Deprecated
+    public void retrieve() throws IOException {
 
         /*
          * Clear synchronization bit.
          */
         requestALL = false;
-        
-        /*
-         * Number of bytes in datagram.
-         */
-        int receivedBytes = dgram.getLength();
-        
-        /*
-         * How many records in buffer we have.
-         */
-        byte count = 0;
-        int indexPos = 1;
-        
-        /*
-         * Loop until all records in datagram are extracted.
-         */
-        while (count < data[0] && indexPos < receivedBytes) {
-			
-			int callIDLen = data[indexPos];
-			indexPos++;
-			String callID = new String(data, indexPos, callIDLen);
-			indexPos = indexPos + callIDLen;
-
-			int callTypeLen = data[indexPos];
-			indexPos++;
-			byte[] callTypeRaw = new byte[callTypeLen];
-			System.arraycopy(data, indexPos, callTypeRaw, 0, callTypeLen);
-			CallType callType = new CallType(callTypeRaw);
-			indexPos = indexPos + callTypeLen;
-
-			receivedBuffer.put(callID, callType);
-			
-			count++;
-        }
-        
-        /*
-         * Special case when ALL keyword is received.
-         */
-        if (data[0] == 0) {
-        	String keyword = new String(data, 1, 3);
-        	requestALL = keyword.equalsIgnoreCase("ALL");
-        }
 
+        retrieve(bufferListener);
     }
     
     /**
@@ -491,15 +494,17 @@ public class McastSync {
      * @throws IOException
      * 
      */    
+    @Override
     public void sendSync() throws IOException {
 
         DatagramSocket socket = new DatagramSocket();
 
-        byte[] data = { 0, 'A', 'L', 'L' };
+        byte[] data = new byte[SyncFrame.HEADER_LEN + 3];
+        int length = SyncFrame.writeRequestAll(data);
 
         DatagramPacket dgram;
 
-        dgram = new DatagramPacket(data, data.length, InetAddress.getByName(mcastAddr), mcastPort);
+        dgram = new DatagramPacket(data, length, InetAddress.getByName(mcastAddr), mcastPort);
 
         socket.send(dgram);
 
@@ -521,6 +526,7 @@ public class McastSync {
      * @throws IOException
      * 
      */
+    @Deprecated
     public void requestSync() throws IOException {
 
         DatagramSocket socket = new DatagramSocket();
@@ -564,6 +570,7 @@ public class McastSync {
      * @deprecated Please use <B>retrieve()</B> function.
      * @throws IOException
      */
+    @Deprecated
     public void receive() throws IOException {
 
         byte[] data = new byte[BUFFER_LENGTH];
@@ -596,6 +603,7 @@ public class McastSync {
      * <BR>
      * <B>NOTE:</B> Please don't forget to call this at the end.<BR>
      */
+    @Override
     public void close() {
         socket.close();
         mSocket.close();
@@ -0,0 +1,253 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <H1>Metrics</H1>
+ * Running totals for live <I>top</I> view in telnet, next to 5 sec. buckets
+ * of {@link Stat}.<BR>
+ * <BR>
+ * Each counter is <I>LongAdder</I> cell, so dispatcher, sync and tcp threads
+ * update it without lock and without contention. Reader takes
+ * {@link Snapshot} of all cells, and rate is difference of two snapshots
+ * divided by time between them. Taking snapshot never blocks writers.<BR>
+ * <BR>
+ * Call setup time, eg. time from INVITE to first response of node, is kept
+ * in histogram in usec, with four buckets between each two powers of two,
+ * so percentiles are estimated within about 12%.
+ * @author eigorde
+ *
+ */
+public class Metrics {
+
+	/**
+	 * New calls forwarded to node, counter index.
+	 */
+	static final int CALLS = 0;
+
+	/**
+	 * Messages sent to nodes and to callers, counter indexes.
+	 */
+	static final int TO_NODES = 1, TO_CALLERS = 2;
+
+	/**
+	 * Dropped INVITEs: rejected by admission control, no node available,
+	 * counter indexes.
+	 */
+	static final int DROP_REJECTED = 3, DROP_NO_NODE = 4;
+
+	/**
+	 * Dropped messages: call not found, tcp connection closed, counter indexes.
+	 */
+	static final int DROP_NOT_FOUND = 5, DROP_CLOSED = 6;
+
+	/**
+	 * Sync frames received from peers, frames with send time stamp and
+	 * sum of their lag in msec, counter indexes.
+	 */
+	static final int SYNC_FRAMES = 7, SYNC_TIMED = 8, SYNC_LAG = 9;
+
+	/**
+	 * Number of counters.
+	 */
+	private static final int COUNTERS = 10;
+
+	/**
+	 * Number of histogram buckets, up to about 12 days. Last one
+	 * holds all samples above.
+	 */
+	static final int BUCKETS = 160;
+
+	/**
+	 * Counter cells.
+	 */
+	private final LongAdder[] counters;
+
+	/**
+	 * Call setup time histogram cells.
+	 */
+	private final LongAdder[] buckets;
+
+	/**
+	 * Time of creation, in nsec.
+	 */
+	private final long createdAt;
+
+	/**
+	 * <H1>Snapshot</H1>
+	 * Values of all cells at one moment. Each cell is read on its own, so
+	 * snapshot is consistent per cell, which is enough for rates.
+	 */
+	static class Snapshot {
+
+		/**
+		 * Time of snapshot, in nsec.
+		 */
+		final long takenAt;
+
+		/**
+		 * Counter values.
+		 */
+		final long[] counters = new long[COUNTERS];
+
+		/**
+		 * Histogram values.
+		 */
+		final long[] buckets = new long[BUCKETS];
+
+		Snapshot(long takenAt) {
+			this.takenAt = takenAt;
+		}
+
+		/**
+		 * Get rate of counter since older snapshot.
+		 * @param index counter index
+		 * @param previous older snapshot
+		 * @return events per sec.
+		 */
+		double rate(int index, Snapshot previous) {
+			long elapsed = takenAt - previous.takenAt;
+			if (elapsed <= 0) {
+				return 0;
+			}
+			return (counters[index] - previous.counters[index]) * 1e9 / elapsed;
+		}
+
+		/**
+		 * Get increase of counter since older snapshot.
+		 * @param index counter index
+		 * @param previous older snapshot
+		 * @return difference
+		 */
+		long delta(int index, Snapshot previous) {
+			return counters[index] - previous.counters[index];
+		}
+
+		/**
+		 * Estimate percentile of call setup time, from samples taken since
+		 * older snapshot. Value is interpolated inside bucket.
+		 * @param percent percentile, eg. <I>99</I>
+		 * @param previous older snapshot
+		 * @return setup time in usec, or <I>-1</I> if there are no samples
+		 */
+		long percentile(double percent, Snapshot previous) {
+			long total = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				total = total + buckets[i] - previous.buckets[i];
+			}
+			if (total <= 0) {
+				return -1;
+			}
+			double rank = total * percent / 100;
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				long count = buckets[i] - previous.buckets[i];
+				if (count > 0 && seen + count >= rank) {
+					long low = getBucketStart(i);
+					long high = getBucketStart(i + 1);
+					return low + (long) ((high - low) * ((rank - seen) / count));
+				}
+				seen = seen + count;
+			}
+			return getBucketStart(BUCKETS);
+		}
+	}
+
+	/**
+	 * <H1>Metrics</H1><BR>
+	 * All counters at zero.
+	 */
+	public Metrics() {
+		counters = new LongAdder[COUNTERS];
+		for (int i = 0; i < COUNTERS; i++) {
+			counters[i] = new LongAdder();
+		}
+		buckets = new LongAdder[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+		createdAt = System.nanoTime();
+	}
+
+	/**
+	 * Increment counter.
+	 * @param index counter index
+	 */
+	public void increment(int index) {
+		counters[index].increment();
+	}
+
+	/**
+	 * Add call setup time to histogram.
+	 * @param setupTime time from INVITE to first response, in usec
+	 */
+	public void setupAnswered(long setupTime) {
+		buckets[Math.min(getBucket(Math.max(setupTime, 0)), BUCKETS - 1)].increment();
+	}
+
+	/**
+	 * Get histogram bucket of value. Values below <I>4</I> have own bucket,
+	 * above it each power of two is split in four buckets, by two bits
+	 * after highest one.
+	 * @param value sample
+	 * @return bucket index
+	 */
+	static int getBucket(long value) {
+		if (value < 4) {
+			return (int) value;
+		}
+		int power = 63 - Long.numberOfLeadingZeros(value);
+		int quarter = (int) (value >>> (power - 2)) & 3;
+		return power * 4 + quarter;
+	}
+
+	/**
+	 * Get lowest value of histogram bucket.
+	 * @param bucket bucket index
+	 * @return value
+	 */
+	static long getBucketStart(int bucket) {
+		if (bucket < 8) {
+			return (bucket < 4) ? bucket : 4;
+		}
+		int power = bucket / 4;
+		int quarter = bucket % 4;
+		return (long) (4 + quarter) << (power - 2);
+	}
+
+	/**
+	 * Sync frame was received from peer.
+	 * @param lag time from sending to receiving frame in msec, or <I>-1</I>
+	 * if frame has no send time stamp
+	 */
+	public void syncReceived(long lag) {
+		counters[SYNC_FRAMES].increment();
+		if (lag >= 0) {
+			counters[SYNC_TIMED].increment();
+			counters[SYNC_LAG].add(lag);
+		}
+	}
+
+	/**
+	 * Read all cells.
+	 * @return snapshot
+	 */
+	public Snapshot snapshot() {
+		Snapshot snapshot = new Snapshot(System.nanoTime());
+		for (int i = 0; i < COUNTERS; i++) {
+			snapshot.counters[i] = counters[i].sum();
+		}
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot.buckets[i] = buckets[i].sum();
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Get snapshot with all cells at zero, taken when metrics were created.
+	 * Rates against it are averages since start.
+	 * @return snapshot
+	 */
+	public Snapshot initial() {
+		return new Snapshot(createdAt);
+	}
+
+}
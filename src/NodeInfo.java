@@ -0,0 +1,267 @@
+/**
+ * <H1>Node info</H1>
+ * Health data of one node (SIP server), measured by {@link HealthProber}.<BR>
+ * <BR>
+ * Latency is exponentially weighted moving average of SIP OPTIONS round trip
+ * time and call setup time, eg. time from INVITE to first response of node.
+ * Node which recovers after it was dead gets penalty, which multiplies its
+ * latency and halves every <I>PENALTY_HALF_LIFE</I> msec, so traffic comes
+ * back to it gradually.<BR>
+ * <BR>
+ * Fields are written by prober threads and read by dispatcher and
+ * telnet sessions, so they are kept volatile and each one is
+ * consistent on its own.
+ * @author eigorde
+ *
+ */
+public class NodeInfo {
+
+	/**
+	 * Ip address of node.
+	 */
+	final String address;
+
+	/**
+	 * Round trip time of last SIP OPTIONS query, in usec.
+	 * <I>-1</I> until first reply.
+	 */
+	volatile long rtt;
+
+	/**
+	 * Time stamp of last SIP OK reply to query (UNIX time).
+	 */
+	volatile long lastReply;
+
+	/**
+	 * Number of queries sent.
+	 */
+	volatile long probesSent;
+
+	/**
+	 * Number of replies received.
+	 */
+	volatile long probesAnswered;
+
+	/**
+	 * Circuit breaker, fed by responses to INVITE.
+	 */
+	final CircuitBreaker breaker = new CircuitBreaker();
+
+	/**
+	 * Node is drained, eg. it gets no new calls while its calls finish.
+	 * Set by operator, local to this load balancer.
+	 */
+	volatile boolean draining;
+
+	/**
+	 * Cpu load reported in heartbeat, in 1/100 of percent.
+	 */
+	volatile int cpuLoad;
+
+	/**
+	 * Active calls reported in heartbeat.
+	 */
+	volatile long activeCalls;
+
+	/**
+	 * Capacity reported in heartbeat, max. number of calls.
+	 */
+	volatile int capacity;
+
+	/**
+	 * Time stamp of last load report (UNIX time), <I>0</I> if node never reported.
+	 */
+	volatile long reportedAt;
+
+	/**
+	 * Weight of new sample in latency average.
+	 */
+	private static final double EWMA_WEIGHT = 0.2;
+
+	/**
+	 * Penalty of recovered node, eg. its latency counts 1 + 4 times.
+	 */
+	private static final double RECOVERY_PENALTY = 4.0;
+
+	/**
+	 * Time after which penalty is halved, in msec.
+	 */
+	private static final long PENALTY_HALF_LIFE = 10000;
+
+	/**
+	 * Average latency, in usec. <I>-1</I> until first sample.
+	 */
+	private volatile double latency;
+
+	/**
+	 * Penalty value at time <I>penaltyAt</I>.
+	 */
+	private volatile double penalty;
+
+	/**
+	 * Time stamp when penalty was set (UNIX time).
+	 */
+	private volatile long penaltyAt;
+
+	/**
+	 * <H1>Node info</H1><BR>
+	 * New node, without measurements.
+	 * @param address ip address of node
+	 */
+	public NodeInfo(String address) {
+		this.address = address;
+		this.rtt = -1;
+		this.lastReply = 0;
+		this.latency = -1;
+	}
+
+	/**
+	 * Query was sent to node.
+	 */
+	void probeSent() {
+		probesSent++;
+	}
+
+	/**
+	 * Node has answered query.
+	 * @param rtt round trip time in usec
+	 */
+	void probeAnswered(long rtt) {
+		long currentTime = System.currentTimeMillis();
+		/*
+		 * Node was dead and it is back, let it warm up.
+		 */
+		if (lastReply > 0 && currentTime - lastReply > LoadBalancer.deadInterval) {
+			penalize(RECOVERY_PENALTY);
+		}
+		this.rtt = rtt;
+		this.lastReply = currentTime;
+		probesAnswered++;
+		addSample(rtt);
+	}
+
+	/**
+	 * Node has sent first response to forwarded INVITE.
+	 * @param setupTime time from INVITE to first response, in usec
+	 */
+	void setupAnswered(long setupTime) {
+		addSample(setupTime);
+	}
+
+	/**
+	 * Add latency sample to average.
+	 * @param value sample in usec
+	 */
+	private synchronized void addSample(long value) {
+		double average = latency;
+		if (average < 0) {
+			latency = value;
+		}
+		else {
+			latency = average + EWMA_WEIGHT * (value - average);
+		}
+	}
+
+	/**
+	 * Set penalty, it decays with time.
+	 * @param value penalty, eg. <I>1</I> doubles latency
+	 */
+	void penalize(double value) {
+		penaltyAt = System.currentTimeMillis();
+		penalty = value;
+	}
+
+	/**
+	 * Get current penalty, after decay.
+	 * @param currentTime current time stamp (UNIX time)
+	 * @return penalty value
+	 */
+	double getPenalty(long currentTime) {
+		double value = penalty;
+		if (value == 0) {
+			return 0;
+		}
+		return value * Math.pow(0.5, (double) (currentTime - penaltyAt) / PENALTY_HALF_LIFE);
+	}
+
+	/**
+	 * Get latency with penalty, lower is better. Node without samples
+	 * scores <I>0</I>, so it gets traffic and is measured soon.
+	 * @param currentTime current time stamp (UNIX time)
+	 * @return score in usec
+	 */
+	double getScore(long currentTime) {
+		double average = latency;
+		if (average < 0) {
+			return 0;
+		}
+		return average * (1 + getPenalty(currentTime));
+	}
+
+	/**
+	 * Node has reported its load in heartbeat.
+	 * @param cpuLoad cpu load in 1/100 of percent
+	 * @param activeCalls number of active calls
+	 * @param capacity max. number of calls, <I>0</I> if unknown
+	 */
+	void loadReported(int cpuLoad, long activeCalls, int capacity) {
+		this.cpuLoad = cpuLoad;
+		this.activeCalls = activeCalls;
+		this.capacity = capacity;
+		this.reportedAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Get headroom reported by node, eg. lower of free cpu and free call
+	 * capacity. Report older than <I>deadInterval</I> is ignored.
+	 * @param currentTime current time stamp (UNIX time)
+	 * @return headroom between <I>0</I> (full) and <I>1</I> (idle), or <I>0</I> without report
+	 */
+	double getHeadroom(long currentTime) {
+		if (reportedAt == 0 || currentTime - reportedAt > LoadBalancer.deadInterval) {
+			return 0;
+		}
+		double headroom = 1 - cpuLoad / 10000.0;
+		int max = capacity;
+		if (max > 0) {
+			headroom = Math.min(headroom, 1 - (double) activeCalls / max);
+		}
+		return Math.max(headroom, 0);
+	}
+
+	/**
+	 * Get reported load as text.
+	 * @return cpu load and calls, or <I>-</I> if node never reported
+	 */
+	public String getLoadString() {
+		if (reportedAt == 0) {
+			return "-";
+		}
+		return String.format("%.0f%% %d/%d", cpuLoad / 100.0, activeCalls, capacity);
+	}
+
+	/**
+	 * Get average latency as text.
+	 * @return average latency in msec, or <I>-</I> if there are no samples
+	 */
+	public String getLatencyString() {
+		double average = latency;
+		if (average < 0) {
+			return "-";
+		}
+		return String.format("%.2f msec.", average / 1000.0);
+	}
+
+	/**
+	 * Get round trip time of last query as text.
+	 * @return round trip time in msec, or <I>-</I> if node did not answer yet
+	 */
+	public String getRttString() {
+		long value = rtt;
+		if (value < 0) {
+			return "-";
+		}
+		return String.format("%.2f msec.", value / 1000.0);
+	}
+
+}
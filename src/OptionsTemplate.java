@@ -0,0 +1,231 @@
+import java.net.Inet6Address;
+import java.net.InetAddress;
+
+/**
+ * <H1>Options template</H1>
+ * Precompiled SIP OPTIONS message.<BR>
+ * <BR>
+ * Message is built once, with local address, port and service name already
+ * in place, and kept as byte segments. For each target only remote address
+ * and Call-ID sequence number are written between segments, so sending
+ * one probe costs a few array copies.<BR>
+ * <BR>
+ * Message layout:<BR>
+ * <TABLE border=2><TR><TD>segment 0</TD><TD>remote ip</TD><TD>segment 1</TD><TD>remote ip</TD>
+ * <TD>segment 2</TD><TD>sequence</TD><TD>segment 3</TD></TR></TABLE><BR>
+ * @author eigorde
+ *
+ */
+public class OptionsTemplate {
+
+	/**
+	 * Max. length of remote address text, eg. bracketed ipv6 address with scope.
+	 */
+	static final int MAX_HOST_LEN = 64;
+
+	/**
+	 * Max. length of sequence number in decimal.
+	 */
+	private static final int MAX_SEQ_LEN = 20;
+
+	/**
+	 * Status line of reply to SIP OPTIONS which we are looking for.
+	 */
+	private static final byte[] SIP_OK = "SIP/2.0 200".getBytes();
+
+	/**
+	 * Fixed parts of message.
+	 */
+	private byte[][] segments;
+
+	/**
+	 * Max. length of rendered message.
+	 */
+	private int maxLength;
+
+	/**
+	 * Fixed part of Call-ID, before sequence number.
+	 */
+	private byte[] callIdPrefix;
+
+	/**
+	 * <H1>Options template</H1><BR>
+	 * Build template for given local endpoint.
+	 * @param service user part in request URI, eg. thread name
+	 * @param localIp local ip address, written in Via, From and Contact
+	 * @param localPort local udp port
+	 * @param callIdBase random part of Call-ID, same for all probes of this template
+	 */
+	public OptionsTemplate(String service, String localIp, int localPort, long callIdBase) {
+
+		String local = localIp + ":" + localPort;
+
+		String callId = localIp + "-" + localPort + "-" + callIdBase + "-";
+		callIdPrefix = callId.getBytes();
+
+		segments = new byte[4][];
+		segments[0] = ("OPTIONS sip:" + service + "@").getBytes();
+		segments[1] = (" SIP/2.0\r\n"
+				+ "Via: SIP/2.0/UDP " + local + "\r\n"
+				+ "Max-Forwards: 70\r\n"
+				+ "To: <sip:" + service + "@").getBytes();
+		segments[2] = (">\r\n"
+				+ "From: sipp <" + service + "@" + local + ">\r\n"
+				+ "Call-ID: " + callId).getBytes();
+		segments[3] = ("\r\n"
+				+ "CSeq: 1 OPTIONS\r\n"
+				+ "Contact: <sip:" + service + "@" + local + ">\r\n"
+				+ "Accept: application/sdp\r\n"
+				+ "Content-Length: 0\r\n"
+				+ "\r\n").getBytes();
+
+		maxLength = 2 * MAX_HOST_LEN + MAX_SEQ_LEN;
+		for (byte[] segment : segments) {
+			maxLength = maxLength + segment.length;
+		}
+	}
+
+	/**
+	 * Get max. length of rendered message, eg. size of send buffer.
+	 * @return length in bytes
+	 */
+	public int getMaxLength() {
+		return maxLength;
+	}
+
+	/**
+	 * Render message for one target.
+	 * @param buffer send buffer, at least <I>getMaxLength()</I> bytes
+	 * @param host remote address as text, eg. <I>192.168.1.10</I>
+	 * @param hostLen length of remote address text
+	 * @param sequence sequence number, last part of Call-ID
+	 * @return message length
+	 */
+	public int write(byte[] buffer, byte[] host, int hostLen, long sequence) {
+		int indexPos = put(buffer, 0, segments[0]);
+		System.arraycopy(host, 0, buffer, indexPos, hostLen);
+		indexPos = indexPos + hostLen;
+		indexPos = put(buffer, indexPos, segments[1]);
+		System.arraycopy(host, 0, buffer, indexPos, hostLen);
+		indexPos = indexPos + hostLen;
+		indexPos = put(buffer, indexPos, segments[2]);
+		indexPos = putLong(buffer, indexPos, sequence);
+		return put(buffer, indexPos, segments[3]);
+	}
+
+	/**
+	 * Find Call-ID of this template in reply, and read its sequence number.
+	 * @param data received message
+	 * @param length message length
+	 * @return sequence number, or <I>-1</I> if Call-ID is not found
+	 */
+	public long readSequence(byte[] data, int length) {
+		int last = length - callIdPrefix.length;
+		for (int start = 0; start < last; start++) {
+			int i = 0;
+			while (i < callIdPrefix.length && data[start + i] == callIdPrefix[i]) {
+				i++;
+			}
+			if (i < callIdPrefix.length) {
+				continue;
+			}
+			/*
+			 * Prefix matches, parse digits after it.
+			 */
+			long value = 0;
+			int pos = start + i;
+			while (pos < length && data[pos] >= '0' && data[pos] <= '9') {
+				value = value * 10 + (data[pos] - '0');
+				pos++;
+			}
+			return (pos > start + i) ? value : -1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Check status line of reply on bytes, without decoding message.
+	 * @param data received datagram
+	 * @param length datagram length
+	 * @return <I>true</I> for SIP OK
+	 */
+	static boolean isSipOk(byte[] data, int length) {
+		if (length < SIP_OK.length) {
+			return false;
+		}
+		for (int i = 0; i < SIP_OK.length; i++) {
+			if (data[i] != SIP_OK[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copy segment to buffer.
+	 * @param buffer destination
+	 * @param indexPos position in destination
+	 * @param segment source
+	 * @return position after segment
+	 */
+	private static int put(byte[] buffer, int indexPos, byte[] segment) {
+		System.arraycopy(segment, 0, buffer, indexPos, segment.length);
+		return indexPos + segment.length;
+	}
+
+	/**
+	 * Write non-negative number in decimal.
+	 * @param buffer destination
+	 * @param indexPos position in destination
+	 * @param value number
+	 * @return position after number
+	 */
+	static int putLong(byte[] buffer, int indexPos, long value) {
+		int digits = 1;
+		for (long v = value / 10; v > 0; v = v / 10) {
+			digits++;
+		}
+		int pos = indexPos + digits - 1;
+		do {
+			buffer[pos--] = (byte) ('0' + (value % 10));
+			value = value / 10;
+		} while (value > 0);
+		return indexPos + digits;
+	}
+
+	/**
+	 * Get address as text for SIP URI and headers. Ipv6 address is
+	 * written in brackets, without scope.
+	 * @param address ip address
+	 * @return address text, eg. <I>192.168.1.10</I> or <I>[fe80::1]</I>
+	 */
+	static String hostText(InetAddress address) {
+		String host = address.getHostAddress();
+		if (address instanceof Inet6Address) {
+			int scope = host.indexOf('%');
+			if (scope > 0) {
+				host = host.substring(0, scope);
+			}
+			host = "[" + host + "]";
+		}
+		return host;
+	}
+
+	/**
+	 * Write ipv4 address in dotted decimal, without <I>InetAddress</I>.
+	 * @param buffer destination
+	 * @param indexPos position in destination
+	 * @param address ipv4 address as 32-bit integer
+	 * @return position after address
+	 */
+	static int putIPv4(byte[] buffer, int indexPos, int address) {
+		for (int shift = 24; shift >= 0; shift = shift - 8) {
+			indexPos = putLong(buffer, indexPos, (address >>> shift) & 0xff);
+			if (shift > 0) {
+				buffer[indexPos++] = '.';
+			}
+		}
+		return indexPos;
+	}
+
+}
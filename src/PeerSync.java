@@ -0,0 +1,317 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <H1>Peer synchronizer</H1>
+ * <BR>
+ * Keeps Load Balancer peers in sync over unicast, for networks where multicast
+ * is not routed. Frames are the same as with {@link McastSync}, see {@link SyncFrame},
+ * but each frame is sent to every peer in <I>syncPeers</I> list.<BR>
+ * <BR>
+ * All instances in a process share one sender thread, which owns a non-blocking
+ * datagram channel and a bounded queue for each peer. Peers are served in turns,
+ * a few frames at a time, and when a queue is full its oldest frame is dropped,
+ * so one slow or unreachable peer does not hold back updates to the others.<BR>
+ * <BR>
+ * Frames are received on udp port <I>syncPort</I>, which is bound by the first
+ * instance that calls <I>retrieve()</I>. Several Load Balancers can run on the
+ * same host, each with its own port, eg.:<BR>
+ * <I>--syncPort 5556 --syncPeers 127.0.0.1:5557,127.0.0.1:5558</I>
+ * @author eigorde
+ *
+ */
+public class PeerSync implements SyncTransport {
+
+    private static final int BUFFER_LENGTH = 4096;
+
+    /**
+     * Max. frames waiting in queue of one peer.
+     */
+    private static final int QUEUE_LENGTH = 1024;
+
+    /**
+     * Max. frames sent to one peer before sender moves to next peer.
+     */
+    private static final int FRAMES_PER_TURN = 16;
+
+    /**
+     * Peer address and frames waiting to be sent to it.
+     */
+    private static class Peer {
+    	InetSocketAddress address;
+    	ArrayBlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<ByteBuffer>(QUEUE_LENGTH);
+    	long dropped;
+    }
+
+    /**
+     * List of peers, shared by all instances.
+     */
+    private static List<Peer> peers;
+
+    /**
+     * Channel used by sender thread.
+     */
+    private static DatagramChannel sendChannel;
+
+    /**
+     * Sender thread, shared by all instances.
+     */
+    private static Thread senderThread;
+
+    /**
+     * Channel to receive frames, opened on first <I>retrieve()</I>.
+     */
+    private DatagramChannel receiveChannel;
+
+    /**
+     * Receive buffer, reused for each datagram.
+     */
+    private byte[] receiveData;
+
+    /**
+     * Receive buffer wrapper.
+     */
+    private ByteBuffer receiveBuffer;
+
+    /**
+     * Frame decoder.
+     */
+    private SyncFrame decoder;
+
+    /**
+     * <H1>PeerSync</H1><BR>
+     * Use peer list <I>syncPeers</I> and port <I>syncPort</I> from
+     * Load Balancer settings. Shared sender thread is started with first instance.
+     */
+    public PeerSync() {
+    	startSender();
+
+    	receiveChannel = null;
+    	receiveData = new byte[BUFFER_LENGTH];
+    	receiveBuffer = ByteBuffer.wrap(receiveData);
+    	decoder = new SyncFrame();
+    }
+
+    /**
+     * Parse peer list and start sender thread, only once per process.
+     */
+    private static synchronized void startSender() {
+
+    	if (senderThread != null) {
+    		return;
+    	}
+
+    	peers = new ArrayList<Peer>();
+    	for (String item : LoadBalancer.syncPeers.split(",")) {
+    		item = item.trim();
+    		if (item.length() == 0) {
+    			continue;
+    		}
+    		Peer peer = new Peer();
+    		int idx = item.lastIndexOf(':');
+    		if (idx > 0 && item.indexOf(':') == idx) {
+    			peer.address = new InetSocketAddress(item.substring(0, idx), Integer.parseInt(item.substring(idx + 1)));
+    		}
+    		else {
+    			peer.address = new InetSocketAddress(item, LoadBalancer.syncPort);
+    		}
+    		peers.add(peer);
+    	}
+
+    	try {
+    		sendChannel = DatagramChannel.open();
+    		sendChannel.configureBlocking(false);
+    	} catch (IOException e) {
+    		e.printStackTrace();
+    		return;
+    	}
+
+    	senderThread = new Thread(new Runnable() {
+    		@Override
+    		public void run() {
+    			sendLoop();
+    		}
+    	}, "peerSyncThread");
+    	senderThread.setDaemon(true);
+    	senderThread.start();
+    }
+
+    /**
+     * Sender thread. Serve peer queues in turns until all are empty,
+     * then wait for new frames.
+     */
+    private static void sendLoop() {
+
+    	Selector selector = null;
+    	try {
+    		selector = Selector.open();
+    		sendChannel.register(selector, 0);
+    	} catch (IOException e) {
+    		e.printStackTrace();
+    		return;
+    	}
+    	SelectionKey key = sendChannel.keyFor(selector);
+
+    	while (true) {
+    		boolean pending = false;
+    		boolean blocked = false;
+
+    		for (Peer peer : peers) {
+    			for (int i = 0; i < FRAMES_PER_TURN; i++) {
+    				ByteBuffer frame = peer.queue.peek();
+    				if (frame == null) {
+    					break;
+    				}
+    				try {
+    					if (sendChannel.send(frame, peer.address) == 0) {
+    						/*
+    						 * Socket buffer is full, try again later.
+    						 */
+    						blocked = true;
+    						break;
+    					}
+    				} catch (IOException e) {
+    					/*
+    					 * Eg. peer address is unreachable. Drop frame and
+    					 * keep serving others.
+    					 */
+    					peer.dropped++;
+    					if (LoadBalancer.verbose > 1) {
+    						LoadBalancer.log(Thread.currentThread().getName(), "Send to peer " + peer.address + " failed: " + e.getMessage());
+    					}
+    				}
+    				peer.queue.poll();
+    			}
+    			if (!peer.queue.isEmpty()) {
+    				pending = true;
+    			}
+    		}
+
+    		if (blocked) {
+    			/*
+    			 * Wait until socket is writable.
+    			 */
+    			try {
+    				key.interestOps(SelectionKey.OP_WRITE);
+    				selector.select(10);
+    				selector.selectedKeys().clear();
+    				key.interestOps(0);
+    			} catch (IOException e) {
+    				e.printStackTrace();
+    				return;
+    			}
+    		}
+    		else if (!pending) {
+    			/*
+    			 * Nothing to send, wait for new frames.
+    			 */
+    			LockSupport.parkNanos(100000000L);
+    		}
+    	}
+    }
+
+    /**
+     * Put frame in queue of each peer, and wake up sender thread.
+     * @param buffer frame buffer
+     * @param length frame length
+     */
+    private static void enqueue(byte[] buffer, int length) {
+
+    	if (peers == null) {
+    		return;
+    	}
+
+    	byte[] data = new byte[length];
+    	System.arraycopy(buffer, 0, data, 0, length);
+    	ByteBuffer frame = ByteBuffer.wrap(data);
+
+    	for (Peer peer : peers) {
+    		while (!peer.queue.offer(frame.duplicate())) {
+    			/*
+    			 * Queue is full, drop oldest frame.
+    			 */
+    			peer.queue.poll();
+    			peer.dropped++;
+    		}
+    	}
+
+    	LockSupport.unpark(senderThread);
+    }
+
+    /**
+     * Get state of peer queues, for printouts.
+     * @return one line per peer, with address, queue length and dropped frames
+     */
+    public static String getPeerStatus() {
+    	StringBuilder sb = new StringBuilder();
+    	if (peers != null) {
+    		for (Peer peer : peers) {
+    			sb.append(peer.address + " queue: " + peer.queue.size() + ", dropped: " + peer.dropped + "\r\n");
+    		}
+    	}
+    	return sb.toString();
+    }
+
+    @Override
+    public void sendImmediately(String callID, CallType callType) throws IOException {
+		byte[] buffer = new byte[BUFFER_LENGTH];
+		int indexPos = SyncFrame.putRecord(buffer, SyncFrame.HEADER_LEN, callID, callType);
+		SyncFrame.writeHeader(buffer, 1);
+		indexPos = SyncFrame.writeTimestamp(buffer, indexPos);
+		enqueue(buffer, indexPos);
+    }
+
+    @Override
+    public void sendFrame(byte[] buffer, int length) throws IOException {
+    	enqueue(buffer, length);
+    }
+
+    @Override
+    public void retrieve(SyncListener listener) throws IOException {
+
+    	if (receiveChannel == null) {
+    		receiveChannel = DatagramChannel.open();
+    		receiveChannel.socket().bind(new InetSocketAddress(LoadBalancer.syncPort));
+    	}
+
+    	do {
+    		receiveBuffer.clear();
+    		// Blocks until a datagram is received
+    		receiveChannel.receive(receiveBuffer);
+    		// avoid packets that locally origin
+    	} while (SyncFrame.isLocal(receiveData, receiveBuffer.position()));
+
+    	decoder.decode(receiveData, receiveBuffer.position(), listener);
+    }
+
+    @Override
+    public void sendSync() throws IOException {
+    	byte[] buffer = new byte[SyncFrame.HEADER_LEN + 3];
+    	int length = SyncFrame.writeRequestAll(buffer);
+    	enqueue(buffer, length);
+    }
+
+    /**
+     * Close receive channel of this instance. Shared sender keeps
+     * running, so frames already queued are still delivered.
+     */
+    @Override
+    public void close() {
+    	if (receiveChannel != null) {
+    		try {
+    			receiveChannel.close();
+    		} catch (IOException e) {
+    			e.printStackTrace();
+    		}
+    	}
+    }
+
+}
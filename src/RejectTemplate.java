@@ -0,0 +1,219 @@
+/**
+ * <H1>Reject template</H1>
+ * Precompiled SIP <I>503 Service Unavailable</I> response, sent by load
+ * balancer itself when INVITE is not admitted, see {@link AdmissionControl}.<BR>
+ * <BR>
+ * Fixed parts of response are kept as byte segments. Via, From, To, Call-ID
+ * and CSeq headers are copied from request as bytes, without decoding it,
+ * and local tag is added to To header. Only <I>Retry-After</I> value is
+ * written for each response.<BR>
+ * <BR>
+ * Response layout:<BR>
+ * <TABLE border=2><TR><TD>status line</TD><TD>headers of request</TD><TD>Retry-After:</TD>
+ * <TD>sec.</TD><TD>trailer</TD></TR></TABLE><BR>
+ * @author eigorde
+ *
+ */
+public class RejectTemplate {
+
+	/**
+	 * Max. length of Retry-After value in decimal.
+	 */
+	private static final int MAX_VALUE_LEN = 20;
+
+	/**
+	 * Headers copied from request, lower case, full and compact form.
+	 */
+	private static final byte[][] COPY_HEADERS = {
+		"via".getBytes(), "v".getBytes(),
+		"from".getBytes(), "f".getBytes(),
+		"to".getBytes(), "t".getBytes(),
+		"call-id".getBytes(), "i".getBytes(),
+		"cseq".getBytes()
+	};
+
+	/**
+	 * Status line.
+	 */
+	private byte[] statusLine;
+
+	/**
+	 * Tag parameter added to To header.
+	 */
+	private byte[] toTag;
+
+	/**
+	 * Header name before Retry-After value.
+	 */
+	private byte[] retryAfter;
+
+	/**
+	 * Fixed headers after Retry-After value, and end of message.
+	 */
+	private byte[] trailer;
+
+	/**
+	 * <H1>Reject template</H1><BR>
+	 * Build template.
+	 * @param tag local tag for To header
+	 */
+	public RejectTemplate(String tag) {
+		statusLine = "SIP/2.0 503 Service Unavailable\r\n".getBytes();
+		toTag = (";tag=" + tag).getBytes();
+		retryAfter = "Retry-After: ".getBytes();
+		trailer = ("\r\n"
+				+ "Server: " + LoadBalancer.ver + "\r\n"
+				+ "Content-Length: 0\r\n"
+				+ "\r\n").getBytes();
+	}
+
+	/**
+	 * Get max. length of response for request of given length, eg. size of
+	 * send buffer. Each copied line may grow by one byte, when <I>\n</I> is
+	 * written as <I>\r\n</I>, so headers take at most twice request length.
+	 * @param requestLength max. length of request
+	 * @return length in bytes
+	 */
+	public int getMaxLength(int requestLength) {
+		return statusLine.length + 2 * requestLength + toTag.length + retryAfter.length + MAX_VALUE_LEN
+				+ trailer.length;
+	}
+
+	/**
+	 * Render response to request.
+	 * @param buffer send buffer, at least <I>getMaxLength(length)</I> bytes
+	 * @param request received request
+	 * @param length request length
+	 * @param retryAfterSec value of Retry-After header, in sec.
+	 * @return response length
+	 */
+	public int write(byte[] buffer, byte[] request, int length, long retryAfterSec) {
+
+		int indexPos = put(buffer, 0, statusLine);
+
+		/*
+		 * Skip request line, and copy wanted headers until empty line.
+		 */
+		boolean tagged = false;
+		int lineStart = nextLine(request, 0, length);
+		while (lineStart < length) {
+			int lineEnd = nextLine(request, lineStart, length);
+			int contentEnd = lineEnd;
+			while (contentEnd > lineStart && (request[contentEnd - 1] == '\n' || request[contentEnd - 1] == '\r')) {
+				contentEnd--;
+			}
+			if (contentEnd == lineStart) {
+				// Empty line, end of headers.
+				break;
+			}
+
+			int header = matchHeader(request, lineStart, contentEnd);
+			if (header >= 0) {
+				System.arraycopy(request, lineStart, buffer, indexPos, contentEnd - lineStart);
+				indexPos = indexPos + contentEnd - lineStart;
+				/*
+				 * To header of response needs tag of responder, only
+				 * first one if request has more of them.
+				 */
+				if ((header == 4 || header == 5) && !tagged) {
+					tagged = true;
+					if (!contains(request, lineStart, contentEnd, toTag, 4)) {
+						indexPos = put(buffer, indexPos, toTag);
+					}
+				}
+				buffer[indexPos++] = '\r';
+				buffer[indexPos++] = '\n';
+			}
+
+			lineStart = lineEnd;
+		}
+
+		indexPos = put(buffer, indexPos, retryAfter);
+		indexPos = OptionsTemplate.putLong(buffer, indexPos, retryAfterSec);
+		return put(buffer, indexPos, trailer);
+	}
+
+	/**
+	 * Find start of next line.
+	 * @param data message
+	 * @param pos position in current line
+	 * @param length message length
+	 * @return position after <I>\n</I>, or <I>length</I>
+	 */
+	private static int nextLine(byte[] data, int pos, int length) {
+		while (pos < length && data[pos] != '\n') {
+			pos++;
+		}
+		return (pos < length) ? pos + 1 : length;
+	}
+
+	/**
+	 * Check if header line is one of headers copied to response.
+	 * @param data message
+	 * @param start start of line
+	 * @param end end of line, without line break
+	 * @return index in <I>COPY_HEADERS</I>, or <I>-1</I>
+	 */
+	private static int matchHeader(byte[] data, int start, int end) {
+		int colon = start;
+		while (colon < end && data[colon] != ':') {
+			colon++;
+		}
+		if (colon == end) {
+			return -1;
+		}
+		int nameEnd = colon;
+		while (nameEnd > start && (data[nameEnd - 1] == ' ' || data[nameEnd - 1] == '\t')) {
+			nameEnd--;
+		}
+		for (int h = 0; h < COPY_HEADERS.length; h++) {
+			byte[] name = COPY_HEADERS[h];
+			if (name.length != nameEnd - start) {
+				continue;
+			}
+			int i = 0;
+			while (i < name.length && (data[start + i] | 0x20) == name[i]) {
+				i++;
+			}
+			if (i == name.length) {
+				return h;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Search bytes in part of message, case insensitive.
+	 * @param data message
+	 * @param start start of search
+	 * @param end end of search
+	 * @param pattern lower case bytes to find
+	 * @param patternLen number of pattern bytes to compare
+	 * @return <I>true</I> if pattern is found
+	 */
+	private static boolean contains(byte[] data, int start, int end, byte[] pattern, int patternLen) {
+		for (int pos = start; pos <= end - patternLen; pos++) {
+			int i = 0;
+			while (i < patternLen && (data[pos + i] | 0x20) == (pattern[i] | 0x20)) {
+				i++;
+			}
+			if (i == patternLen) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Copy segment to buffer.
+	 * @param buffer destination
+	 * @param indexPos position in destination
+	 * @param segment source
+	 * @return position after segment
+	 */
+	private static int put(byte[] buffer, int indexPos, byte[] segment) {
+		System.arraycopy(segment, 0, buffer, indexPos, segment.length);
+		return indexPos + segment.length;
+	}
+
+}
@@ -1,19 +1,24 @@
 import java.io.IOException;
 import java.net.DatagramSocket;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * <H1>Server Discovery</H1><BR>
  * SIP server discovery is based on sending SIP OPTIONS message to
  * each ip address in local subnets (private ranges in A, B or C class).<BR>
  * <BR>
+ * In <I>multicast</I> mode, and always for ipv6 interface, a SIP OPTIONS
+ * message is sent only to SIP multicast group, <I>224.0.1.75</I> for ipv4 or
+ * <I>ff02::75</I> and <I>ff05::75</I> for ipv6.<BR>
+ * <BR>
  * It is assumed that this works for most SIP implementations, and sip
  * server should reply with SIP OK message, which will be collected 
  * by <I>Collector</I>.<BR>
@@ -44,6 +49,11 @@ public class ServerDiscovery implements Runnable {
      */
     private int bindPort;
     
+    /**
+     * UDP Port where SIP servers are expected to listen.
+     */
+    private int sipPort;
+    
     /**
      * Datagram socket, if binding is already done.<BR>
      * Please use either <I>datagramSocket</I> or <I>bindPort</I>.
@@ -60,6 +70,26 @@ public class ServerDiscovery implements Runnable {
      */
     private Thread tCollector;
     
+    /**
+     * Min. time to wait for replies after last probe is sent, in msec.
+     */
+    private static final long MIN_REPLY_WAIT = 500;
+    
+    /**
+     * SIP multicast group for ipv4, <I>sip.mcast.net</I>.
+     */
+    private static final String SIP_MCAST_IPV4 = "224.0.1.75";
+    
+    /**
+     * SIP multicast groups for ipv6, link-local and site-local scope.
+     */
+    private static final String[] SIP_MCAST_IPV6 = { "ff02::75", "ff05::75" };
+    
+    /**
+     * Number of queries sent to each multicast group, in case some are lost.
+     */
+    private static final int MULTICAST_REPEAT = 3;
+    
     /**
      * Fetch list of discovered servers.
      * @return list of sip servers that have replied with SIP OK message
@@ -84,6 +114,7 @@ public class ServerDiscovery implements Runnable {
 	
 		this.selectedInterface = hostIpInterface; 
 		this.bindPort = 0;
+		this.sipPort = datagramSocket.getLocalPort();
 		this.datagramSocket = datagramSocket; 
 		this.timeout = timeout;
 		
@@ -105,9 +136,26 @@ public class ServerDiscovery implements Runnable {
 	 * @param timeout timeout value in milliseconds
 	 */
 	public ServerDiscovery(String hostIpInterface, int bindPort, long timeout) {
+		this(hostIpInterface, bindPort, bindPort, timeout);
+	}
+	
+	/**
+	 * <H1>Server Discovery</H1><BR>
+	 * Set ip interface for discovery, binding port, SIP port of servers,
+	 * and start <I>Collector</I>.<BR>
+	 * <BR>
+	 * Binding port <I>0</I> selects ephemeral port, eg. when SIP port
+	 * is already used by dispatcher.<BR>
+	 * @param hostIpInterface ip interface where to perform discovery
+	 * @param bindPort choose a udp port for binding, or <I>0</I> for any free port
+	 * @param sipPort udp port where SIP servers listen, usually <I>5060</I>
+	 * @param timeout timeout value in milliseconds
+	 */
+	public ServerDiscovery(String hostIpInterface, int bindPort, int sipPort, long timeout) {
 	
 		this.selectedInterface = hostIpInterface; 
 		this.bindPort = bindPort;
+		this.sipPort = sipPort;
 		this.datagramSocket = null;
 		this.timeout = timeout;
 		
@@ -123,7 +171,7 @@ public class ServerDiscovery implements Runnable {
 	 */
 	private void initIpInterfaceList () {
 		
-		if (bindPort > 0) {		
+		if (datagramSocket == null) {		
 			collector = new Collector(this.selectedInterface, this.bindPort);
 		} 
 		else {
@@ -188,6 +236,8 @@ public class ServerDiscovery implements Runnable {
         }
         
         boolean foundSelectedInterface = false;
+        
+        long startTime = System.currentTimeMillis();
 		
         InetAddress ipAddress = null;
         short ipMask = 0;
@@ -215,10 +265,17 @@ public class ServerDiscovery implements Runnable {
         		continue;
         	}
         	
+			/*
+			 * Multicast mode, or ipv6 where subnet is too large
+			 * for a sweep: send query to SIP multicast group.
+			 */
+			if (LoadBalancer.discoveryMode.equalsIgnoreCase("multicast") || byteAddr.length == 16) {
+				multicast(ipAddress);
+			}
 			/*
 			 * Ipv4 is 32-bit, thus has 4 bytes.
 			 */
-			if (byteAddr.length == 4) {
+			else if (byteAddr.length == 4) {
 
 				/*
 				 *  Calculate ipv4 address, subnet mask, network address and broadcast.
@@ -234,46 +291,8 @@ public class ServerDiscovery implements Runnable {
 				/*
 				 * Send SIP OPTIONS to all neighbors
 				 */
-				for (int addr = ipv4_Network + 1; addr < ipv4_Broadcast; addr++) {
-					/*
-					 * Finally, check that we don't send to our own ip address
-					 */
-					if (addr == ipv4_Address) {
-						/*
-						 * Our own ip address, skip it
-						 */
-					} else {
-						/*
-						 * Send SIP OPTIONS message
-						 */
-						try {
-							InetAddress inetAddress = InetAddress.getByAddress(intToByteArray(addr));
-
-							/*
-							 * Here is assumed that udp port 5060 will be
-							 * probably used by SIP servers which are about to
-							 * be discovered.
-							 */
-							collector.sendSipOptions(inetAddress, bindPort);
-
-							if (LoadBalancer.verbose == 3) {
-								LoadBalancer.log(Thread.currentThread().getName(), "Query sent to: "
-										+ inetAddress.getHostAddress());
-							}
-
-						} catch (UnknownHostException e) {
-							e.printStackTrace();
-						} catch (IOException e) {
-							e.printStackTrace();
-						}
-					}
-
-				}
+				sweep(ipv4_Network + 1, ipv4_Broadcast, ipv4_Address);
 				
-			} else if (byteAddr.length == 16) {
-				/*
-				 *  ipv6 is not yet supported. :(
-				 */
 			}
 
         }
@@ -289,10 +308,12 @@ public class ServerDiscovery implements Runnable {
         }
         
         /*
-         *  Sleep and wait for collector to collect replies.
+         *  Sleep and wait for collector to collect replies, until
+         *  timeout. Replies to last probes need some time too.
          */
         try {
-			Thread.sleep(timeout);
+        	long remaining = startTime + timeout - System.currentTimeMillis();
+			Thread.sleep(Math.max(remaining, MIN_REPLY_WAIT));
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
@@ -306,16 +327,113 @@ public class ServerDiscovery implements Runnable {
 	}
     	
 	/**
-	 * Convert 32bit integer into 4 byte array.
-	 * @param value integer
-	 * @return byte array
+	 * Send SIP OPTIONS to SIP multicast group, instead of each address in
+	 * subnet. Servers which joined the group reply directly to <I>Collector</I>.<BR>
+	 * <BR>
+	 * Few queries are sent in total, regardless of subnet size.
+	 * @param ipAddress selected ip interface, ipv4 or ipv6
 	 */
-	private final byte[] intToByteArray(int value) {
-	    return new byte[] {
-	            (byte)(value >>> 24),
-	            (byte)(value >>> 16),
-	            (byte)(value >>> 8),
-	            (byte)value};
+	private void multicast(InetAddress ipAddress) {
+
+		String[] groups;
+		if (ipAddress instanceof Inet6Address) {
+			groups = SIP_MCAST_IPV6;
+		}
+		else {
+			groups = new String[] { SIP_MCAST_IPV4 };
+		}
+
+		try {
+			collector.setMulticastInterface(ipAddress);
+
+			for (int i = 0; i < MULTICAST_REPEAT; i++) {
+				for (String group : groups) {
+					/*
+					 * Here is assumed that udp port 5060 will be
+					 * probably used by SIP servers which are about to
+					 * be discovered.
+					 */
+					collector.sendSipOptions(InetAddress.getByName(group), sipPort);
+
+					if (LoadBalancer.verbose == 3) {
+						LoadBalancer.log(Thread.currentThread().getName(), "Query sent to: " + group);
+					}
+				}
+				Thread.sleep(MIN_REPLY_WAIT / MULTICAST_REPEAT);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Send SIP OPTIONS to each address in range, at <I>discoveryRate</I>
+	 * packets per second. When rate is <I>0</I>, probes are spread over
+	 * half of discovery timeout, so that remaining half is left for replies.<BR>
+	 * <BR>
+	 * Probes are sent in bursts: after each pause, all probes which are due
+	 * are sent at once, so high rates are reached even with coarse timer.
+	 * @param first first address in range
+	 * @param end address after last one, eg. broadcast address
+	 * @param own our own address, which is skipped
+	 */
+	private void sweep(int first, int end, int own) {
+
+		long count = (end & 0xffffffffL) - (first & 0xffffffffL);
+		if (count <= 0) {
+			return;
+		}
+
+		long rate = LoadBalancer.discoveryRate;
+		if (rate <= 0) {
+			rate = Math.max(1, count * 1000 / Math.max(1, timeout / 2));
+		}
+		long interval = 1000000000L / rate;
+
+		if (LoadBalancer.verbose > 1) {
+			LoadBalancer.log(Thread.currentThread().getName(), "Sending " + count
+					+ " queries at " + rate + " pps.");
+		}
+
+		long nextTime = System.nanoTime();
+
+		for (int addr = first; addr != end; addr++) {
+			/*
+			 * Finally, check that we don't send to our own ip address
+			 */
+			if (addr == own) {
+				continue;
+			}
+
+			long wait = nextTime - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			nextTime = nextTime + interval;
+
+			try {
+				/*
+				 * Here is assumed that udp port 5060 will be
+				 * probably used by SIP servers which are about to
+				 * be discovered. Retry while send buffer is full.
+				 */
+				while (!collector.sendSipOptions(addr, sipPort)) {
+					LockSupport.parkNanos(100000);
+				}
+
+				if (LoadBalancer.verbose == 3) {
+					LoadBalancer.log(Thread.currentThread().getName(), "Query sent to: "
+							+ ((addr >>> 24) & 0xff) + "." + ((addr >>> 16) & 0xff) + "."
+							+ ((addr >>> 8) & 0xff) + "." + (addr & 0xff));
+				}
+
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+		}
 	}
 	
 }
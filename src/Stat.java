@@ -20,6 +20,11 @@ public class Stat {
 	 * Multicast sync. ALL request, INVITE update and BYE update column indexes.
 	 */	
 	final public int SYNC_ALL = 4, SYNC_INVITE = 5, SYNC_BYE = 6;
+
+	/**
+	 * SIP INVITE rejected by admission control, column index.
+	 */
+	final public int SIP_REJECTED = 7;
 	
 	private long[][] data = {
 			{0, 0, 0}, // SIP INVITE
@@ -30,7 +35,9 @@ public class Stat {
 			
 			{0, 0, 0}, // sync request all
 			{0, 0, 0}, // sync invite update
-			{0, 0, 0}  // sync bye update
+			{0, 0, 0}, // sync bye update
+			
+			{0, 0, 0}  // SIP INVITE rejected
 	};
 	
 	private long lastUpdate;
@@ -72,6 +79,16 @@ public class Stat {
 		data[index][2]++;		
 	}
 
+	/**
+	 * Increase counter by several units at once.
+	 * @param index index of counter
+	 * @param value how much to add
+	 */
+	public void add(int index, long value) {
+		lastUpdate();
+		data[index][2] += value;
+	}
+
 	private String getColumnName(int index) {
 		switch (index) {
 		case SIP_INVITE:     return "    SIP INVITE";
@@ -81,6 +98,7 @@ public class Stat {
 		case SYNC_ALL:       return "   SYNC    ALL";
 		case SYNC_INVITE:    return "   SYNC INVITE";
 		case SYNC_BYE:       return "   SYNC    BYE";
+		case SIP_REJECTED:   return "  SIP REJECTED";
 		}
 		return "-";
 	}
@@ -0,0 +1,257 @@
+import java.net.UnknownHostException;
+import java.util.Random;
+
+/**
+ * <H1>Sync frame</H1>
+ * Encoding and decoding of datagrams exchanged between Load Balancer peers.<BR>
+ * <BR>
+ * Frame format:<BR>
+ * <TABLE border=2><TR><TD>sender id</TD><TD>count (n)</TD><TD>callID-1 length</TD><TD>callID-1</TD>
+ * <TD>callType-1 length</TD><TD>callType-1</TD>
+ * <TD>...</TD><TD>callID-n length</TD><TD>callID-n</TD><TD>callType-n length</TD>
+ * <TD>callType-n</TD> </TR></TABLE><BR>
+ * Where:<BR>
+ * <I>sender id</I> is 4 byte random value, chosen once per process. It is used to
+ * recognize and avoid locally generated datagrams<BR>
+ * <I>count</I> is number of records in frame, 1 byte<BR>
+ * <BR>
+ * Request for synchronization is a frame with <I>count</I> set to <I>0</I>,
+ * followed by word <I>ALL</I>.<BR>
+ * <BR>
+ * Frame with records may end with 8 byte send time stamp (UNIX time), which
+ * gives sync lag on receiving peer. Older peers stop decoding after <I>count</I>
+ * records, so they just ignore it.
+ * @author eigorde
+ *
+ */
+public class SyncFrame {
+
+	/**
+	 * Identifier of this Load Balancer instance, written in each frame header.
+	 */
+	static final int SENDER_ID = new Random().nextInt();
+
+	/**
+	 * Header length, sender id and count.
+	 */
+	static final int HEADER_LEN = 5;
+
+	/**
+	 * Frame payload limit. Records are added to frame until this limit is crossed.
+	 */
+	static final int FRAME_LIMIT = 1000;
+
+	/**
+	 * Max. number of records in one frame, since count is 1 byte.
+	 */
+	static final int MAX_RECORDS = 255;
+
+	/**
+	 * Max. length of CallID in bytes, since its length is 1 byte in
+	 * frames, snapshot and write-ahead log.
+	 */
+	static final int MAX_CALLID_LEN = 255;
+
+	/**
+	 * Length of send time stamp at end of frame.
+	 */
+	static final int TIMESTAMP_LEN = 8;
+
+	/**
+	 * Decoded CallIDs of last frame, reused for each frame.
+	 */
+	private String[] callIDs = new String[MAX_RECORDS];
+
+	/**
+	 * Decoded call records of last frame, reused for each frame.
+	 */
+	private CallType[] callTypes = new CallType[MAX_RECORDS];
+
+	/**
+	 * Write frame header to buffer.
+	 * @param buffer datagram buffer
+	 * @param count number of records in frame
+	 */
+	static void writeHeader(byte[] buffer, int count) {
+		buffer[0] = (byte) (SENDER_ID >>> 24);
+		buffer[1] = (byte) (SENDER_ID >>> 16);
+		buffer[2] = (byte) (SENDER_ID >>> 8);
+		buffer[3] = (byte) SENDER_ID;
+		buffer[4] = (byte) count;
+	}
+
+	/**
+	 * Append send time stamp after last record.
+	 * @param buffer datagram buffer
+	 * @param indexPos position after last record
+	 * @return frame length
+	 */
+	static int writeTimestamp(byte[] buffer, int indexPos) {
+		long now = System.currentTimeMillis();
+		for (int i = 7; i >= 0; i--) {
+			buffer[indexPos + i] = (byte) now;
+			now = now >>> 8;
+		}
+		return indexPos + TIMESTAMP_LEN;
+	}
+
+	/**
+	 * Write <I>ALL</I> request frame to buffer.
+	 * @param buffer datagram buffer
+	 * @return frame length
+	 */
+	static int writeRequestAll(byte[] buffer) {
+		writeHeader(buffer, 0);
+		buffer[HEADER_LEN] = 'A';
+		buffer[HEADER_LEN + 1] = 'L';
+		buffer[HEADER_LEN + 2] = 'L';
+		return HEADER_LEN + 3;
+	}
+
+	/**
+	 * Append <I>{callID, CallType}</I> record to buffer.
+	 * @param buffer datagram buffer
+	 * @param indexPos position where to write record
+	 * @param callID SIP CallID string
+	 * @param callType call record
+	 * @return position after record
+	 */
+	static int putRecord(byte[] buffer, int indexPos, String callID, CallType callType) {
+		/*
+		 * Store CallID part in buffer.
+		 */
+		byte[] callIDRaw = callID.getBytes();
+		buffer[indexPos] = (byte) callIDRaw.length;
+		indexPos++;
+		System.arraycopy(callIDRaw, 0, buffer, indexPos, callIDRaw.length);
+		indexPos = indexPos + callIDRaw.length;
+		/*
+		 * Store CallType part in buffer.
+		 */
+		byte[] callTypeRaw = callType.getBytes();
+		buffer[indexPos] = (byte) callTypeRaw.length;
+		indexPos++;
+		System.arraycopy(callTypeRaw, 0, buffer, indexPos, callTypeRaw.length);
+		indexPos = indexPos + callTypeRaw.length;
+
+		return indexPos;
+	}
+
+	/**
+	 * Check if frame was sent by this Load Balancer instance.
+	 * @param data datagram buffer
+	 * @param length datagram length
+	 * @return <I>true</I> if sender id in header is our own
+	 */
+	static boolean isLocal(byte[] data, int length) {
+		if (length < HEADER_LEN) {
+			return false;
+		}
+		int senderID = ((data[0] & 0xFF) << 24)
+				+ ((data[1] & 0xFF) << 16)
+				+ ((data[2] & 0xFF) << 8)
+				+ (data[3] & 0xFF);
+		return senderID == SENDER_ID;
+	}
+
+	/**
+	 * Decode frame and pass all records to listener at once.<BR>
+	 * <BR>
+	 * Records are read in place, directly from datagram buffer. Released calls
+	 * (bye flag set) are reported only by CallID, without decoding addresses.
+	 * Malformed record terminates decoding of the frame, records before it are
+	 * still passed to listener.
+	 * @param data datagram buffer
+	 * @param length datagram length
+	 * @param listener receiver of decoded records
+	 */
+	void decode(byte[] data, int length, SyncListener listener) {
+
+		if (length < HEADER_LEN) {
+			return;
+		}
+
+		int count = data[4] & 0xFF;
+
+		/*
+		 * Special case when ALL keyword is received.
+		 */
+		if (count == 0) {
+			if (length >= HEADER_LEN + 3
+					&& data[HEADER_LEN] == 'A'
+					&& data[HEADER_LEN + 1] == 'L'
+					&& data[HEADER_LEN + 2] == 'L') {
+				listener.syncRequested();
+			}
+			return;
+		}
+
+		int indexPos = HEADER_LEN;
+		int decoded = 0;
+
+		/*
+		 * Loop until all records in datagram are extracted.
+		 */
+		while (decoded < count && indexPos < length) {
+
+			int callIDLen = data[indexPos] & 0xFF;
+			indexPos++;
+			if (indexPos + callIDLen >= length) {
+				break;
+			}
+			String callID = new String(data, indexPos, callIDLen);
+			indexPos = indexPos + callIDLen;
+
+			int callTypeLen = data[indexPos] & 0xFF;
+			indexPos++;
+			if (callTypeLen == 0 || indexPos + callTypeLen > length) {
+				break;
+			}
+
+			/*
+			 * Last byte of call record is bye flag.
+			 */
+			CallType callType = null;
+			if (data[indexPos + callTypeLen - 1] != 1) {
+				try {
+					callType = new CallType(data, indexPos);
+				} catch (UnknownHostException e) {
+					e.printStackTrace();
+					break;
+				}
+			}
+			indexPos = indexPos + callTypeLen;
+
+			callIDs[decoded] = callID;
+			callTypes[decoded] = callType;
+			decoded++;
+		}
+
+		/*
+		 * Time stamp follows last record, if sender wrote it.
+		 */
+		long lag = -1;
+		if (decoded == count && length - indexPos == TIMESTAMP_LEN) {
+			long sentAt = 0;
+			for (int i = 0; i < TIMESTAMP_LEN; i++) {
+				sentAt = (sentAt << 8) | (data[indexPos + i] & 0xFF);
+			}
+			// Clocks of peers may differ a bit.
+			lag = Math.max(System.currentTimeMillis() - sentAt, 0);
+		}
+		LoadBalancer.metrics.syncReceived(lag);
+
+		if (decoded > 0) {
+			listener.callRecordsReceived(callIDs, callTypes, decoded);
+
+			/*
+			 * Do not hold references until next frame.
+			 */
+			for (int i = 0; i < decoded; i++) {
+				callIDs[i] = null;
+				callTypes[i] = null;
+			}
+		}
+	}
+
+}
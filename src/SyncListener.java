@@ -0,0 +1,31 @@
+/**
+ * <H1>Sync listener</H1>
+ * Callback used by {@link McastSync} to hand decoded call records directly to
+ * the consumer, without collecting them in an intermediate table.<BR>
+ * Records are passed frame by frame, so consumer can apply a whole frame in one pass.<BR>
+ * <BR>
+ * All methods are invoked on the thread which called <I>retrieve()</I>, while
+ * the receive buffer is still being decoded.
+ * @author eigorde
+ *
+ */
+public interface SyncListener {
+
+	/**
+	 * Frame with call records was received from a peer.<BR>
+	 * <BR>
+	 * Arrays are owned by decoder and reused for next frame, so
+	 * do not keep references to them after this call returns.
+	 * @param callIDs SIP CallID strings
+	 * @param callTypes decoded call records, or <I>null</I> where peer has released
+	 * a call (bye flag set) and call record should be removed
+	 * @param count number of records in frame
+	 */
+	void callRecordsReceived(String[] callIDs, CallType[] callTypes, int count);
+
+	/**
+	 * Peer has requested full call table, eg. <I>ALL</I> request.
+	 */
+	void syncRequested();
+
+}
@@ -0,0 +1,240 @@
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * <H1>Sync responder</H1>
+ * Answers synchronization requests (<I>ALL</I>) from peers by sending full
+ * call table.<BR>
+ * <BR>
+ * Requests which arrive within <I>syncWindow</I> of the first one are served
+ * by a single pass over call table, eg. when several peers restart at the same time.
+ * A request which arrives while call table is being sent, is served by another
+ * pass once the current one completes.<BR>
+ * <BR>
+ * Frames are paced to <I>syncRate</I> bytes per second, so that a large call
+ * table does not flood multicast group (or peers) and local sip socket. This thread runs
+ * with minimum priority, and a pass in progress can be aborted with <I>abort()</I>.
+ * @author eigorde
+ *
+ */
+public class SyncResponder implements Runnable {
+
+	/**
+	 * Datagram buffer size.
+	 */
+	private static final int BUFFER_LENGTH = 4096;
+
+	/**
+	 * Transport used to send frames.
+	 */
+	private SyncTransport syncTransport;
+
+	/**
+	 * Flag which is <I>true</I> when there is a request waiting to be served.
+	 */
+	private boolean requested;
+
+	/**
+	 * Time of first request waiting to be served.
+	 */
+	private long requestedAt;
+
+	/**
+	 * Flag which is <I>true</I> when pass in progress should stop.
+	 */
+	private volatile boolean abort;
+
+	/**
+	 * Flag which is <I>true</I> while call table is being sent.
+	 */
+	private volatile boolean running;
+
+	/**
+	 * <H1>Sync responder</H1><BR>
+	 * Send call table with given transport.
+	 * @param syncTransport multicast or peer synchronizer
+	 */
+	public SyncResponder(SyncTransport syncTransport) {
+		this.syncTransport = syncTransport;
+		requested = false;
+		abort = false;
+		running = false;
+	}
+
+	/**
+	 * Order sending of full call table. Returns immediately, call table
+	 * is sent by responder thread.
+	 */
+	public synchronized void request() {
+		if (requested) {
+			/*
+			 * Already waiting, same pass will serve this request too.
+			 */
+			if (LoadBalancer.verbose == 3) {
+				LoadBalancer.log(Thread.currentThread().getName(), "Synchronization request merged with pending one.");
+			}
+			return;
+		}
+		requested = true;
+		requestedAt = System.currentTimeMillis();
+		notifyAll();
+	}
+
+	/**
+	 * Stop sending of call table, if a pass is in progress.
+	 * Pending request, if any, is dropped too.
+	 */
+	public synchronized void abort() {
+		abort = true;
+		requested = false;
+	}
+
+	/**
+	 * Check if call table is being sent.
+	 * @return <I>true</I> if pass is in progress
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Wait for request and merge window to expire.
+	 * @throws InterruptedException
+	 */
+	private synchronized void awaitRequest() throws InterruptedException {
+		while (true) {
+			if (requested) {
+				long delta = requestedAt + LoadBalancer.syncWindow - System.currentTimeMillis();
+				if (delta <= 0) {
+					requested = false;
+					abort = false;
+					return;
+				}
+				wait(delta);
+			}
+			else {
+				wait();
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+
+		while (true)
+			try {
+				awaitRequest();
+
+				running = true;
+				sendCallTable();
+				running = false;
+
+			} catch (InterruptedException e) {
+				// Quit while loop.
+				break;
+			} catch (IOException e) {
+				running = false;
+				// Print error on console.
+				e.printStackTrace();
+			}
+
+		syncTransport.close();
+	}
+
+	/**
+	 * Send all call records to peers, paced to <I>syncRate</I>.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void sendCallTable() throws IOException, InterruptedException {
+
+		long startTime = System.currentTimeMillis();
+
+		byte[] buffer = new byte[BUFFER_LENGTH];
+		int indexPos = SyncFrame.HEADER_LEN;
+		int count = 0;
+
+		long total = 0;
+		long bytes = 0;
+
+		/*
+		 * Time when next frame may be sent, in nanoseconds.
+		 */
+		long nextSend = System.nanoTime();
+
+		for (Map.Entry<String, CallType> entry : LoadBalancer.getCallRecordEntries()) {
+
+			indexPos = SyncFrame.putRecord(buffer, indexPos, entry.getKey(), entry.getValue());
+			count++;
+			total++;
+
+			/*
+			 * Check that datagram size does not exceed.
+			 */
+			if (indexPos > SyncFrame.FRAME_LIMIT) {
+				nextSend = pace(nextSend, indexPos);
+				if (abort) {
+					break;
+				}
+				SyncFrame.writeHeader(buffer, count);
+				indexPos = SyncFrame.writeTimestamp(buffer, indexPos);
+				syncTransport.sendFrame(buffer, indexPos);
+				bytes = bytes + indexPos;
+
+				indexPos = SyncFrame.HEADER_LEN;
+				count = 0;
+			}
+		}
+
+		/*
+		 * Send remaining records.
+		 */
+		if (count > 0 && !abort) {
+			pace(nextSend, indexPos);
+			SyncFrame.writeHeader(buffer, count);
+			indexPos = SyncFrame.writeTimestamp(buffer, indexPos);
+			syncTransport.sendFrame(buffer, indexPos);
+			bytes = bytes + indexPos;
+		}
+
+		if (abort) {
+			if (LoadBalancer.verbose > 1) {
+				LoadBalancer.log(Thread.currentThread().getName(), "Synchronization aborted, " + bytes + " bytes sent.");
+			}
+		}
+		else if (LoadBalancer.verbose == 3) {
+			LoadBalancer.log(Thread.currentThread().getName(), total + " call records broadcasted, "
+					+ bytes + " bytes in " + (System.currentTimeMillis() - startTime) + " msec.");
+		}
+	}
+
+	/**
+	 * Wait until frame may be sent, and calculate time for next frame.
+	 * @param nextSend time when this frame may be sent, in nanoseconds
+	 * @param length frame length in bytes
+	 * @return time when next frame may be sent, in nanoseconds
+	 * @throws InterruptedException
+	 */
+	private long pace(long nextSend, int length) throws InterruptedException {
+		long rate = LoadBalancer.syncRate;
+		if (rate <= 0) {
+			/*
+			 * Pacing disabled.
+			 */
+			return nextSend;
+		}
+		long now = System.nanoTime();
+		if (nextSend > now) {
+			long delta = nextSend - now;
+			Thread.sleep(delta / 1000000, (int) (delta % 1000000));
+		}
+		else {
+			/*
+			 * Do not accumulate credit while idle or behind.
+			 */
+			nextSend = now;
+		}
+		return nextSend + length * 1000000000L / rate;
+	}
+
+}
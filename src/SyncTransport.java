@@ -0,0 +1,51 @@
+import java.io.IOException;
+
+/**
+ * <H1>Sync transport</H1>
+ * Transport which carries synchronization frames between Load Balancer peers,
+ * see {@link SyncFrame}.<BR>
+ * <BR>
+ * Implementations are {@link McastSync}, which uses multicast group, and
+ * {@link PeerSync}, which sends to configured list of peers over unicast.
+ * Use <I>LoadBalancer.newSyncTransport()</I> to get one according to settings.
+ * @author eigorde
+ *
+ */
+public interface SyncTransport {
+
+	/**
+	 * Immediately sends update to peers, a frame with one call record.
+	 * @param callID SIP CallID string
+	 * @param callType call record
+	 * @throws IOException
+	 */
+	void sendImmediately(String callID, CallType callType) throws IOException;
+
+	/**
+	 * Send already encoded frame to peers.
+	 * @param buffer datagram buffer with frame header and records
+	 * @param length frame length
+	 * @throws IOException
+	 */
+	void sendFrame(byte[] buffer, int length) throws IOException;
+
+	/**
+	 * Receive frame from peers and pass it to listener. This is blocking call.
+	 * Frames sent by this Load Balancer instance are skipped.
+	 * @param listener receiver of call records and synchronization requests
+	 * @throws IOException
+	 */
+	void retrieve(SyncListener listener) throws IOException;
+
+	/**
+	 * Send synchronization request (<I>ALL</I>) to peers.
+	 * @throws IOException
+	 */
+	void sendSync() throws IOException;
+
+	/**
+	 * Close sockets of this instance.
+	 */
+	void close();
+
+}
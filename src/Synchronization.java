@@ -1,92 +1,36 @@
 import java.io.IOException;
-import java.util.Map;
 
 /**
  * <H1>Synchronization</H1>
  * This class will enable synchronization between peers running Load Balancer.<BR>
  * Each peer that receives a new call on sip interface, should broadcast call record
- * via multicast to the rest of group. Members of group who receive such message should
- * store call record in their call tables.
+ * via multicast (or unicast to list of peers) to the rest of group. Members of group who receive such message should
+ * store call record in their call tables.<BR>
+ * <BR>
+ * Received records are applied to call table directly from receive buffer,
+ * see {@link SyncListener}.
  * @author eigorde
  *
  */
-public class Synchronization implements Runnable {
+public class Synchronization implements Runnable, SyncListener {
+
+	/**
+	 * Multicast or peer synchronizer, used to receive updates.
+	 */
+	private SyncTransport syncTransport;
 
     @Override
     public void run() {
     	
-        McastSync mcastSync = new McastSync();
+        syncTransport = LoadBalancer.newSyncTransport();
 
         while (true)
             try {
             	/*
-            	 * Wait for multicast datagram.
+            	 * Wait for multicast datagram, and apply
+            	 * updates / requests it carries.
             	 */
-            	mcastSync.retrieve();
-                
-                /*
-                 * Check what kind of update / request we received.
-                 */
-            	if (mcastSync.getRequestALL()) {
-                	/*
-                	 * Increase stat. counter.
-                	 */
-                	LoadBalancer.stat.increment(LoadBalancer.stat.SYNC_ALL);
-                	
-                    if (LoadBalancer.verbose == 3) {                    
-                        LoadBalancer.log(Thread.currentThread().getName(), "Request for synchronization is ordered.");
-                    }
-                    
-                    /*
-                     * Send all call records to peers.
-                     */
-                    for (String key : LoadBalancer.getCallRecords()) {
-                        String callID = key;
-                        CallType callType = LoadBalancer.getCallRecord(key);
-                        if (LoadBalancer.verbose == 3) {                        
-                            LoadBalancer.log(Thread.currentThread().getName(), "CallID " + callID + " broadcasted.");
-                        }
-                        mcastSync.store(callID, callType);
-                    }         
-                    mcastSync.flush();
-            	}
-            	else {
-                	/*
-                	 * Get new calls (updates).
-                	 */
-                    Map<String, CallType> updates = mcastSync.getReceivedCalls();
-
-                    for (String callID : updates.keySet()) {
-                    	CallType callType = updates.get(callID);
-                    
-                    	if (LoadBalancer.verbose == 3) {                    
-                    		LoadBalancer.log(Thread.currentThread().getName(), "CallID " + callID + " received.");
-                    	}
-                    	
-						/*
-						 * Add or remove call record from table, depending on
-						 * bye flag, if it's set or not.
-						 */
-						if (callType.bye) {
-							// Remove call record from table.
-							LoadBalancer.removeCallRecord(callID);
-
-							// Increase stat. counter.
-							LoadBalancer.stat.increment(LoadBalancer.stat.SYNC_BYE);
-						} else {
-							// Add call record to table.
-							LoadBalancer.putCallRecord(callID, callType);
-
-							// Increase stat. counter.
-							LoadBalancer.stat.increment(LoadBalancer.stat.SYNC_INVITE);
-						}
-                    }
-                    
-                    /*
-                     * Clean buffer and make it ready to receive new calls.
-                     */
-                    mcastSync.cleanReceivedCalls();
-            	}
+            	syncTransport.retrieve(this);
             	
             } catch (IOException e) {
                 // Print error on console.
@@ -96,7 +40,48 @@ public class Synchronization implements Runnable {
             }
 
         // Close udp socket.
-        mcastSync.close();
+        syncTransport.close();
     }
 
+	@Override
+	public void callRecordsReceived(String[] callIDs, CallType[] callTypes, int count) {
+
+		/*
+		 * Add or remove call records from table, whole frame at once,
+		 * depending on call record being present or released (bye flag).
+		 */
+		int removed = LoadBalancer.applyCallRecords(callIDs, callTypes, count);
+
+		if (LoadBalancer.verbose == 3) {
+			LoadBalancer.log(Thread.currentThread().getName(), count + " call records received, "
+					+ removed + " removed.");
+		}
+
+		// Increase stat. counters, once per frame.
+		if (count > removed) {
+			LoadBalancer.stat.add(LoadBalancer.stat.SYNC_INVITE, count - removed);
+		}
+		if (removed > 0) {
+			LoadBalancer.stat.add(LoadBalancer.stat.SYNC_BYE, removed);
+		}
+	}
+
+	@Override
+	public void syncRequested() {
+		/*
+		 * Increase stat. counter.
+		 */
+		LoadBalancer.stat.increment(LoadBalancer.stat.SYNC_ALL);
+
+		if (LoadBalancer.verbose == 3) {
+			LoadBalancer.log(Thread.currentThread().getName(), "Request for synchronization is ordered.");
+		}
+
+		/*
+		 * Send all call records to peers. This is done by responder
+		 * thread, which merges simultaneous requests and paces frames.
+		 */
+		LoadBalancer.syncResponder.request();
+	}
+
 }
@@ -0,0 +1,702 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * <H1>Tcp connection</H1>
+ * One SIP over tcp connection, accepted from caller or opened toward node,
+ * served by one event loop of {@link TcpTransport}.<BR>
+ * <BR>
+ * Received bytes are split in SIP messages by <I>Content-Length</I> header,
+ * and each message is passed to {@link Dispatcher}, same as udp datagram.
+ * Messages are sent from any thread. They are written directly when socket
+ * accepts them, otherwise they wait in queue until event loop sees socket
+ * writable.<BR>
+ * <BR>
+ * Connection with <I>SSLEngine</I> is SIP over TLS. Records are unwrapped
+ * and wrapped here, while handshake tasks, eg. crypto work, run in handshake
+ * pool of transport, so event loop is never blocked by them. Messages sent
+ * before handshake completes wait in queue.
+ * @author eigorde
+ *
+ */
+public class TcpConnection {
+
+	/**
+	 * Max. bytes waiting in send queue, slower peer is disconnected.
+	 */
+	private static final int MAX_QUEUED = 4 * 1024 * 1024;
+
+	/**
+	 * Initial size of receive buffer, it grows through size classes of
+	 * {@link BufferPool} up to <I>MAX_MESSAGE_LEN</I>.
+	 */
+	private static final int READ_BUFFER_LEN = 2048;
+
+	/**
+	 * End of SIP headers.
+	 */
+	private static final byte[] HEADER_END = "\r\n\r\n".getBytes();
+
+	/**
+	 * Content-Length header, lower case, full and compact form.
+	 */
+	private static final byte[][] CONTENT_LENGTH = { "content-length".getBytes(), "l".getBytes() };
+
+	/**
+	 * Transport which owns connection.
+	 */
+	private final TcpTransport transport;
+
+	/**
+	 * Socket channel.
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * Address and port of peer.
+	 */
+	private final InetSocketAddress remote;
+
+	/**
+	 * Selector of event loop, set when connection is registered.
+	 */
+	private Selector selector;
+
+	/**
+	 * Key in selector of event loop.
+	 */
+	private SelectionKey key;
+
+	/**
+	 * Received bytes not yet dispatched, in write mode.
+	 */
+	private ByteBuffer readBuffer;
+
+	/**
+	 * Messages waiting to be written.
+	 */
+	private ArrayDeque<ByteBuffer> writeQueue;
+
+	/**
+	 * Bytes in <I>writeQueue</I>.
+	 */
+	private int queued;
+
+	/**
+	 * Connect is in progress, messages wait in queue.
+	 */
+	private boolean connecting;
+
+	/**
+	 * Connection is closed.
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * TLS engine, or <I>null</I> for plain tcp.
+	 */
+	private SSLEngine engine;
+
+	/**
+	 * Received TLS records not yet unwrapped, in write mode.
+	 */
+	private ByteBuffer netIn;
+
+	/**
+	 * Messages sent before TLS handshake completed.
+	 */
+	private ArrayDeque<ByteBuffer> pendingApp;
+
+	/**
+	 * TLS handshake is done, messages can be wrapped.
+	 */
+	private boolean handshakeDone;
+
+	/**
+	 * Handshake tasks run in handshake pool.
+	 */
+	private boolean taskRunning;
+
+	/**
+	 * Handshake tasks are done, event loop should continue handshake.
+	 */
+	private volatile boolean resume;
+
+	/**
+	 * <H1>Tcp connection</H1><BR>
+	 * Wrap connected or connecting channel.
+	 * @param transport transport which owns connection
+	 * @param channel non-blocking socket channel
+	 * @param remote address and port of peer
+	 * @param connecting <I>true</I> if connect is still in progress
+	 */
+	public TcpConnection(TcpTransport transport, SocketChannel channel, InetSocketAddress remote, boolean connecting) {
+		this.transport = transport;
+		this.channel = channel;
+		this.remote = remote;
+		this.connecting = connecting;
+		this.readBuffer = ByteBuffer.wrap(LoadBalancer.bufferPool.acquire(READ_BUFFER_LEN));
+		this.writeQueue = new ArrayDeque<ByteBuffer>();
+	}
+
+	/**
+	 * <H1>Tcp connection</H1><BR>
+	 * Wrap accepted channel, with TLS.
+	 * @param transport transport which owns connection
+	 * @param channel non-blocking socket channel
+	 * @param remote address and port of peer
+	 * @param engine TLS engine in server mode, handshake not started yet
+	 * @throws SSLException
+	 */
+	public TcpConnection(TcpTransport transport, SocketChannel channel, InetSocketAddress remote, SSLEngine engine)
+			throws SSLException {
+		this(transport, channel, remote, false);
+		this.engine = engine;
+		this.netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+		/*
+		 * Unwrapped record needs room of whole application buffer,
+		 * which is not size class of buffer pool.
+		 */
+		LoadBalancer.bufferPool.release(this.readBuffer.array());
+		this.readBuffer = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+		this.pendingApp = new ArrayDeque<ByteBuffer>();
+		engine.beginHandshake();
+	}
+
+	/**
+	 * Get address and port of peer.
+	 * @return peer address
+	 */
+	public InetSocketAddress getRemote() {
+		return remote;
+	}
+
+	/**
+	 * Check if connection is closed.
+	 * @return <I>true</I> if closed
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Register connection in selector of event loop. Called by event loop.
+	 * @param selector selector of event loop
+	 * @throws IOException
+	 */
+	synchronized void register(Selector selector) throws IOException {
+		this.selector = selector;
+		int ops = connecting ? SelectionKey.OP_CONNECT : SelectionKey.OP_READ;
+		if (!connecting && !writeQueue.isEmpty()) {
+			ops = ops | SelectionKey.OP_WRITE;
+		}
+		key = channel.register(selector, ops, this);
+	}
+
+	/**
+	 * Send SIP message. Message is copied, so buffer can be reused.
+	 * @param data message
+	 * @param length message length
+	 * @return <I>false</I> if connection is closed and message is dropped
+	 */
+	public boolean send(byte[] data, int length) {
+		byte[] copy = LoadBalancer.bufferPool.acquire(length);
+		System.arraycopy(data, 0, copy, 0, length);
+		ByteBuffer buffer = ByteBuffer.wrap(copy, 0, length);
+		synchronized (this) {
+			if (closed) {
+				LoadBalancer.bufferPool.release(copy);
+				return false;
+			}
+			try {
+				if (engine == null) {
+					write(buffer);
+				}
+				else if (handshakeDone) {
+					wrap(buffer);
+				}
+				else {
+					pendingApp.add(buffer);
+				}
+				/*
+				 * Buffer which is not queued is done.
+				 */
+				if (!buffer.hasRemaining()) {
+					LoadBalancer.bufferPool.release(copy);
+				}
+			} catch (IOException e) {
+				close(e.getMessage());
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write bytes to socket, or queue them if socket is full. Called
+	 * with connection locked.
+	 * @param buffer bytes to write
+	 * @throws IOException
+	 */
+	private void write(ByteBuffer buffer) throws IOException {
+		if (!connecting && writeQueue.isEmpty()) {
+			channel.write(buffer);
+			if (!buffer.hasRemaining()) {
+				return;
+			}
+		}
+		if (queued + buffer.remaining() > MAX_QUEUED) {
+			throw new IOException("send queue full");
+		}
+		writeQueue.add(buffer);
+		queued = queued + buffer.remaining();
+		if (!connecting && key != null) {
+			try {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			} catch (CancelledKeyException e) {
+				// Closed by event loop meanwhile.
+				throw new IOException("connection closed");
+			}
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Wrap message in TLS records and write them. Called with connection locked.
+	 * @param buffer message, or empty buffer for handshake data
+	 * @throws IOException
+	 */
+	private void wrap(ByteBuffer buffer) throws IOException {
+		do {
+			ByteBuffer netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+			SSLEngineResult result = engine.wrap(buffer, netOut);
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+				throw new IOException("TLS closed");
+			}
+			netOut.flip();
+			if (netOut.hasRemaining()) {
+				write(netOut);
+			}
+			handshakeStatus(result);
+		} while (buffer.hasRemaining());
+	}
+
+	/**
+	 * Check if handshake has just completed, and send messages which waited
+	 * for it. Called with connection locked.
+	 * @param result result of last wrap or unwrap
+	 * @throws IOException
+	 */
+	private void handshakeStatus(SSLEngineResult result) throws IOException {
+		if (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.FINISHED || handshakeDone) {
+			return;
+		}
+		handshakeDone = true;
+		if (LoadBalancer.verbose == 3) {
+			LoadBalancer.log(Thread.currentThread().getName(), "TLS handshake with " + remote + " done, "
+					+ engine.getSession().getProtocol() + " " + engine.getSession().getCipherSuite());
+		}
+		ByteBuffer buffer;
+		while ((buffer = pendingApp.poll()) != null) {
+			wrap(buffer);
+			LoadBalancer.bufferPool.release(buffer.array());
+		}
+	}
+
+	/**
+	 * Check if event loop should continue TLS handshake, after handshake
+	 * tasks are done.
+	 * @return <I>true</I> if <I>read()</I> should be called
+	 */
+	boolean needsResume() {
+		return resume;
+	}
+
+	/**
+	 * Finish connect to node. Called by event loop.
+	 */
+	synchronized void finishConnect() {
+		if (closed) {
+			return;
+		}
+		try {
+			if (channel.finishConnect()) {
+				connecting = false;
+				if (LoadBalancer.verbose == 3) {
+					LoadBalancer.log(Thread.currentThread().getName(), "Connected to " + remote);
+				}
+				key.interestOps(writeQueue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		} catch (IOException e) {
+			close(e.getMessage());
+		} catch (CancelledKeyException e) {
+			close("key cancelled");
+		}
+	}
+
+	/**
+	 * Write queued messages. Called by event loop.
+	 */
+	synchronized void flush() {
+		if (closed) {
+			return;
+		}
+		try {
+			ByteBuffer buffer;
+			while ((buffer = writeQueue.peek()) != null) {
+				int remaining = buffer.remaining();
+				channel.write(buffer);
+				queued = queued - (remaining - buffer.remaining());
+				if (buffer.hasRemaining()) {
+					// Socket buffer is full, wait for next write event.
+					return;
+				}
+				LoadBalancer.bufferPool.release(writeQueue.poll().array());
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		} catch (IOException e) {
+			close(e.getMessage());
+		} catch (CancelledKeyException e) {
+			close("key cancelled");
+		}
+	}
+
+	/**
+	 * Read from socket and dispatch complete messages. Called by event loop.
+	 */
+	void read() {
+		if (readBuffer == null) {
+			// Closed, buffer is back in pool.
+			return;
+		}
+		try {
+			if (engine != null) {
+				resume = false;
+				if (channel.read(netIn) < 0) {
+					close("closed by peer");
+					return;
+				}
+				unwrap();
+				return;
+			}
+
+			if (channel.read(readBuffer) < 0) {
+				close("closed by peer");
+				return;
+			}
+
+			int length = dispatchMessages();
+
+			/*
+			 * Message does not fit in buffer yet, grow it.
+			 */
+			if (length == 0 && !readBuffer.hasRemaining()) {
+				if (readBuffer.capacity() >= TcpTransport.MAX_MESSAGE_LEN) {
+					close("message too long");
+					return;
+				}
+				ByteBuffer bigger = ByteBuffer.wrap(LoadBalancer.bufferPool.acquire(readBuffer.capacity() + 1));
+				readBuffer.flip();
+				bigger.put(readBuffer);
+				LoadBalancer.bufferPool.release(readBuffer.array());
+				readBuffer = bigger;
+			}
+
+		} catch (IOException e) {
+			close(e.getMessage());
+		} finally {
+			/*
+			 * Only event loop uses receive buffer, so it returns it to pool.
+			 */
+			if (closed) {
+				LoadBalancer.bufferPool.release(readBuffer.array());
+				readBuffer = null;
+			}
+		}
+	}
+
+	/**
+	 * Dispatch complete messages in receive buffer. Called without
+	 * connection lock, since dispatcher may send on this connection.
+	 * @return length of last message found, <I>0</I> if rest of buffer is
+	 * not complete message, or <I>-1</I> if connection was closed
+	 * @throws IOException
+	 */
+	private int dispatchMessages() throws IOException {
+		int length;
+		while ((length = nextMessage()) > 0) {
+			byte[] message = LoadBalancer.bufferPool.acquire(length);
+			System.arraycopy(readBuffer.array(), 0, message, 0, length);
+			/*
+			 * Keep rest of stream for next message.
+			 */
+			readBuffer.flip();
+			readBuffer.position(length);
+			readBuffer.compact();
+
+			try {
+				transport.getDispatcher().dispatch(message, length, remote, this);
+			} finally {
+				LoadBalancer.bufferPool.release(message);
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Unwrap received TLS records, continue handshake and dispatch
+	 * messages. Called by event loop.
+	 * @throws IOException
+	 */
+	private void unwrap() throws IOException {
+		while (true) {
+			boolean progress;
+			synchronized (this) {
+				if (closed || taskRunning) {
+					return;
+				}
+
+				SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+				if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+					runTasks();
+					return;
+				}
+				if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+					wrap(ByteBuffer.allocate(0));
+					continue;
+				}
+
+				netIn.flip();
+				SSLEngineResult result = engine.unwrap(netIn, readBuffer);
+				netIn.compact();
+				handshakeStatus(result);
+
+				switch (result.getStatus()) {
+				case BUFFER_UNDERFLOW:
+					/*
+					 * Record is not complete, wait for more bytes.
+					 */
+					if (!netIn.hasRemaining()) {
+						ByteBuffer bigger = ByteBuffer.allocate(netIn.capacity() + engine.getSession().getPacketBufferSize());
+						netIn.flip();
+						bigger.put(netIn);
+						netIn = bigger;
+					}
+					progress = false;
+					break;
+				case BUFFER_OVERFLOW:
+					/*
+					 * No room for record in receive buffer, grow it.
+					 */
+					int capacity = readBuffer.capacity() + engine.getSession().getApplicationBufferSize();
+					if (capacity > TcpTransport.MAX_MESSAGE_LEN + engine.getSession().getApplicationBufferSize()) {
+						close("message too long");
+						return;
+					}
+					ByteBuffer bigger = ByteBuffer.allocate(capacity);
+					readBuffer.flip();
+					bigger.put(readBuffer);
+					readBuffer = bigger;
+					progress = true;
+					break;
+				case CLOSED:
+					close("TLS closed by peer");
+					return;
+				default:
+					progress = result.bytesConsumed() > 0 || result.bytesProduced() > 0
+							|| engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_UNWRAP;
+				}
+			}
+
+			if (dispatchMessages() < 0 || !progress) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Run handshake tasks in handshake pool, and let event loop continue
+	 * when they are done. Called with connection locked.
+	 */
+	private void runTasks() {
+		taskRunning = true;
+		transport.getHandshakePool().execute(new Runnable() {
+			@Override
+			public void run() {
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null) {
+					task.run();
+				}
+				synchronized (TcpConnection.this) {
+					taskRunning = false;
+					resume = true;
+					/*
+					 * Write event wakes up event loop, which calls read().
+					 */
+					if (!closed && key.isValid()) {
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					}
+				}
+				selector.wakeup();
+			}
+		});
+	}
+
+	/**
+	 * Find length of first complete message in receive buffer. Empty lines
+	 * before message, eg. keep-alive, are dropped.
+	 * @return message length, <I>0</I> if message is not complete, or <I>-1</I>
+	 * if message is invalid
+	 */
+	private int nextMessage() {
+		byte[] data = readBuffer.array();
+		int end = readBuffer.position();
+
+		/*
+		 * Drop CRLF keep-alive.
+		 */
+		int skip = 0;
+		while (skip < end && (data[skip] == '\r' || data[skip] == '\n')) {
+			skip++;
+		}
+		if (skip > 0) {
+			readBuffer.flip();
+			readBuffer.position(skip);
+			readBuffer.compact();
+			end = end - skip;
+		}
+
+		int headerEnd = indexOf(data, 0, end, HEADER_END);
+		if (headerEnd < 0) {
+			return 0;
+		}
+		headerEnd = headerEnd + HEADER_END.length;
+
+		/*
+		 * Body length from Content-Length header, stream without it can not be framed.
+		 */
+		int contentLength = getContentLength(data, headerEnd);
+		if (contentLength < 0) {
+			close("missing Content-Length");
+			return -1;
+		}
+		if (headerEnd + contentLength > TcpTransport.MAX_MESSAGE_LEN) {
+			close("message too long");
+			return -1;
+		}
+		return (headerEnd + contentLength <= end) ? headerEnd + contentLength : 0;
+	}
+
+	/**
+	 * Read value of Content-Length header.
+	 * @param data message
+	 * @param headerEnd end of headers
+	 * @return body length, or <I>-1</I> if header is missing
+	 */
+	private static int getContentLength(byte[] data, int headerEnd) {
+		int lineStart = 0;
+		while (lineStart < headerEnd) {
+			int lineEnd = lineStart;
+			while (lineEnd < headerEnd && data[lineEnd] != '\n') {
+				lineEnd++;
+			}
+			int colon = lineStart;
+			while (colon < lineEnd && data[colon] != ':') {
+				colon++;
+			}
+			int nameEnd = colon;
+			while (nameEnd > lineStart && (data[nameEnd - 1] == ' ' || data[nameEnd - 1] == '\t')) {
+				nameEnd--;
+			}
+			for (byte[] name : CONTENT_LENGTH) {
+				if (colon < lineEnd && nameEnd - lineStart == name.length && startsWith(data, lineStart, name)) {
+					int value = 0;
+					int pos = colon + 1;
+					while (pos < lineEnd && (data[pos] == ' ' || data[pos] == '\t')) {
+						pos++;
+					}
+					while (pos < lineEnd && data[pos] >= '0' && data[pos] <= '9' && value <= TcpTransport.MAX_MESSAGE_LEN) {
+						value = value * 10 + (data[pos] - '0');
+						pos++;
+					}
+					return value;
+				}
+			}
+			lineStart = lineEnd + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Compare bytes with lower case name, case insensitive.
+	 * @param data message
+	 * @param pos position in message
+	 * @param name lower case name
+	 * @return <I>true</I> if name matches
+	 */
+	private static boolean startsWith(byte[] data, int pos, byte[] name) {
+		for (int i = 0; i < name.length; i++) {
+			if ((data[pos + i] | 0x20) != name[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Find bytes in buffer.
+	 * @param data buffer
+	 * @param start start of search
+	 * @param end end of search
+	 * @param pattern bytes to find
+	 * @return position of pattern, or <I>-1</I>
+	 */
+	private static int indexOf(byte[] data, int start, int end, byte[] pattern) {
+		for (int pos = start; pos <= end - pattern.length; pos++) {
+			int i = 0;
+			while (i < pattern.length && data[pos + i] == pattern[i]) {
+				i++;
+			}
+			if (i == pattern.length) {
+				return pos;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Close connection, and drop queued messages.
+	 * @param reason reason for log
+	 */
+	void close(String reason) {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			writeQueue.clear();
+			queued = 0;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Closed anyway.
+		}
+		transport.closed(this);
+
+		if (LoadBalancer.verbose > 1) {
+			LoadBalancer.log(Thread.currentThread().getName(), "Connection " + remote + " closed: " + reason);
+		}
+	}
+
+}
@@ -0,0 +1,359 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * <H1>Tcp transport</H1>
+ * Listens for SIP over tcp on same port as udp dispatcher, and serves all
+ * connections with a few event loop threads, eg. <I>tcpThreads</I>, each
+ * with own selector. There is no thread per connection, so one connection
+ * can carry any number of calls.<BR>
+ * <BR>
+ * Messages are framed by {@link TcpConnection} and passed to same
+ * {@link Dispatcher} routing core as udp datagrams. Call from tcp caller
+ * goes to node over tcp, on one connection per node which is opened on
+ * first use and shared by all calls. Node sends responses back on it.<BR>
+ * <BR>
+ * Messages over tcp may be up to <I>MAX_MESSAGE_LEN</I> bytes, eg. large
+ * SDP offers which do not fit in udp buffer.<BR>
+ * <BR>
+ * Transport with <I>SSLContext</I> accepts SIP over TLS, usually on port
+ * <I>5061</I>. TLS ends here, calls go to nodes over plain tcp. Handshake
+ * tasks run in small handshake pool, <I>tlsThreads</I>, outside of event
+ * loops. Sessions are kept in server session cache and clients may resume
+ * them, by session id or by stateless session ticket.
+ * @author eigorde
+ *
+ */
+public class TcpTransport implements Runnable {
+
+	/**
+	 * Max. length of SIP message over tcp.
+	 */
+	static final int MAX_MESSAGE_LEN = 65535;
+
+	/**
+	 * Routing core.
+	 */
+	private Dispatcher dispatcher;
+
+	/**
+	 * Listening socket.
+	 */
+	private ServerSocketChannel serverChannel;
+
+	/**
+	 * Event loops.
+	 */
+	private EventLoop[] loops;
+
+	/**
+	 * Event loop for next connection.
+	 */
+	private int nextLoop;
+
+	/**
+	 * TLS context, or <I>null</I> for plain tcp.
+	 */
+	private SSLContext sslContext;
+
+	/**
+	 * Pool for TLS handshake tasks.
+	 */
+	private ExecutorService handshakePool;
+
+	/**
+	 * Connections toward nodes, one per node address and port.
+	 */
+	private ConcurrentHashMap<InetSocketAddress, TcpConnection> nodeConnections;
+
+	/**
+	 * Event loop, serves connections registered in its selector.
+	 */
+	private class EventLoop implements Runnable {
+
+		/**
+		 * Selector of this loop.
+		 */
+		final Selector selector;
+
+		/**
+		 * Connections waiting to be registered in selector.
+		 */
+		final ConcurrentLinkedQueue<TcpConnection> newConnections = new ConcurrentLinkedQueue<TcpConnection>();
+
+		EventLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		/**
+		 * Pass connection to this loop.
+		 * @param connection new connection
+		 */
+		void add(TcpConnection connection) {
+			newConnections.add(connection);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (selector.isOpen())
+				try {
+					selector.select();
+
+					TcpConnection connection;
+					while ((connection = newConnections.poll()) != null) {
+						try {
+							connection.register(selector);
+						} catch (IOException e) {
+							connection.close(e.getMessage());
+						}
+					}
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+
+						connection = (TcpConnection) key.attachment();
+						try {
+							if (!key.isValid()) {
+								continue;
+							}
+							if (key.isConnectable()) {
+								connection.finishConnect();
+							}
+							if (key.isValid() && key.isWritable()) {
+								connection.flush();
+							}
+							if (key.isValid() && (key.isReadable() || connection.needsResume())) {
+								connection.read();
+							}
+						} catch (RuntimeException e) {
+							/*
+							 * Bad message or race with close, drop only this
+							 * connection and keep loop running for others.
+							 */
+							LoadBalancer.log(Thread.currentThread().getName(), "Connection dropped: " + e);
+							connection.close(e.toString());
+						}
+					}
+
+				} catch (IOException e) {
+					e.printStackTrace();
+					break;
+				}
+		}
+	}
+
+	/**
+	 * <H1>Tcp transport</H1><BR>
+	 * Bind listening socket.
+	 * @param dispatcher routing core
+	 * @param port tcp port, usually same as udp <I>bindPort</I>
+	 * @param threads number of event loops
+	 * @throws IOException
+	 */
+	public TcpTransport(Dispatcher dispatcher, int port, int threads) throws IOException {
+		this.dispatcher = dispatcher;
+		nodeConnections = new ConcurrentHashMap<InetSocketAddress, TcpConnection>();
+
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.bind(new InetSocketAddress(port));
+
+		loops = new EventLoop[Math.max(threads, 1)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop();
+		}
+	}
+
+	/**
+	 * <H1>Tcp transport</H1><BR>
+	 * Bind listening socket for SIP over TLS.
+	 * @param dispatcher routing core
+	 * @param port tcp port, usually <I>5061</I>
+	 * @param threads number of event loops
+	 * @param sslContext TLS context with server certificate
+	 * @param handshakeThreads number of threads for handshake tasks
+	 * @throws IOException
+	 */
+	public TcpTransport(Dispatcher dispatcher, int port, int threads, SSLContext sslContext, int handshakeThreads)
+			throws IOException {
+		this(dispatcher, port, threads);
+		this.sslContext = sslContext;
+		this.handshakePool = Executors.newFixedThreadPool(Math.max(handshakeThreads, 1), new ThreadFactory() {
+			private int counter;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "tlsHandshake" + counter++);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Create TLS context from key store, with server session cache.
+	 * Stateless session tickets are enabled, unless set otherwise by
+	 * <I>jdk.tls.server.enableSessionTicketExtension</I> property.
+	 * @param keyStoreFile key store with server certificate, PKCS12 or JKS
+	 * @param password password of key store and key
+	 * @param cacheSize max. number of sessions in cache
+	 * @param sessionTimeout session lifetime, in sec.
+	 * @return TLS context
+	 * @throws IOException
+	 */
+	static SSLContext createSslContext(String keyStoreFile, String password, int cacheSize, int sessionTimeout)
+			throws IOException {
+		if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+			System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+		}
+		try {
+			char[] secret = (password != null) ? password.toCharArray() : new char[0];
+			KeyStore keyStore = KeyStore.getInstance(new File(keyStoreFile), secret);
+			KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keyManagerFactory.init(keyStore, secret);
+
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(keyManagerFactory.getKeyManagers(), null, null);
+
+			SSLSessionContext sessionContext = context.getServerSessionContext();
+			sessionContext.setSessionCacheSize(cacheSize);
+			sessionContext.setSessionTimeout(sessionTimeout);
+			return context;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("TLS setup failed: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Get pool for TLS handshake tasks.
+	 * @return handshake pool
+	 */
+	ExecutorService getHandshakePool() {
+		return handshakePool;
+	}
+
+	/**
+	 * Get routing core.
+	 * @return dispatcher
+	 */
+	Dispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	@Override
+	public void run() {
+
+		for (int i = 0; i < loops.length; i++) {
+			Thread loop = new Thread(loops[i], Thread.currentThread().getName() + "Loop" + i);
+			loop.setDaemon(true);
+			loop.start();
+		}
+
+		/*
+		 * Accept connections, and spread them over event loops.
+		 */
+		while (serverChannel.isOpen())
+			try {
+				SocketChannel channel = serverChannel.accept();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+
+				InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+				if (LoadBalancer.verbose == 3) {
+					LoadBalancer.log(Thread.currentThread().getName(), "Connection from " + remote);
+				}
+
+				if (sslContext != null) {
+					SSLEngine engine = sslContext.createSSLEngine(remote.getAddress().getHostAddress(), remote.getPort());
+					engine.setUseClientMode(false);
+					nextLoop().add(new TcpConnection(this, channel, remote, engine));
+				}
+				else {
+					nextLoop().add(new TcpConnection(this, channel, remote, false));
+				}
+
+			} catch (IOException e) {
+				if (serverChannel.isOpen()) {
+					e.printStackTrace();
+				}
+			}
+	}
+
+	/**
+	 * Get connection to node, open new one if there is none.
+	 * @param node address and port of node
+	 * @return connection, possibly still connecting
+	 * @throws IOException
+	 */
+	public TcpConnection getNodeConnection(InetSocketAddress node) throws IOException {
+		TcpConnection connection = nodeConnections.get(node);
+		if (connection != null && !connection.isClosed()) {
+			return connection;
+		}
+
+		synchronized (nodeConnections) {
+			connection = nodeConnections.get(node);
+			if (connection != null && !connection.isClosed()) {
+				return connection;
+			}
+
+			SocketChannel channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			boolean connected = channel.connect(node);
+
+			connection = new TcpConnection(this, channel, node, !connected);
+			nodeConnections.put(node, connection);
+			nextLoop().add(connection);
+			return connection;
+		}
+	}
+
+	/**
+	 * Connection was closed, forget it if it was connection to node.
+	 * @param connection closed connection
+	 */
+	void closed(TcpConnection connection) {
+		nodeConnections.remove(connection.getRemote(), connection);
+	}
+
+	/**
+	 * Get number of open connections toward nodes.
+	 * @return number of connections
+	 */
+	public int getNodeConnectionCount() {
+		return nodeConnections.size();
+	}
+
+	/**
+	 * Pick event loop for new connection, in turn.
+	 * @return event loop
+	 */
+	private synchronized EventLoop nextLoop() {
+		EventLoop loop = loops[nextLoop];
+		nextLoop = (nextLoop + 1) % loops.length;
+		return loop;
+	}
+
+}
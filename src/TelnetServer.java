@@ -1,12 +1,20 @@
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * <H1>Telnet Server</H1>
@@ -27,6 +35,11 @@ import java.util.List;
  * <BR>
  * Normally, once the client establish a connection, server will try to force a character mode transmission in order for
  * some special characters to work on server side, like <I>tab</I> \t, <I>backspace</I> \b and <I>question mark</I> ?.<BR>
+ * <BR>
+ * Any number of clients may be connected at same time. All sessions are served by one event loop
+ * with a selector, and each session has own input line, command history and terminal size.
+ * Commands run on small worker pool, so long printout in one session does not stop other sessions.
+ * Keys typed while command is running are kept, and processed after its printout.<BR>
  * <H2>Example</H2>
  * <BR>
  * This code shows how to start telnet service and listen on port 4444.
@@ -36,7 +49,7 @@ import java.util.List;
  *      t.start();
  * </PRE>
  * In order to make a real use of this class, you need to locate function:<BR>
- * <I>private String processCommand(String command)</I><BR>
+ * <I>private String processCommand(String command, Session session)</I><BR>
  * and change line:
  * <PRE>retVal = "Command " + command + " not implemented.\r\n";</PRE>
  * into something useful. Eg. to call your real process command function.
@@ -49,8 +62,66 @@ public class TelnetServer implements Runnable {
     /**
      * Welcome string.
      */
-    private final String ver = "Telnet interface v.0.2";
+    private final String ver = "Telnet interface v.0.3";
     
+    /*
+     * Telnet control codes. Ref.
+     * http://support.microsoft.com/kb/231866
+     */
+    private static final byte IAC = (byte) 0xff;
+    // type of operation
+    private static final byte DO = (byte) 0xfd;
+    private static final byte DONT = (byte) 0xfe;
+    private static final byte WILL = (byte) 0xfb;
+    private static final byte WONT = (byte) 0xfc;
+    private static final byte SB = (byte) 0xfa;
+    private static final byte SE = (byte) 0xf0;
+    // telnet option
+    private static final byte ECHO = 0x01;
+    private static final byte SUPPRESS_GO_AHEAD = 0x03;
+    private static final byte WINDOW_SIZE = 0x1f;
+    private static final byte REMOTE_FLOW_CONTROL = 0x21;
+    private static final byte TERMINAL_SPEED = 0x20;
+    private static final byte TERMINAL_TYPE = 0x18;
+    private static final byte LINEMODE = 0x22;
+    private static final byte X_DISPLAY_LOCATION = 0x23;
+    private static final byte NEW_ENVIRONMENT = 0x27;
+
+    /*
+     * States of telnet parser in session.
+     */
+    private static final int STATE_DATA = 0;
+    private static final int STATE_IAC = 1;
+    private static final int STATE_OPTION = 2;
+    private static final int STATE_SB = 3;
+    private static final int STATE_SB_IAC = 4;
+
+    /**
+     * Max. length of telnet sub negotiation, longer one is truncated.
+     */
+    private static final int MAX_SB_LEN = 256;
+
+    /**
+     * Max. length of input line, longer input is ignored.
+     */
+    private static final int MAX_LINE_LEN = 4096;
+
+    /**
+     * Max. number of bytes queued for client while command
+     * streams its printout. Worker waits until client reads.
+     */
+    private static final int MAX_PENDING = 65536;
+
+    /**
+     * Size of printout chunk for streamed commands.
+     */
+    private static final int CHUNK_LEN = 16384;
+
+    /**
+     * Refresh interval of <I>top</I> view, in msec.
+     */
+    private static final long TOP_INTERVAL = 1000;
+
     /**
      * Exit string, built-in command.
      */
@@ -69,25 +140,42 @@ public class TelnetServer implements Runnable {
     /**
      * Server socket to listen on port number.
      */
-    private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
+    
+    /**
+     * Selector of event loop, serves server socket
+     * and all client sessions.
+     */
+    private Selector selector;
     
     /**
-     * Client socket, once when client establish 
-     * telnet connection.
+     * Connected clients.
      */
-    private Socket clientSocket;
+    private Set<Session> sessions;
     
     /**
-     * Is client connected to server.
+     * Sessions whose command is done, waiting for
+     * event loop to print result.
      */
-    private boolean telnetClientConnected;
+    private ConcurrentLinkedQueue<Session> completed;
+    
+    /**
+     * Sessions with printout from worker, waiting for
+     * event loop to send it.
+     */
+    private ConcurrentLinkedQueue<Session> flushRequests;
+    
+    /**
+     * Worker pool for commands.
+     */
+    private ExecutorService workers;
     
     /**
      * Terminate flag. This flag will
      * be set on if user of this class 
      * wants to stop telnet service.
      */
-    private boolean terminateFlag;
+    private volatile boolean terminateFlag;
     
     /**
      * Telnet command prompt.
@@ -101,28 +189,194 @@ public class TelnetServer implements Runnable {
     private List<String> commandList;
 
     /**
-     * Command history for arrow keys.
-     * Up arrow \033[A and down arrow \033[B sequence.
+     * Default terminal client window size (width x height),
+     * until client sends own WINDOW_SIZE.
      */
-    private List<String> commandHistory;
+    private int terminalWidth = 80, terminalHeight = 25;
     
     /**
-     * Index pointer where to take next el. from command history.
-     * <BR><B>Rule:</B> up on execution of new command, a command
-     * is added to list and this pointer points to last item in list.<BR>
-     * Arrow keys up and down change pointer value by 1.
+     * Flag which controls console printouts for debugging.
      */
-    private int commandHistoryIndexPointer;
-
+    private boolean debugFlag;
+    
     /**
-     * Terminal client window size (width x height).
+     * <H1>Session</H1>
+     * <BR>
+     * State of one telnet client. Fields are used by event loop only,
+     * except <I>result</I> which is set by worker.
      */
-    private int terminalWidth = 80, terminalHeight = 25;
+    class Session {
+
+        /**
+         * Client socket.
+         */
+        final SocketChannel channel;
+
+        /**
+         * Selection key of client socket.
+         */
+        SelectionKey key;
+
+        /**
+         * Remote address, for log.
+         */
+        final String remote;
+
+        /**
+         * Terminal client window size (width x height).
+         */
+        volatile int terminalWidth, terminalHeight;
+
+        /**
+         * Command line typed so far.
+         */
+        String inputLine = "";
+
+        /**
+         * Command history for arrow keys.
+         * Up arrow \033[A and down arrow \033[B sequence.
+         */
+        final List<String> commandHistory = new ArrayList<String>();
+
+        /**
+         * Index pointer where to take next el. from command history.
+         * <BR><B>Rule:</B> up on execution of new command, a command
+         * is added to list and this pointer points to last item in list.<BR>
+         * Arrow keys up and down change pointer value by 1.
+         */
+        int commandHistoryIndexPointer;
+
+        /**
+         * State of telnet parser.
+         */
+        int telnetState = STATE_DATA;
+
+        /**
+         * Type of operation in telnet command, eg. DO or WILL.
+         */
+        byte telnetVerb;
+
+        /**
+         * Telnet sub negotiation, option code followed by value.
+         */
+        final byte[] subNegotiation = new byte[MAX_SB_LEN];
+
+        /**
+         * Length of telnet sub negotiation.
+         */
+        int subNegotiationLen;
+
+        /**
+         * Options confirmed to client, reply is sent only once
+         * for each option, see RFC 854.
+         */
+        final boolean[] optionReplied = new boolean[256];
+
+        /**
+         * Escape sequence, eg. arrow key, or <I>null</I> if not in sequence.
+         */
+        StringBuilder escape;
+
+        /**
+         * Last char was CR, so LF or NUL which follows
+         * is end of same line.
+         */
+        boolean lastCR;
+
+        /**
+         * Command is running on worker pool.
+         */
+        boolean busy;
+
+        /**
+         * Keys typed while command is running.
+         */
+        final StringBuilder typeAhead = new StringBuilder();
+
+        /**
+         * Printout of finished command.
+         */
+        volatile String result;
+
+        /**
+         * Data waiting to be sent to client.
+         */
+        final ConcurrentLinkedQueue<ByteBuffer> outQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+
+        /**
+         * Number of bytes in <I>outQueue</I>, guarded by session lock.
+         */
+        long pendingBytes;
+
+        /**
+         * Running command has already streamed part of printout.
+         */
+        boolean streamed;
+
+        /**
+         * Call table dump which continues with next page, or <I>null</I>.
+         */
+        CallTableDump dump;
+
+        /**
+         * Session shows <I>top</I> view, until any key is pressed.
+         */
+        volatile boolean top;
+
+        /**
+         * Metrics at last <I>top</I> refresh, or <I>null</I> before first one.
+         */
+        Metrics.Snapshot topSnapshot;
+
+        /**
+         * Close session once all data is sent.
+         */
+        boolean closing;
+
+        Session(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.remote = String.valueOf(channel.getRemoteAddress());
+            this.terminalWidth = TelnetServer.this.terminalWidth;
+            this.terminalHeight = TelnetServer.this.terminalHeight;
+        }
+
+        /**
+         * Queue data for client.
+         * @param data bytes to send
+         */
+        void write(byte[] data) {
+            synchronized (this) {
+                pendingBytes = pendingBytes + data.length;
+            }
+            outQueue.add(ByteBuffer.wrap(data));
+        }
+
+        /**
+         * Queue text for client.
+         * @param text string to send
+         */
+        void write(String text) {
+            write(text.getBytes());
+        }
+    }
     
     /**
-     * Flag which controls console printouts for debugging.
+     * <H1>Telnet server</H1>
+     * <BR>
+     * This function will start a telnet service
+     * on a given interface and port number, with two
+     * worker threads for commands.<BR>
+     * 
+     * @param hostAddress
+     *            local host ip address to bind, if <I>null</I> bind to 0.0.0.0
+     * @param port
+     *            desired tcp port number
+     * @throws IOException
+     *             Error in socket communication
      */
-    private boolean debugFlag;
+    public TelnetServer(String hostAddress, int port) throws IOException {
+        this(hostAddress, port, 2);
+    }
     
     /**
      * <H1>Telnet server</H1>
@@ -134,21 +388,41 @@ public class TelnetServer implements Runnable {
      *            local host ip address to bind, if <I>null</I> bind to 0.0.0.0
      * @param port
      *            desired tcp port number
+     * @param workerThreads
+     *            number of threads which run commands
      * @throws IOException
      *             Error in socket communication
      */
-    public TelnetServer(String hostAddress, int port) throws IOException {
+    public TelnetServer(String hostAddress, int port, int workerThreads) throws IOException {
         portNumber = port;
         terminateFlag = false;
         
-        serverSocket = new ServerSocket(portNumber, 0, InetAddress.getByName(hostAddress));
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.bind(new InetSocketAddress(InetAddress.getByName(hostAddress), portNumber));
+        serverChannel.configureBlocking(false);
+        
+        selector = Selector.open();
+        sessions = ConcurrentHashMap.newKeySet();
+        completed = new ConcurrentLinkedQueue<Session>();
+        flushRequests = new ConcurrentLinkedQueue<Session>();
+        
+        workers = Executors.newFixedThreadPool(Math.max(workerThreads, 1), new ThreadFactory() {
+            private int counter;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "telnetWorker" + counter++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
       
         debugFlag = false;
         
         prompt = "--> ";
         
         commandList = new ArrayList<String>();
-        commandHistory = new ArrayList<String>();
         
         /*
          * Add first exit string, then help string.
@@ -159,395 +433,648 @@ public class TelnetServer implements Runnable {
         commandList.add(commandHelp);
     }
     
-    @SuppressWarnings("unused")
-	@Override
+    @Override
     public void run() {
         
-        telnetClientConnected = false;
-        
         try {
-            /*
-             * Here this function waits, for client to connect.
-             */
-            clientSocket = serverSocket.accept();
-        } catch (SocketException e) {
-            return;
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
             return;
         }
-        telnetClientConnected = true;
-
-        BufferedOutputStream out = null;
-        BufferedInputStream in = null;
-        try {
-            out = new BufferedOutputStream(clientSocket.getOutputStream());
-            in = new BufferedInputStream(clientSocket.getInputStream());
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
-        
-        byte[] buff = new byte[1024];
-        
-        String inputLine = "";
-        int inputLen = 0;
-        
-        /*
-         * Check for Telnet control codes. Ref.
-         * http://support.microsoft.com/kb/231866
-         */                
-        byte IAC = (byte) 0xff;
-        // type of operation
-        byte DO = (byte) 0xfd;
-        byte DONT = (byte) 0xfe;
-        byte WILL = (byte) 0xfb;
-        byte WONT = (byte) 0xfc;                        
-        byte SB = (byte) 0xfa;
-        byte SE = (byte) 0xf0;            
-        // telnet option
-        byte ECHO = 0x01;
-        byte SUPPRESS_GO_AHEAD = 0x03;
-        byte WINDOW_SIZE = 0x1f;
-        byte REMOTE_FLOW_CONTROL = 0x21;
-        byte TERMINAL_SPEED = 0x20;
-        byte TERMINAL_TYPE = 0x18;
-        byte LINEMODE = 0x22;
-        byte X_DISPLAY_LOCATION = 0x23;
-        byte NEW_ENVIRONMENT = 0x27;
         
-        /* ************************
-         * Telnet variables.
-         * ************************/
-        // WINDOW_SIZE, width and height
-        int width = getTerminalWidth(), height = getTerminalHeight();
-        // TERMINAL_SPEED, separated by , char.
-        // Eg 38600,56400
-        String terminalSpeed = "";
-        // TERMINAL_TYPE, separated by , char.
-        // Eg vt104,xterm
-        String terminalType = "";
-        // New environment variables. Usually empty.
-        String newEnvironment = "";
-        // X Display location.
-        String XdispalyLocation = "";
-        // Remote flow control.
-        String remoteFlowControl = "";
-        /* ********************** */
-                        
-        try {
-            
-            // Inform that this telnet server will echo characters back to client
-            out.write(new byte[] { IAC, WILL, ECHO });
-            out.flush();
-            // Inform that this telnet server will suppress go ahead obsolete option
-            out.write(new byte[] { IAC, WILL, SUPPRESS_GO_AHEAD });
-            out.flush();
-            
-            // Print welcome message and prompt.
-            out.write((ver + "\r\n").getBytes());
-            out.flush();
-            
-            out.write((prompt).getBytes());
-            out.flush();
-        } catch (IOException e1) {
-            // TODO Auto-generated catch block
-            e1.printStackTrace();
-        }
-
-        try {
-            while ((inputLen = in.read(buff)) > 0) {                
+        long nextTopAt = 0;
+        while (!terminateFlag && selector.isOpen())
+            try {
+                selector.select(TOP_INTERVAL);
                 
                 /*
-                 * Index, from where to build command. 
+                 * Refresh top view, by running top command again.
                  */
-                int idx = 0;
-                while (buff[idx] == IAC) {
-                                  
-                    /* Flags, according to which
-                     * telnet service should respond:
-                     * - for DO request, WILL replay
-                     * - for WILL, SB replay if needed
-                     * - for SB, no replay is needed
-                     * - WONT and DONT are not needed
-                     */ 
-                    boolean doFlag = false;
-                    boolean willFlag = false;
-                    boolean sbFlag = false;
-                    
-                    if (buff[idx + 1] == DO) {
-                        doFlag = true;
-                    }
-                    else if (buff[idx + 1] == DONT) {
-
-                    }
-                    else if (buff[idx + 1] == WILL) {
-                        willFlag = true;
-                    }
-                    else if (buff[idx + 1] == WONT) {
-
-                    }
-                    else if (buff[idx + 1] == SB) {
-                        sbFlag = true;
-                    }
-                    else {
-                        if (debugFlag)                        
-                            System.out.print("Unknown type operation: " + buff[idx + 1] + " ");
-                    }
-                    
-                    if (buff[idx + 2] == ECHO ||
-                            buff[idx + 2] == SUPPRESS_GO_AHEAD) {                        
-                        if (doFlag) {
-                            // Replay with WILL on DO ECHO and DO SUPPRESS_GO_AHEAD requests
-                            if (debugFlag)                        
-                                System.out.println("DO " + translateTelnetOption(buff[idx + 2]));
-                            out.write(new byte[] { IAC, WILL, buff[idx + 2] });
-                            out.flush();
-                        }
-                        else if (willFlag) {
-                            // Replay with DO on WILL ECHO and WILL SUPPRESS_GO_AHEAD messages
-                            if (debugFlag)                        
-                                System.out.println("WILL " + translateTelnetOption(buff[idx + 2]));
-                            out.write(new byte[] { IAC, DO, buff[idx + 2] });
-                            out.flush();
-                        }
-                        else {
-                            if (debugFlag)                        
-                                System.out.println("Unsupported type operation: " + buff[idx + 1] + " for " + translateTelnetOption(buff[idx + 2]));
-                        }
-                    }
-                    else if (buff[idx + 2] == WINDOW_SIZE) {
-                        // Stay ready to accept new values for WINDOW_SIZE or request a WINDOW_SIZE values
-                        if (sbFlag) {
-                            width = (buff[idx + 3] << 8) + buff[idx + 4];
-                            height = (buff[idx + 5] << 8) + buff[idx + 6];  
-                            setTerminalWidth(width);
-                            setTerminalHeight(height);
-                            idx = idx + 6;
-                        }
-                        else if (willFlag) {
-                            out.write(new byte[] { IAC, DO, WINDOW_SIZE });
-                            out.flush();
-                            byte[] newBuff = new byte[9];
-                            in.read(newBuff);
-                            width = (newBuff[3] << 8) + newBuff[4];
-                            height = (newBuff[5] << 8) + newBuff[6];                
-                            setTerminalWidth(width);
-                            setTerminalHeight(height);
-                        }
-                        else {
-                            if (debugFlag)                        
-                                System.out.println("Unsupported type operation: " + buff[idx + 1] + " for " + translateTelnetOption(buff[idx + 2]));
-                        }                        
-                    }
-                    else if ( buff[idx + 2] == REMOTE_FLOW_CONTROL ||
-                            buff[idx + 2] == TERMINAL_SPEED ||
-                            buff[idx + 2] == TERMINAL_TYPE ||
-                            buff[idx + 2] == X_DISPLAY_LOCATION ||
-                            buff[idx + 2] == NEW_ENVIRONMENT ||
-                            buff[idx + 2] == LINEMODE) {
-
-                        // Here we extract values from usual telnet options, like terminal type, speed ... etc. 
-                        if (willFlag) {
-                            out.write(new byte[] { IAC, SB, buff[idx + 2], 1, IAC, SE });
-                            out.flush();
-                            byte[] newBuff = new byte[255];
-                            in.read(newBuff);
-                            int len = 0, offset = 4;
-                            for (int i = offset; i < newBuff.length; i++) {
-                                if (newBuff[i] == IAC) {
-                                    break;
-                                }
-                                len++;
+                long currentTime = System.currentTimeMillis();
+                if (currentTime >= nextTopAt) {
+                    nextTopAt = currentTime + TOP_INTERVAL;
+                    for (Session topSession : sessions) {
+                        if (topSession.top && !topSession.busy) {
+                            try {
+                                startCommand(topSession, "top");
+                            } catch (RuntimeException e) {
+                                drop(topSession, e);
                             }
-                            // Do nothing special, just print it.
-                            String value = new String(newBuff, offset, len);
-                            if (debugFlag)                        
-                                System.out.println(translateTelnetOption(buff[idx + 2]) + " = " + value);
                         }
-                        else {
-                            if (debugFlag)                        
-                                System.out.println("Unsupported type operation: " + buff[idx + 1] + " for " + translateTelnetOption(buff[idx + 2]));
-                        }
-                    }     
-                    else {
-                        if (debugFlag)                        
-                            System.out.print("Unknown telnet option: " + translateTelnetOption(buff[idx + 2]));
                     }
-                    
-                    idx = idx + 3;
-                    
-                    
                 }
                 
                 /*
-                 * The rest should be command string, if any byte left in buffer.
+                 * Print results of finished commands, and continue
+                 * with keys typed meanwhile.
                  */
-                if (idx < inputLen) {
-                    /*
-                     * Translate byte buffer into string.
-                     */
-                    String newInput = new String(buff, idx, inputLen - idx);
-                    inputLine = inputLine + newInput;
-
-                    /* ******************
-                     *  Process command.
-                     * ****************** */
-
-                    // Ending, if input line ends with LF or CRLF. 
-                    int ending = 0;
-                    // Check for CR/LF ending. It means command confirmation.
-                    if (inputLine.endsWith("\r\n") || inputLine.endsWith("\r\000")) {
-                        ending = 2;
-                    } else if (inputLine.endsWith("\n")) {
-                        ending = 1;
+                Session session;
+                while ((session = completed.poll()) != null) {
+                    try {
+                        finishCommand(session);
+                    } catch (RuntimeException e) {
+                        drop(session, e);
                     }
-                        
-                    if (ending > 0) {
-                        inputLine = removeChars(inputLine, ending);
-                        /*
-                         * Recognize and process command.
-                         */
-                        String retVal = processCommand(inputLine);
-                        out.write(("\r\n" + retVal).getBytes());
-                        /*
-                         * Print prompt.
-                         */
-                        out.write(("\r\n" + prompt).getBytes());
-                        /*
-                         * Store it in command history.
-                         */
-                        if (inputLine.trim().length() > 0) {
-                            // put only non-empty non-existing lines in history
-                        	commandHistory.add(inputLine);
-                        	commandHistoryIndexPointer = commandHistory.size();
-                        }
-                        
-                        /*
-                         * Clear input line for new command.
-                         */
-                        inputLine = "";
-
-                        if (retVal.equalsIgnoreCase(commandExit)) {
-                            /*
-                             * Terminate while() loop. This will close sockets
-                             * and start telnet interface again. Look after end
-                             * of while() loop.
-                             */
-                            break;
-                        }
-                        
+                }
+                while ((session = flushRequests.poll()) != null) {
+                    try {
+                        flush(session);
+                    } catch (IOException e) {
+                        close(session);
+                    } catch (RuntimeException e) {
+                        drop(session, e);
                     }
-                    else if (inputLine.endsWith("\t") || inputLine.endsWith("?") ) {
-                        inputLine = removeChars(inputLine, 1);
-                        String[] possibleCommands = autoComplete(inputLine);
-                        if (possibleCommands.length == 0) {
-                            out.write(("\r\nNothing to complete available.\r\n" + prompt + inputLine).getBytes());
-                        }
-                        else if (possibleCommands.length == 1) {
-                            out.write((possibleCommands[0].substring(inputLine.length() )).getBytes());
-                            inputLine = possibleCommands[0];
-                        }
-                        else {
-                            if (inputLine.length() == 0) {
-                                out.write(("\r\n" + usage() + "\r\n" + prompt).getBytes());
-                            }
-                            else {
-                                for (String item : possibleCommands) {
-                                    out.write(("\r\n" + item).getBytes());
-                                }
-                                String prefix = findPrefix(possibleCommands);
-                                if (prefix.length() > 0) {
-                                    if (prefix.length() > inputLine.length()) {                                    
-                                        inputLine = inputLine + prefix.substring(inputLine.length());
-                                    }
-                                }
-                                out.write(("\r\n" + prompt + inputLine).getBytes());
-                            }
-                        }
+                }
+                
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    
+                    if (!key.isValid()) {
+                        continue;
                     }
-                    else if (inputLine.endsWith("\b") ||
-                            inputLine.endsWith(new String(new byte[] {127}))) {
-                        
-                        inputLine = removeChars(inputLine, 2);
-                        //out.write(("\r\n" + inputLine).getBytes());
-                        // Esc. sequence for backspace
-                        out.write(("\b\033[K").getBytes());
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
                     }
-                    else if (inputLine.endsWith("\033[A") ||
-                            inputLine.endsWith("\033[B")) {
-
-                        if (commandHistory.size() > 0) {
-                            // Up arrow key: \033[A
-                            // Down arrow key: \033[B
-
-                            if (inputLine.endsWith("\033[A")) {
-                                commandHistoryIndexPointer--;
-                                if (commandHistoryIndexPointer < 0) {
-                                    commandHistoryIndexPointer = 0;
-                                }
-                                else {
-                                	String historyCommand = commandHistory.get(commandHistoryIndexPointer);
-                                	inputLine = historyCommand;
-                                	out.write(("\033[1K\r" + prompt + historyCommand).getBytes());
-                                }
-                            }
-                            else if (inputLine.endsWith("\033[B")) {
-                                commandHistoryIndexPointer++;
-                                if (commandHistoryIndexPointer > commandHistory.size()) {
-                                    commandHistoryIndexPointer =  commandHistory.size();
-                                }
-                                else if (commandHistoryIndexPointer < commandHistory.size()) {
-                                	String historyCommand = commandHistory.get(commandHistoryIndexPointer);
-                                    inputLine = historyCommand;
-                                    out.write(("\033[1K\r" + prompt + historyCommand).getBytes());                                	
-                                }
-
-                            }
+                    
+                    session = (Session) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(session);
                         }
+                        if (key.isValid()) {
+                            flush(session);
+                        }
+                    } catch (IOException e) {
+                        close(session);
+                    } catch (RuntimeException e) {
+                        drop(session, e);
                     }
-                    else {
-                        // Echo new input char(s).
-                        out.write(newInput.getBytes());
-                    }
-                    
-                    out.flush();
                 }
                 
+            } catch (IOException e) {
+                if (!terminateFlag) {
+                    e.printStackTrace();
+                }
+                break;
             }
-        } catch (SocketException e) {
-            telnetClientConnected = false;
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
-
+        
         /*
-         * If while() loop breaks, this will close all. No more telnet
-         * connection.
+         * Telnet service is terminated, close all clients.
          */
+        for (Session session : sessions) {
+            close(session);
+        }
+    }
+    
+    /**
+     * Accept new client, negotiate telnet options
+     * and print welcome message.
+     * @throws IOException
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        
+        Session session = new Session(channel);
+        session.key = channel.register(selector, SelectionKey.OP_READ, session);
+        sessions.add(session);
+        if (debugFlag)
+            System.out.println("Telnet client connected: " + session.remote);
+        
+        // Inform that this telnet server will echo characters back to client
+        session.write(new byte[] { IAC, WILL, ECHO });
+        session.optionReplied[ECHO] = true;
+        // Inform that this telnet server will suppress go ahead obsolete option
+        session.write(new byte[] { IAC, WILL, SUPPRESS_GO_AHEAD });
+        session.optionReplied[SUPPRESS_GO_AHEAD] = true;
+        
+        // Print welcome message and prompt.
+        session.write(ver + "\r\n");
+        session.write(prompt);
+        
         try {
-            out.close();
-            in.close();
-            clientSocket.close();
+            flush(session);
         } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            close(session);
+        }
+    }
+    
+    /**
+     * Read data from client, and process telnet codes and keys.
+     * @param session client session
+     * @throws IOException
+     */
+    private void read(Session session) throws IOException {
+        ByteBuffer buff = ByteBuffer.allocate(1024);
+        int inputLen = session.channel.read(buff);
+        if (inputLen < 0) {
+            close(session);
+            return;
+        }
+        
+        byte[] data = buff.array();
+        for (int i = 0; i < inputLen; i++) {
+            byte b = data[i];
+            
+            switch (session.telnetState) {
+            case STATE_IAC:
+                if (b == DO || b == DONT || b == WILL || b == WONT) {
+                    session.telnetVerb = b;
+                    session.telnetState = STATE_OPTION;
+                }
+                else if (b == SB) {
+                    session.subNegotiationLen = 0;
+                    session.telnetState = STATE_SB;
+                }
+                else if (b == IAC) {
+                    // Escaped 0xff, not a key.
+                    session.telnetState = STATE_DATA;
+                }
+                else {
+                    if (debugFlag)                        
+                        System.out.println("Unknown type operation: " + b);
+                    session.telnetState = STATE_DATA;
+                }
+                break;
+                
+            case STATE_OPTION:
+                negotiate(session, session.telnetVerb, b);
+                session.telnetState = STATE_DATA;
+                break;
+                
+            case STATE_SB:
+                if (b == IAC) {
+                    session.telnetState = STATE_SB_IAC;
+                }
+                else if (session.subNegotiationLen < MAX_SB_LEN) {
+                    session.subNegotiation[session.subNegotiationLen++] = b;
+                }
+                break;
+                
+            case STATE_SB_IAC:
+                if (b == SE) {
+                    subNegotiate(session);
+                    session.telnetState = STATE_DATA;
+                }
+                else {
+                    // IAC IAC inside sub negotiation is value 0xff.
+                    if (session.subNegotiationLen < MAX_SB_LEN) {
+                        session.subNegotiation[session.subNegotiationLen++] = b;
+                    }
+                    session.telnetState = STATE_SB;
+                }
+                break;
+                
+            default:
+                if (b == IAC) {
+                    session.telnetState = STATE_IAC;
+                }
+                else if (session.busy || session.typeAhead.length() > 0) {
+                    session.typeAhead.append((char) (b & 0xff));
+                }
+                else {
+                    processKey(session, (char) (b & 0xff));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Reply to telnet option request. Flags, according to which
+     * telnet service should respond:
+     * <UL>
+     * <LI>for DO request, WILL replay</LI>
+     * <LI>for WILL, SB replay if needed</LI>
+     * <LI>for SB, no replay is needed</LI>
+     * <LI>WONT and DONT are not needed</LI>
+     * </UL>
+     * @param session client session
+     * @param verb type of operation, eg. DO
+     * @param option telnet option, eg. ECHO
+     */
+    private void negotiate(Session session, byte verb, byte option) {
+        
+        if (verb == DONT || verb == WONT) {
+            if (debugFlag)                        
+                System.out.println((verb == DONT ? "DONT " : "WONT ") + translateTelnetOption(option));
+            return;
+        }
+        boolean doFlag = (verb == DO);
+        boolean willFlag = (verb == WILL);
+        
+        if (option == ECHO ||
+                option == SUPPRESS_GO_AHEAD) {                        
+            if (session.optionReplied[option]) {
+                // Already agreed, don't loop.
+                return;
+            }
+            session.optionReplied[option] = true;
+            if (doFlag) {
+                // Replay with WILL on DO ECHO and DO SUPPRESS_GO_AHEAD requests
+                if (debugFlag)                        
+                    System.out.println("DO " + translateTelnetOption(option));
+                session.write(new byte[] { IAC, WILL, option });
+            }
+            else if (willFlag) {
+                // Replay with DO on WILL ECHO and WILL SUPPRESS_GO_AHEAD messages
+                if (debugFlag)                        
+                    System.out.println("WILL " + translateTelnetOption(option));
+                session.write(new byte[] { IAC, DO, option });
+            }
         }
+        else if (option == WINDOW_SIZE) {
+            // Stay ready to accept new values for WINDOW_SIZE
+            if (willFlag && !session.optionReplied[option]) {
+                session.optionReplied[option] = true;
+                session.write(new byte[] { IAC, DO, WINDOW_SIZE });
+            }
+            else if (!willFlag) {
+                if (debugFlag)                        
+                    System.out.println("Unsupported type operation: " + verb + " for " + translateTelnetOption(option));
+            }                        
+        }
+        else if ( option == REMOTE_FLOW_CONTROL ||
+                option == TERMINAL_SPEED ||
+                option == TERMINAL_TYPE ||
+                option == X_DISPLAY_LOCATION ||
+                option == NEW_ENVIRONMENT ||
+                option == LINEMODE) {
 
+            // Here we ask for values of usual telnet options, like terminal type, speed ... etc. 
+            if (willFlag && !session.optionReplied[option & 0xff]) {
+                session.optionReplied[option & 0xff] = true;
+                session.write(new byte[] { IAC, SB, option, 1, IAC, SE });
+            }
+            else if (!willFlag) {
+                if (debugFlag)                        
+                    System.out.println("Unsupported type operation: " + verb + " for " + translateTelnetOption(option));
+            }
+        }     
+        else {
+            if (debugFlag)                        
+                System.out.println("Unknown telnet option: " + translateTelnetOption(option));
+        }
+    }
+    
+    /**
+     * Process telnet sub negotiation, eg. new WINDOW_SIZE
+     * or value of terminal type.
+     * @param session client session
+     */
+    private void subNegotiate(Session session) {
+        if (session.subNegotiationLen == 0) {
+            return;
+        }
+        byte[] sb = session.subNegotiation;
+        byte option = sb[0];
+        
+        if (option == WINDOW_SIZE) {
+            if (session.subNegotiationLen >= 5) {
+                int width = ((sb[1] & 0xff) << 8) + (sb[2] & 0xff);
+                int height = ((sb[3] & 0xff) << 8) + (sb[4] & 0xff);
+                // Zero means unknown size, keep the old one.
+                if (width > 0) {
+                    session.terminalWidth = width;
+                }
+                if (height > 0) {
+                    session.terminalHeight = height;
+                }
+            }
+        }
+        else if (session.subNegotiationLen > 1) {
+            // Do nothing special, just print it. Skip IS code.
+            String value = new String(sb, 2, Math.max(session.subNegotiationLen - 2, 0));
+            if (debugFlag)                        
+                System.out.println(translateTelnetOption(option) + " = " + value);
+        }
+    }
+    
+    /**
+     * Process one key typed by client, eg. echo, edit
+     * command line or start command.
+     * @param session client session
+     * @param key key char
+     */
+    private void processKey(Session session, char key) {
+        
         /*
-         * Call again itself, to start telnet interface. This usually happens,
-         * if a telnet client violates protocol, and terminates without byebye
-         * message (exit or quit commands). Or if user sends quit or exit
-         * commands, while() loop breaks and execution continues here.
-         * 
-         * This will work only if user of this class didn't yet decide to 
-         * terminate telnet service.
+         * Escape sequence, eg. arrow key. It ends with
+         * letter or ~ char.
          */
-        if (!terminateFlag)        
-            run();
+        if (session.escape != null) {
+            session.escape.append(key);
+            if (session.escape.length() == 1 && key != '[' && key != 'O') {
+                session.escape = null;
+            }
+            else if (session.escape.length() > 1 && key >= 0x40 && key <= 0x7e) {
+                String sequence = session.escape.toString();
+                session.escape = null;
+                history(session, sequence);
+            }
+            else if (session.escape.length() > 16) {
+                session.escape = null;
+            }
+            return;
+        }
         
+        boolean afterCR = session.lastCR;
+        session.lastCR = false;
+        
+        /*
+         * Any key ends top view, except end of line
+         * which started it.
+         */
+        if (session.top) {
+            if (afterCR && (key == '\n' || key == '\000')) {
+                return;
+            }
+            session.top = false;
+            session.topSnapshot = null;
+            session.write("\r\n" + prompt);
+            return;
+        }
+        
+        if (key == '\033') {
+            session.escape = new StringBuilder();
+        }
+        else if (key == '\r' || key == '\n' || key == '\000') {
+            // LF or NUL after CR is part of same ending.
+            if (afterCR && key != '\r') {
+                return;
+            }
+            if (key == '\000') {
+                return;
+            }
+            session.lastCR = (key == '\r');
+            
+            String inputLine = session.inputLine;
+            session.inputLine = "";
+            /*
+             * Store it in command history.
+             */
+            if (inputLine.trim().length() > 0) {
+                // put only non-empty non-existing lines in history
+                session.commandHistory.add(inputLine);
+                session.commandHistoryIndexPointer = session.commandHistory.size();
+            }
+            startCommand(session, inputLine);
+        }
+        else if (key == '\t' || key == '?') {
+            String inputLine = session.inputLine;
+            String[] possibleCommands = autoComplete(inputLine);
+            if (possibleCommands.length == 0) {
+                session.write("\r\nNothing to complete available.\r\n" + prompt + inputLine);
+            }
+            else if (possibleCommands.length == 1) {
+                session.write(possibleCommands[0].substring(inputLine.length()));
+                session.inputLine = possibleCommands[0];
+            }
+            else {
+                if (inputLine.length() == 0) {
+                    session.write("\r\n" + usage() + "\r\n" + prompt);
+                }
+                else {
+                    StringBuilder sb = new StringBuilder();
+                    for (String item : possibleCommands) {
+                        sb.append("\r\n" + item);
+                    }
+                    String prefix = findPrefix(possibleCommands);
+                    if (prefix.length() > inputLine.length()) {                                    
+                        session.inputLine = prefix;
+                    }
+                    sb.append("\r\n" + prompt + session.inputLine);
+                    session.write(sb.toString());
+                }
+            }
+        }
+        else if (key == '\b' || key == 127) {
+            if (session.inputLine.length() > 0) {
+                session.inputLine = removeChars(session.inputLine, 1);
+                // Esc. sequence for backspace
+                session.write("\b\033[K");
+            }
+        }
+        else if (key >= ' ') {
+            if (session.inputLine.length() < MAX_LINE_LEN) {
+                session.inputLine = session.inputLine + key;
+                // Echo new input char.
+                session.write(new byte[] { (byte) key });
+            }
+        }
+    }
+    
+    /**
+     * Browse command history with arrow keys.
+     * @param session client session
+     * @param sequence escape sequence without ESC char
+     */
+    private void history(Session session, String sequence) {
+        List<String> commandHistory = session.commandHistory;
+        if (commandHistory.isEmpty()) {
+            return;
+        }
+        // Up arrow key: \033[A or \033OA
+        // Down arrow key: \033[B or \033OB
+        if (sequence.endsWith("A")) {
+            session.commandHistoryIndexPointer--;
+            if (session.commandHistoryIndexPointer < 0) {
+                session.commandHistoryIndexPointer = 0;
+            }
+            else {
+                String historyCommand = commandHistory.get(session.commandHistoryIndexPointer);
+                session.inputLine = historyCommand;
+                session.write("\033[1K\r" + prompt + historyCommand);
+            }
+        }
+        else if (sequence.endsWith("B")) {
+            session.commandHistoryIndexPointer++;
+            if (session.commandHistoryIndexPointer > commandHistory.size()) {
+                session.commandHistoryIndexPointer = commandHistory.size();
+            }
+            else if (session.commandHistoryIndexPointer < commandHistory.size()) {
+                String historyCommand = commandHistory.get(session.commandHistoryIndexPointer);
+                session.inputLine = historyCommand;
+                session.write("\033[1K\r" + prompt + historyCommand);
+            }
+        }
+    }
+    
+    /**
+     * Run command on worker pool. Event loop prints result
+     * once command is done, see <I>finishCommand()</I>.
+     * @param session client session
+     * @param command command line
+     */
+    private void startCommand(final Session session, final String command) {
+        session.busy = true;
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                String retVal;
+                try {
+                    retVal = processCommand(command, session);
+                } catch (RuntimeException e) {
+                    retVal = "Command failed: " + e + "\r\n";
+                }
+                session.result = retVal;
+                completed.add(session);
+                selector.wakeup();
+            }
+        });
+    }
+    
+    /**
+     * Print result of command and prompt, then process keys
+     * typed while command was running.
+     * @param session client session
+     */
+    private void finishCommand(Session session) {
+        if (!session.channel.isOpen()) {
+            return;
+        }
+        String retVal = session.result;
+        session.result = null;
+        session.busy = false;
+        
+        if (session.top) {
+            /*
+             * Frame of top view, without prompt.
+             */
+            session.write(retVal);
+        }
+        else if (retVal.equalsIgnoreCase(commandExit)) {
+            session.write((session.streamed ? "" : "\r\n") + retVal);
+            /*
+             * Close session once printout is sent.
+             */
+            session.write("\r\n");
+            session.closing = true;
+            session.typeAhead.setLength(0);
+        }
+        else {
+            session.write((session.streamed ? "" : "\r\n") + retVal);
+            /*
+             * Print prompt.
+             */
+            session.write("\r\n" + prompt);
+        }
+        session.streamed = false;
+        
+        if (!session.closing) {
+            while (!session.busy && session.typeAhead.length() > 0) {
+                char key = session.typeAhead.charAt(0);
+                session.typeAhead.deleteCharAt(0);
+                processKey(session, key);
+            }
+        }
+        
+        try {
+            flush(session);
+        } catch (IOException e) {
+            close(session);
+        }
+    }
+    
+    /**
+     * Send part of printout while command is still running. Used by
+     * commands with long printout, so it is never built in memory as
+     * a whole. Worker waits here while client is slow to read.
+     * @param session client session
+     * @param text part of printout
+     */
+    private void stream(Session session, String text) {
+        if (!session.streamed) {
+            session.streamed = true;
+            text = "\r\n" + text;
+        }
+        session.write(text);
+        flushRequests.add(session);
+        selector.wakeup();
+        
+        synchronized (session) {
+            while (session.pendingBytes > MAX_PENDING && session.channel.isOpen()) {
+                try {
+                    session.wait(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Send queued data to client. What socket does not accept
+     * now, is sent when socket becomes writable.
+     * @param session client session
+     * @throws IOException
+     */
+    private void flush(Session session) throws IOException {
+        if (session.key == null || !session.key.isValid()) {
+            // Closed meanwhile, eg. worker queued output after disconnect.
+            return;
+        }
+        ByteBuffer buffer;
+        while ((buffer = session.outQueue.peek()) != null) {
+            session.channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                session.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            session.outQueue.poll();
+            synchronized (session) {
+                session.pendingBytes = session.pendingBytes - buffer.capacity();
+                session.notifyAll();
+            }
+        }
+        if (session.closing) {
+            close(session);
+            return;
+        }
+        session.key.interestOps(SelectionKey.OP_READ);
+    }
+    
+    /**
+     * Close client session after unexpected error, so other sessions
+     * keep running.
+     * @param session client session
+     * @param e error
+     */
+    private void drop(Session session, RuntimeException e) {
+        LoadBalancer.log(Thread.currentThread().getName(), "Telnet client " + session.remote + " dropped: " + e);
+        close(session);
+    }
+    
+    /**
+     * Close client session.
+     * @param session client session
+     */
+    private void close(Session session) {
+        sessions.remove(session);
+        session.outQueue.clear();
+        if (session.key != null) {
+            session.key.cancel();
+        }
+        try {
+            session.channel.close();
+        } catch (IOException e) {
+            // Nothing to do, session is gone anyway.
+        }
+        synchronized (session) {
+            // Release worker which waits in stream().
+            session.notifyAll();
+        }
+        if (debugFlag)
+            System.out.println("Telnet client disconnected: " + session.remote);
     }
     
     /**
@@ -625,8 +1152,12 @@ public class TelnetServer implements Runnable {
         addCommand("show settings");
         addCommand("show uptime");
         addCommand("show watchdog");
+        addCommand("show buffers");
+        addCommand("top");
         
         addCommand("set sync request");
+        addCommand("set sync rate");
+        addCommand("set sync abort");
         addCommand("set sip options");
         addCommand("set hello interval");
         addCommand("set dead interval");
@@ -635,9 +1166,11 @@ public class TelnetServer implements Runnable {
         addCommand("node list");
         addCommand("node add");
         addCommand("node delete");
+        addCommand("node drain");
         
         addCommand("call table show");
         addCommand("call table bye");
+        addCommand("call table next");
         
         addCommand("register show");
         
@@ -653,9 +1186,10 @@ public class TelnetServer implements Runnable {
      * This is custom function, used by this application.
      * Please customize it to fit requirements.
      * @param command name of the command
+     * @param session client session, eg. for terminal size
      * @return printout or result
      */
-    private String telnetCommand(String command) {
+    private String telnetCommand(String command, Session session) {
         String retVal  = "";
         
         if (command.startsWith("show ")) {
@@ -677,23 +1211,31 @@ public class TelnetServer implements Runnable {
             else if (command.startsWith("watchdog")) {
                 StringBuilder sb = new StringBuilder("");
                 sb.append("Watchdog table:\r\n");
-                sb.append(leftAdjust("IP address", getTerminalWidth() / 3, " ") + leftAdjust("Time", getTerminalWidth() / 3, " ") + "\r\n");
+                sb.append(leftAdjust("IP address", session.terminalWidth / 3, " ") + leftAdjust("Time", session.terminalWidth / 3, " ")
+                		+ "Load\r\n");
                 for (String key : LoadBalancer.watchdogTable.keySet()) {
                     long ago = (System.currentTimeMillis() - LoadBalancer.watchdogTable.get(key));
-                    sb.append(leftAdjust(key, getTerminalWidth() / 3, " ") + leftAdjust(String.valueOf(ago), getTerminalWidth() / 3, " ") + " milisec.\r\n");
+                    sb.append(leftAdjust(key, session.terminalWidth / 3, " ") + leftAdjust(String.valueOf(ago) + " milisec.", session.terminalWidth / 3, " ")
+                    		+ LoadBalancer.getNodeInfo(key).getLoadString() + "\r\n");
                 }
                 if (LoadBalancer.watchdogTable.isEmpty()) {
                     sb.append("Empty.\r\n");
                 }
                 retVal = sb.toString();
             }
+            else if (command.startsWith("buffers")) {
+                StringBuilder sb = new StringBuilder("");
+                sb.append("Buffer pool:\r\n");
+                sb.append(LoadBalancer.bufferPool.getTable());
+                retVal = sb.toString();
+            }
             else if (command.startsWith("realm")) {
             	retVal = LoadBalancer.realm;
             }
             else if (command.startsWith("stat")) {
                 StringBuilder sb = new StringBuilder("");
                 sb.append("Statistic:\r\n");
-                sb.append(LoadBalancer.stat.getStatTable(getTerminalWidth() / 4 - 5));
+                sb.append(LoadBalancer.stat.getStatTable(session.terminalWidth / 4 - 5));
                 sb.append("\r\n");
                 
                 retVal = sb.toString();
@@ -706,17 +1248,47 @@ public class TelnetServer implements Runnable {
                 sb.append("\r\n");
                 sb.append("Telnet interface: " + LoadBalancer.telnetInterface + "\r\n");
                 sb.append("     Telnet port: " + LoadBalancer.telnetPort + "\r\n");
+                sb.append("  Telnet threads: " + LoadBalancer.telnetThreads + "\r\n");
+                sb.append(" Telnet sessions: " + getSessionCount() + "\r\n");
                 sb.append("\r\n");
                 sb.append("Watchdog interface: " + LoadBalancer.watchdogInterface + "\r\n");
                 sb.append("    Watchdog  port: " + LoadBalancer.watchdogPort + "\r\n");
                 sb.append("\r\n");                
                 sb.append("Discovery interface: " + LoadBalancer.discoveryInterface + "\r\n");
                 sb.append("  Discovery timeout: " + LoadBalancer.discoveryTimeout + "\r\n");
+                sb.append("     Discovery rate: " + LoadBalancer.discoveryRate + " pps.\r\n");
+                sb.append("     Discovery mode: " + LoadBalancer.discoveryMode + "\r\n");
+                sb.append(" Discovery interval: " + ((LoadBalancer.discoveryInterval > 0) ? LoadBalancer.discoveryInterval + " sec." : "once at startup") + "\r\n");
                 sb.append("\r\n");
                 sb.append("SIP OPTIONS refresh: " + LoadBalancer.sipOptions + "\r\n");
+                sb.append("          Balancing: " + LoadBalancer.balancing + "\r\n");
+                sb.append("  Breaker threshold: " + LoadBalancer.breakerThreshold + "\r\n");
+                sb.append("  Breaker open time: " + LoadBalancer.breakerOpenTime + " msec.\r\n");
+                sb.append("     INVITE timeout: " + LoadBalancer.inviteTimeout + " msec.\r\n");
+                sb.append("        TCP threads: " + ((LoadBalancer.tcpThreads > 0) ? LoadBalancer.tcpThreads : "disabled") + "\r\n");
+                sb.append("       TCP to nodes: " + ((LoadBalancer.tcpTransport != null) ? LoadBalancer.tcpTransport.getNodeConnectionCount() : 0)
+                		+ " connections\r\n");
+                sb.append("           TLS port: " + ((LoadBalancer.tlsTransport != null) ? String.valueOf(LoadBalancer.tlsPort) : "disabled") + "\r\n");
+                sb.append("  TLS session cache: " + LoadBalancer.tlsSessionCache + " sessions, " + LoadBalancer.tlsSessionTimeout + " sec.\r\n");
+                sb.append("     Admission rate: " + ((LoadBalancer.admissionRate > 0) ? LoadBalancer.admissionRate
+                		+ " calls/sec., burst " + LoadBalancer.admissionBurst : "unlimited") + "\r\n");
+                sb.append("  Admission sources: " + ((LoadBalancer.admissionControl != null) ? LoadBalancer.admissionControl.size() : 0)
+                		+ " of " + LoadBalancer.admissionTableSize + "\r\n");
                 sb.append("     Hello interval: " + LoadBalancer.helloInterval + " msec.\r\n");
                 sb.append("      Dead interval: " + LoadBalancer.deadInterval + " msec.\r\n");
+                sb.append("\r\n");
+                sb.append("  Sync rate: " + LoadBalancer.syncRate + " bytes/sec.\r\n");
+                sb.append("Sync window: " + LoadBalancer.syncWindow + " msec.\r\n");
+                if (LoadBalancer.syncPeers != null) {
+                	sb.append("  Sync port: " + LoadBalancer.syncPort + "\r\n");
+                	sb.append("Sync peers:\r\n");
+                	sb.append(PeerSync.getPeerStatus());
+                }
                 sb.append("\r\n");                
+                sb.append("    Checkpoint file: " + LoadBalancer.checkpointFile + "\r\n");
+                sb.append("Checkpoint interval: " + LoadBalancer.checkpointInterval + " msec.\r\n");
+                sb.append(" WAL flush interval: " + LoadBalancer.walFlushInterval + " msec.\r\n");
+                sb.append("\r\n");
                 sb.append("Verbose level: " + LoadBalancer.verbose + "\r\n");
                 sb.append("\r\n");                
                 retVal = sb.toString();            	
@@ -750,6 +1322,26 @@ public class TelnetServer implements Runnable {
             if (command.startsWith("sync request")) {
             	retVal = "Synchronization request sent.\r\n";
             }
+            else if (command.startsWith("sync rate ")) {
+            	String arg = command.substring("sync rate ".length());
+            	long syncRate = Long.parseLong(arg);
+            	if (syncRate >= 0) {
+            		LoadBalancer.syncRate = syncRate;
+            	}
+            	else {
+            		retVal = "Sync rate range: 0 (unlimited) or more [bytes/sec]. ";
+            	}
+            	retVal = retVal + "Sync rate set to: " + LoadBalancer.syncRate + " bytes/sec.\r\n";
+            }
+            else if (command.startsWith("sync abort")) {
+            	if (LoadBalancer.syncResponder.isRunning()) {
+            		retVal = "Synchronization aborted.\r\n";
+            	}
+            	else {
+            		retVal = "Synchronization is not running.\r\n";
+            	}
+            	LoadBalancer.syncResponder.abort();
+            }
             else if (command.startsWith("verbose ")) {
             	String arg = command.substring("verbose ".length());
             	if (arg.equalsIgnoreCase("0")) {
@@ -818,7 +1410,9 @@ public class TelnetServer implements Runnable {
             command = command.substring("node ".length());
             
             if (command.startsWith("list")) {
-                retVal = leftAdjust("Node", getTerminalWidth() / 3, " ") + leftAdjust("Last seen", getTerminalWidth() / 3, " ") + "\r\n";
+                retVal = leftAdjust("Node", session.terminalWidth / 4, " ") + leftAdjust("Last seen", session.terminalWidth / 8, " ")
+                		+ leftAdjust("RTT", session.terminalWidth / 6, " ") + leftAdjust("Latency", session.terminalWidth / 6, " ")
+                		+ leftAdjust("Calls", session.terminalWidth / 9, " ") + "Breaker\r\n";
                 if (LoadBalancer.getNodeListKeySet().isEmpty()) {
                     retVal = retVal + "Empty.\r\n";
                 }
@@ -829,8 +1423,14 @@ public class TelnetServer implements Runnable {
                     	if (lastSeen > 0) {
                     		lastSeenStr = String.valueOf((System.currentTimeMillis() - lastSeen) / 1000) + " sec.";
                     	}
-                        retVal = retVal + leftAdjust(LoadBalancer.getNode(key), getTerminalWidth() / 3, " ") +
-                        		leftAdjust(lastSeenStr, getTerminalWidth() / 3, " ") + "\r\n";
+                        String node = LoadBalancer.getNode(key);
+                        NodeInfo info = LoadBalancer.getNodeInfo(node);
+                        retVal = retVal + leftAdjust(node, session.terminalWidth / 4, " ") +
+                        		leftAdjust(lastSeenStr, session.terminalWidth / 8, " ") +
+                        		leftAdjust(info.getRttString(), session.terminalWidth / 6, " ") +
+                        		leftAdjust(info.getLatencyString(), session.terminalWidth / 6, " ") +
+                        		leftAdjust(String.valueOf(LoadBalancer.countNodeCalls(node)), session.terminalWidth / 9, " ") +
+                        		info.breaker.getStateString() + (info.draining ? ", draining" : "") + "\r\n";
                     }                	
                 }            	
             }
@@ -842,62 +1442,61 @@ public class TelnetServer implements Runnable {
             	String arg = command.substring("delete ".length());
             	LoadBalancer.deleteNode(arg);            	
             }
+            else if (command.startsWith("drain ")) {
+            	String[] args = command.substring("drain ".length()).trim().split("\\s+");
+            	String node = args[0];
+            	if (LoadBalancer.getNodeIndex(node) == -1) {
+            		retVal = "Unknown node: " + node + "\r\n";
+            	}
+            	else {
+            		NodeInfo info = LoadBalancer.getNodeInfo(node);
+            		info.draining = !(args.length > 1 && args[1].equalsIgnoreCase("off"));
+            		LoadBalancer.updateCurrentNode();
+            		if (info.draining) {
+            			retVal = "Node " + node + " gets no new calls, " + LoadBalancer.countNodeCalls(node) + " calls left.\r\n";
+            		}
+            		else {
+            			retVal = "Node " + node + " gets new calls again.\r\n";
+            		}
+            	}
+            }
         }
         else if (command.startsWith("call table ")) {
             // Strip set word.
             command = command.substring("call table ".length());
             
-            if (command.startsWith("show")) {
-                StringBuilder sb = new StringBuilder("");
-                sb.append("Call table:\r\n");
-                sb.append(leftAdjust("Call ID", getTerminalWidth() / 2, " ") +
-                		leftAdjust("Source:port, destination:port", getTerminalWidth() / 3, " ") + "\r\n");
-                int size = 0;
-                for (String key : LoadBalancer.getCallRecords()) {
-                    sb.append(leftAdjust(key, getTerminalWidth() / 2, " ") + 
-                    		leftAdjust(LoadBalancer.getCallRecord(key).toString(), getTerminalWidth() / 3, " ")
-                    		+ "\r\n");
-                    size++;
-                }
-                if (size == 0) {
-                    sb.append("Empty.\r\n");
-                }
-                else {
-                    sb.append("Total: " + size + "\r\n");
-                }
-                retVal = sb.toString();            	
-            }
-            else if (command.startsWith("bye")) {
-                StringBuilder sb = new StringBuilder("");
-                sb.append("Call table (only BYE flag, calls that are about to close):\r\n");
-                sb.append(leftAdjust("Call ID", getTerminalWidth() / 2, " ") +
-                		leftAdjust("Source:port, destination:port", getTerminalWidth() / 3, " ") + "\r\n");
-                int size = 0;
-                for (String key : LoadBalancer.getCallRecords()) {
-                	/*
-                	 *  Only add calls with bye flag set. 
-                	 */
-                	if (LoadBalancer.getCallRecord(key).bye) {                    
-                        sb.append(leftAdjust(key, getTerminalWidth() / 2, " ") + 
-                        		leftAdjust(LoadBalancer.getCallRecord(key).toString(), getTerminalWidth() / 3, " ")
-                        		+ "\r\n");
-                		size++;
-                	}
+            try {
+                if (command.startsWith("show")) {
+                    session.dump = new CallTableDump(command.substring("show".length()));
+                    retVal = dumpCallTable(session, "Call table:\r\n");
                 }
-                if (size == 0) {
-                    sb.append("Empty.\r\n");
+                else if (command.startsWith("bye")) {
+                    session.dump = new CallTableDump("bye " + command.substring("bye".length()));
+                    retVal = dumpCallTable(session, "Call table (only BYE flag, calls that are about to close):\r\n");
                 }
-                else {
-                    sb.append("Total: " + size + "\r\n");
+                else if (command.startsWith("next")) {
+                    if (session.dump != null) {
+                        retVal = dumpCallTable(session, null);
+                    }
+                    else {
+                        retVal = "No call table printout to continue.\r\n";
+                    }
                 }
-                retVal = sb.toString();            	
+            } catch (IOException e) {
+                retVal = "Invalid node address: " + e.getMessage() + "\r\n";
+            } catch (IllegalArgumentException e) {
+                retVal = e.getMessage() + "\r\nUsage: call table show [node A.B.C.D[:port]] [source A.B.C.D] [callid prefix] [bye] [age sec.] [page calls]\r\n";
             }
         }
+        else if (command.trim().equals("top")) {
+            session.top = true;
+            retVal = renderTop(session);
+        }
         else if (command.startsWith("register ")) {
             // Strip set word.
             command = command.substring("register ".length());
             if (command.startsWith("show")) {
-            	retVal = LoadBalancer.registrator.getRegisterTable(getTerminalWidth() / 5);
+            	retVal = LoadBalancer.registrator.getRegisterTable(session.terminalWidth / 5);
             }
         }
         else {
@@ -907,12 +1506,141 @@ public class TelnetServer implements Runnable {
         return retVal;
     }
     
+    /**
+     * Render one frame of <I>top</I> view, with rates since previous frame
+     * of session. First frame clears screen and shows averages since start.
+     * Frame fits in terminal size of session, extra node rows are left out.
+     * @param session client session
+     * @return frame, drawn from top left corner of screen
+     */
+    private String renderTop(Session session) {
+        Metrics.Snapshot current = LoadBalancer.metrics.snapshot();
+        Metrics.Snapshot previous = session.topSnapshot;
+        session.topSnapshot = current;
+        
+        StringBuilder sb = new StringBuilder();
+        if (previous == null) {
+            previous = LoadBalancer.metrics.initial();
+            sb.append("\033[2J");
+        }
+        sb.append("\033[H");
+        
+        int width = session.terminalWidth;
+        int height = session.terminalHeight;
+        long uptime = (System.currentTimeMillis() - LoadBalancer.startedAt) / 1000;
+        
+        List<String> lines = new ArrayList<String>();
+        lines.add(LoadBalancer.ver + ", up " + (uptime / 86400) + " days, " + String.format("%02d:%02d:%02d",
+        		(uptime / 3600) % 24, (uptime / 60) % 60, uptime % 60) + ", press any key to quit");
+        lines.add(String.format("Calls: %8.1f/s   active %d   sources %d", current.rate(Metrics.CALLS, previous),
+        		LoadBalancer.getCallRecordEntries().size(), LoadBalancer.callIndex.getSourceCount()));
+        lines.add(String.format("Msgs:  %8.1f/s to nodes   %8.1f/s to callers", current.rate(Metrics.TO_NODES, previous),
+        		current.rate(Metrics.TO_CALLERS, previous)));
+        lines.add(String.format("Drops: %8.1f/s rejected   %8.1f/s no node   %8.1f/s not found   %8.1f/s closed",
+        		current.rate(Metrics.DROP_REJECTED, previous), current.rate(Metrics.DROP_NO_NODE, previous),
+        		current.rate(Metrics.DROP_NOT_FOUND, previous), current.rate(Metrics.DROP_CLOSED, previous)));
+        
+        long timed = current.delta(Metrics.SYNC_TIMED, previous);
+        lines.add(String.format("Sync:  %8.1f/s frames     lag %s", current.rate(Metrics.SYNC_FRAMES, previous),
+        		(timed > 0) ? (current.delta(Metrics.SYNC_LAG, previous) / timed) + " msec." : "-"));
+        lines.add("Setup: p50 " + formatUsec(current.percentile(50, previous))
+        		+ "   p90 " + formatUsec(current.percentile(90, previous))
+        		+ "   p99 " + formatUsec(current.percentile(99, previous)));
+        lines.add("");
+        lines.add(leftAdjust("Node", width / 4, " ") + leftAdjust("Calls", width / 8, " ")
+        		+ leftAdjust("Latency", width / 6, " ") + "Breaker");
+        
+        /*
+         * Snapshot of node addresses, so refresh takes no class lock
+         * which dispatcher needs for each message.
+         */
+        for (String node : LoadBalancer.getNodeAddresses()) {
+            if (lines.size() >= height - 1) {
+                break;
+            }
+            NodeInfo info = LoadBalancer.getNodeInfo(node);
+            lines.add(leftAdjust(node, width / 4, " ")
+            		+ leftAdjust(String.valueOf(LoadBalancer.countNodeCalls(node)), width / 8, " ")
+            		+ leftAdjust(info.getLatencyString(), width / 6, " ")
+            		+ info.breaker.getStateString() + (info.draining ? ", draining" : ""));
+        }
+        
+        /*
+         * Overwrite old frame line by line, and clear what is left of it.
+         */
+        for (String line : lines) {
+            if (line.length() >= width) {
+                line = line.substring(0, Math.max(width - 1, 0));
+            }
+            sb.append(line).append("\033[K\r\n");
+        }
+        sb.append("\033[J");
+        return sb.toString();
+    }
+    
+    /**
+     * Format time for <I>top</I> view.
+     * @param usec time in usec, or <I>-1</I>
+     * @return time in msec, or <I>-</I>
+     */
+    private static String formatUsec(long usec) {
+        if (usec < 0) {
+            return "-";
+        }
+        return String.format("%.2f msec.", usec / 1000.0);
+    }
+    
+    /**
+     * Print call table, or next page of it, from dump cursor of session.
+     * Printout is streamed to client in chunks, as cursor moves.
+     * @param session client session with <I>dump</I> cursor
+     * @param title title line, or <I>null</I> to continue with next page
+     * @return last part of printout
+     */
+    private String dumpCallTable(Session session, String title) {
+        CallTableDump dump = session.dump;
+        int width = session.terminalWidth;
+        
+        StringBuilder sb = new StringBuilder();
+        if (title != null) {
+            sb.append(title);
+            dump.appendHeader(sb, width);
+        }
+        
+        int rows = 0;
+        while (dump.hasNext()) {
+            if (dump.getPageSize() > 0 && rows == dump.getPageSize()) {
+                sb.append("-- " + dump.getCount() + " calls so far, type 'call table next' for more --\r\n");
+                return sb.toString();
+            }
+            dump.appendRow(sb, width);
+            rows++;
+            if (sb.length() > CHUNK_LEN) {
+                stream(session, sb.toString());
+                sb.setLength(0);
+                if (!session.channel.isOpen()) {
+                    break;
+                }
+            }
+        }
+        
+        session.dump = null;
+        if (dump.getCount() == 0) {
+            sb.append("Empty.\r\n");
+        }
+        else {
+            sb.append("Total: " + dump.getCount() + "\r\n");
+        }
+        return sb.toString();
+    }
+    
     /**
      * Function prototype for processing commands.
      * @param command command name
+     * @param session client session
      * @return command result or printout
      */
-    private String processCommand(String command) {
+    private String processCommand(String command, Session session) {
     
         String retVal = "";
     
@@ -924,7 +1652,7 @@ public class TelnetServer implements Runnable {
             retVal = commandExit;        
         }
         else {
-            retVal = telnetCommand(command);
+            retVal = telnetCommand(command, session);
         }
         
         return retVal;
@@ -1066,23 +1794,23 @@ public class TelnetServer implements Runnable {
 	}
 	
     /**
-     * Terminate telnet service. First make sure no client is connected.
+     * Terminate telnet service, and disconnect all clients.
      * @throws IOException
      */
     public void terminate() throws IOException {
         terminateFlag = true;
-        serverSocket.close();
+        serverChannel.close();
+        selector.wakeup();
+        workers.shutdown();
     }
     
     /**
-     * Disconnect client, and make telnet service free again.
+     * Disconnect all clients, telnet service still accepts new ones.
      * @throws IOException
      */
     public void disconnect() throws IOException {
-        terminateFlag = false;
-        if (isTelnetClientConnected()) {
-            telnetClientConnected = false;
-            clientSocket.close();
+        for (Session session : sessions) {
+            close(session);
         }
     }
     /**
@@ -1099,11 +1827,21 @@ public class TelnetServer implements Runnable {
     /**
      * <H1>Is telnet client connected</H1>
      * <BR>
-     * Check if telnet service has already a connected client.
-     * @return the telnetClientConnected, <I>true</I> if client is connected
+     * Check if telnet service has at least one connected client.
+     * @return <I>true</I> if client is connected
      */
     public boolean isTelnetClientConnected() {
-        return telnetClientConnected;
+        return !sessions.isEmpty();
+    }
+
+    /**
+     * <H1>Sessions</H1>
+     * <BR>
+     * Get number of connected clients.
+     * @return number of sessions
+     */
+    public int getSessionCount() {
+        return sessions.size();
     }
 
     /**
@@ -1183,7 +1921,7 @@ public class TelnetServer implements Runnable {
     }
 
     /**
-     * Terminal size.
+     * Default terminal size, for new sessions.
      * @return width, number of chars per line
      */
 	public int getTerminalWidth() {
@@ -1191,7 +1929,7 @@ public class TelnetServer implements Runnable {
 	}
 	
     /**
-     * Terminal size.
+     * Default terminal size, for new sessions.
      * @param terminalWidth number of chars per line
      */
 	public void setTerminalWidth(int terminalWidth) {
@@ -1199,7 +1937,7 @@ public class TelnetServer implements Runnable {
 	}
 	
     /**
-     * Terminal size.
+     * Default terminal size, for new sessions.
      * @return height, number of lines per page
      */
 	public int getTerminalHeight() {
@@ -1207,7 +1945,7 @@ public class TelnetServer implements Runnable {
 	}
 	
     /**
-     * Terminal size.
+     * Default terminal size, for new sessions.
      * @param terminalHeight number of lines per page
      */
 	public void setTerminalHeight(int terminalHeight) {
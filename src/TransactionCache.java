@@ -0,0 +1,157 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <H1>Transaction cache</H1>
+ * Remembers INVITE server transactions, keyed by branch of top Via header
+ * and Call-ID, together with call record which was used to route them.<BR>
+ * <BR>
+ * UDP client retransmits INVITE until it gets response. Retransmission has
+ * same branch and Call-ID, so it is found here and sent to same node,
+ * without new node selection and without sync with peers.<BR>
+ * <BR>
+ * Transaction is kept for <I>TRANSACTION_TIME</I> msec, eg. SIP timer B,
+ * even if call record is removed meanwhile.
+ * @author eigorde
+ *
+ */
+public class TransactionCache {
+
+	/**
+	 * Lifetime of transaction, 64 * T1.<BR>
+	 * Unit: msec.
+	 */
+	static final long TRANSACTION_TIME = 32000;
+
+	/**
+	 * Transaction in cache.
+	 */
+	private static class Transaction {
+
+		/**
+		 * Key in table.
+		 */
+		final String key;
+
+		/**
+		 * Call record used for routing.
+		 */
+		final CallType callType;
+
+		/**
+		 * Time stamp of first INVITE (UNIX time).
+		 */
+		final long createdAt;
+
+		Transaction(String key, CallType callType, long createdAt) {
+			this.key = key;
+			this.callType = callType;
+			this.createdAt = createdAt;
+		}
+	}
+
+	/**
+	 * Transactions, keyed by branch and Call-ID.
+	 */
+	private ConcurrentHashMap<String, Transaction> table;
+
+	/**
+	 * Transactions in order of creation, for expiry.
+	 */
+	private ConcurrentLinkedQueue<Transaction> queue;
+
+	/**
+	 * <H1>Transaction cache</H1><BR>
+	 * Empty cache.
+	 */
+	public TransactionCache() {
+		table = new ConcurrentHashMap<String, Transaction>();
+		queue = new ConcurrentLinkedQueue<Transaction>();
+	}
+
+	/**
+	 * Build key of transaction from SIP request. Request without branch,
+	 * eg. from RFC 2543 client, is keyed by CSeq number instead.
+	 * @param message SIP request
+	 * @param callID Call-ID of request
+	 * @return key
+	 */
+	static String getKey(String message, String callID) {
+		int idxVia = message.indexOf("\nVia:");
+		if (idxVia < 0) {
+			idxVia = message.indexOf("\nv:");
+		}
+		if (idxVia >= 0) {
+			int idxEnd = message.indexOf('\n', idxVia + 1);
+			if (idxEnd < 0) {
+				idxEnd = message.length();
+			}
+			int idxBranch = message.indexOf("branch=", idxVia);
+			if (idxBranch > 0 && idxBranch < idxEnd) {
+				int pos = idxBranch + "branch=".length();
+				int end = pos;
+				while (end < idxEnd && ";, \t\r".indexOf(message.charAt(end)) < 0) {
+					end++;
+				}
+				return message.substring(pos, end) + " " + callID;
+			}
+		}
+
+		int idxCSeq = message.indexOf("CSeq:");
+		if (idxCSeq >= 0) {
+			int idxEnd = message.indexOf('\n', idxCSeq);
+			if (idxEnd < 0) {
+				idxEnd = message.length();
+			}
+			return message.substring(idxCSeq + "CSeq:".length(), idxEnd).trim() + " " + callID;
+		}
+		return callID;
+	}
+
+	/**
+	 * Find transaction.
+	 * @param key key of transaction, see <I>getKey()</I>
+	 * @return call record of transaction, or <I>null</I> if this is new transaction
+	 */
+	public CallType get(String key) {
+		Transaction transaction = table.get(key);
+		if (transaction == null) {
+			return null;
+		}
+		if (System.currentTimeMillis() - transaction.createdAt > TRANSACTION_TIME) {
+			return null;
+		}
+		return transaction.callType;
+	}
+
+	/**
+	 * Store new transaction, and drop expired ones.
+	 * @param key key of transaction, see <I>getKey()</I>
+	 * @param callType call record used for routing
+	 */
+	public void put(String key, CallType callType) {
+		long currentTime = System.currentTimeMillis();
+
+		Transaction transaction = new Transaction(key, callType, currentTime);
+		table.put(key, transaction);
+		queue.add(transaction);
+
+		/*
+		 * Oldest transactions are at head of queue.
+		 */
+		Transaction head;
+		while ((head = queue.peek()) != null && currentTime - head.createdAt > TRANSACTION_TIME) {
+			queue.poll();
+			table.remove(head.key, head);
+		}
+	}
+
+	/**
+	 * Get number of transactions in cache.
+	 * @return number of transactions
+	 */
+	public int size() {
+		return table.size();
+	}
+
+}
@@ -3,25 +3,45 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 
 /**
  * <H1>Watchdog</H1>
  * Watchdog listens on watchdog port and waits until a datagram arrives.<BR>
  * <BR>
- * Once it arrives, a source ip is determined and <I>node pointer</I> points
- * to source ip of datagram.<BR>
+ * Once it arrives, a source ip is determined and node is added to node list,
+ * if it is not already there. Node which does not send datagram within
+ * <I>deadInterval</I> is removed from node list. New calls are spread over
+ * nodes in list by configured balancing.<BR>
  * <BR>
  * This only works if watchdog is enabled, eg. when watchdog port is greater
  * than 0, and no static nodes are defined.<BR>
  * <BR>
- * Currently watchdog does not take into consideration datagram's content.
+ * Node may report its load in binary heartbeat, see <I>udp_client.c</I>:<BR>
+ * <TABLE border=2><TR><TD>'W'</TD><TD>'D'</TD><TD>version</TD><TD>reserved</TD>
+ * <TD>cpu load</TD><TD>active calls</TD><TD>capacity</TD></TR></TABLE><BR>
+ * where <I>cpu load</I> is 2 byte value in 1/100 of percent (<I>0 - 10000</I>),
+ * <I>active calls</I> is 4 byte value and <I>capacity</I> is 2 byte value, max. number
+ * of calls which node can handle. All values are in network byte order.
+ * Reported values are stored in {@link NodeInfo}. Any other datagram is
+ * plain heartbeat, as before.
  *
  * @author eigorde
  *
  */
 public class Watchdog implements Runnable {
 
+    /**
+     * Length of binary heartbeat.
+     */
+    static final int HEARTBEAT_LEN = 12;
+
+    /**
+     * Version of binary heartbeat format.
+     */
+    static final int HEARTBEAT_VERSION = 1;
+
     @Override
     public void run() {
 
@@ -56,37 +76,53 @@ public class Watchdog implements Runnable {
             return; 
         }
 
+        /*
+         * Wake up regularly, to expire nodes even when none is sending.
+         */
+        try {
+        	serverSocket.setSoTimeout((int) Math.max(LoadBalancer.helloInterval, 100));
+        } catch (SocketException e) {
+        	e.printStackTrace();
+        }
+        
+        // Allocate space for new udp datagram.
+        DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
+
         while (true)
             try {
             	
-            	// Allocate space for new udp datagram.
-                DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-
                 // Wait for new udp datagram.
+                receivePacket.setLength(receiveData.length);
                 serverSocket.receive(receivePacket);
                 
-                // Extract datagram content.
-                String sentence = new String(receivePacket.getData());
-
                 /*
                  * Process message.
                  */
                 InetAddress ipAddress = receivePacket.getAddress();
                 String newNode = ipAddress.getHostAddress();
+                
+                /*
+                 * Add new node to node list, or refresh tracker of known node.
+                 */
+                if (LoadBalancer.getNodeIndex(newNode) == -1 && LoadBalancer.verbose > 1) {
+                	LoadBalancer.log(Thread.currentThread().getName(), "Node " + newNode + " joined.");
+                }
+                LoadBalancer.addNode(newNode);
+                
+                /*
+                 * Store reported load, if this is binary heartbeat.
+                 */
+                parseHeartbeat(receiveData, receivePacket.getLength(), newNode);
 
                 // Print status of sip servers, if verbosity is increased.
                 if (LoadBalancer.verbose == 2) {                
                     LoadBalancer.log(Thread.currentThread().getName(), "Node " + newNode + " is live.");
                 }
                 else if (LoadBalancer.verbose == 3) {                
-                    LoadBalancer.log(Thread.currentThread().getName(), "Node " + newNode + " sent: " + sentence);
+                    LoadBalancer.log(Thread.currentThread().getName(), "Node " + newNode + " sent: "
+                    		+ new String(receiveData, 0, receivePacket.getLength()));
                 }
                 
-                /*
-                 * Set a node pointer to point to new node.
-                 */
-                LoadBalancer.setCurrentNode(newNode);
-                
                 /*
                  * Store in table node (sip server) ip address and time.
                  */
@@ -94,7 +130,14 @@ public class Watchdog implements Runnable {
                 
                 // Increase stat. counter.
             	LoadBalancer.stat.increment(LoadBalancer.stat.WATCHDOG_NODES);
+            	
+            	expireNodes();
                 
+            } catch (SocketTimeoutException e) {
+            	/*
+            	 * No heartbeat in a while, but nodes may still expire.
+            	 */
+            	expireNodes();
             } catch (IOException e) {
                 // Print error on console.
                 e.printStackTrace();
@@ -106,4 +149,47 @@ public class Watchdog implements Runnable {
         
     }
 
+    /**
+     * Remove nodes which did not send heartbeat within dead interval
+     * from node list and watchdog table.
+     */
+    private void expireNodes() {
+    	long currentTime = System.currentTimeMillis();
+    	
+    	for (String node : LoadBalancer.watchdogTable.keySet().toArray(new String[0])) {
+    		Long lastSeen = LoadBalancer.watchdogTable.get(node);
+    		if (lastSeen != null && currentTime - lastSeen > LoadBalancer.deadInterval) {
+    			LoadBalancer.watchdogTable.remove(node);
+    			LoadBalancer.deleteNode(node);
+    			
+                if (LoadBalancer.verbose > 1) {                
+                    LoadBalancer.log(Thread.currentThread().getName(), "Node " + node + " expired.");
+                }
+    		}
+    	}
+    }
+
+    /**
+     * Parse binary heartbeat in place, and store reported load in node info.
+     * @param data received datagram
+     * @param length datagram length
+     * @param node ip address of node
+     * @return <I>true</I> if datagram is binary heartbeat
+     */
+    static boolean parseHeartbeat(byte[] data, int length, String node) {
+    	
+    	if (length < HEARTBEAT_LEN || data[0] != 'W' || data[1] != 'D'
+    			|| (data[2] & 0xFF) != HEARTBEAT_VERSION) {
+    		return false;
+    	}
+    	
+    	int cpuLoad = ((data[4] & 0xFF) << 8) | (data[5] & 0xFF);
+    	long activeCalls = ((long) (data[6] & 0xFF) << 24) | ((data[7] & 0xFF) << 16)
+    			| ((data[8] & 0xFF) << 8) | (data[9] & 0xFF);
+    	int capacity = ((data[10] & 0xFF) << 8) | (data[11] & 0xFF);
+    	
+    	LoadBalancer.getNodeInfo(node).loadReported(Math.min(cpuLoad, 10000), activeCalls, capacity);
+    	return true;
+    }
+
 }
@@ -0,0 +1,425 @@
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * <H1>Write-ahead log</H1>
+ * Log of all call table changes, written next to checkpoint snapshot.<BR>
+ * <BR>
+ * Each <I>putCallRecord</I> and <I>removeCallRecord</I> appends a record to
+ * memory buffer. Group commit thread swaps buffers every <I>walFlushInterval</I>
+ * msec, writes collected records to current segment and forces them to disk,
+ * so threads which change call table never wait for disk.<BR>
+ * <BR>
+ * Log is split into segments, named <I>snapshot.wal.N</I>. A new segment is started
+ * when current one grows over segment size, or when {@link Checkpoint} writes
+ * new snapshot. Segments older than last snapshot are deleted.<BR>
+ * <BR>
+ * Record format:<BR>
+ * <TABLE border=2><TR><TD>op</TD><TD>callID length</TD><TD>callID</TD>
+ * <TD>callType length</TD><TD>callType</TD></TR></TABLE><BR>
+ * where <I>op</I> is <I>1</I> for stored record, and <I>0</I> for removed record
+ * (with <I>callType length</I> set to <I>0</I>). Each record carries full state of
+ * call record, so replaying segments in order over last snapshot gives exact call table.
+ * @author eigorde
+ *
+ */
+public class WriteAheadLog implements Runnable {
+
+	/**
+	 * Max. size of buffer which collects new records. If records can not
+	 * be written to disk and buffer is full, log is suspended until next
+	 * snapshot.
+	 */
+	private static final int MAX_BUFFER_LEN = 64 * 1024 * 1024;
+
+	/**
+	 * Segment size after which new segment is started.
+	 */
+	private static final long SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * Base name of segments, eg. <I>calls.db.wal.</I>
+	 */
+	private String baseName;
+
+	/**
+	 * Directory of segments.
+	 */
+	private File directory;
+
+	/**
+	 * Buffer which collects new records.
+	 */
+	private byte[] active;
+
+	/**
+	 * Number of bytes in active buffer.
+	 */
+	private int activeLen;
+
+	/**
+	 * Buffer which is being written to disk.
+	 */
+	private byte[] flushing;
+
+	/**
+	 * Number of bytes in flushing buffer, not <I>0</I> while they are not
+	 * written yet, eg. write failed and is retried on next commit.
+	 */
+	private int flushingLen;
+
+	/**
+	 * Records were dropped since buffer was full, so log is not complete
+	 * until next snapshot.
+	 */
+	private boolean suspended;
+
+	/**
+	 * Lock for segment file, held while records are written.
+	 */
+	private final Object ioLock = new Object();
+
+	/**
+	 * Current segment number.
+	 */
+	private long segment;
+
+	/**
+	 * Current segment file.
+	 */
+	private RandomAccessFile segmentFile;
+
+	/**
+	 * Bytes written to log since last snapshot.
+	 */
+	private volatile long sinceSnapshot;
+
+	/**
+	 * <H1>Write-ahead log</H1><BR>
+	 * Open log next to given snapshot file. Writing starts in new segment,
+	 * after existing ones.
+	 * @param fileName snapshot file name, eg. <I>calls.db</I>
+	 * @throws IOException
+	 */
+	public WriteAheadLog(String fileName) throws IOException {
+		File file = new File(fileName).getAbsoluteFile();
+		directory = file.getParentFile();
+		baseName = file.getName() + ".wal.";
+
+		active = new byte[64 * 1024];
+		flushing = new byte[64 * 1024];
+		activeLen = 0;
+
+		long[] segments = listSegments();
+		segment = (segments.length > 0) ? segments[segments.length - 1] + 1 : 1;
+		segmentFile = openSegment(segment);
+		sinceSnapshot = 0;
+	}
+
+	/**
+	 * Get numbers of existing segments, in ascending order.
+	 * @return segment numbers
+	 */
+	private long[] listSegments() {
+		String[] names = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(baseName);
+			}
+		});
+		if (names == null) {
+			return new long[0];
+		}
+		long[] segments = new long[names.length];
+		int count = 0;
+		for (String name : names) {
+			try {
+				segments[count] = Long.parseLong(name.substring(baseName.length()));
+				count++;
+			} catch (NumberFormatException e) {
+				// Not a segment.
+			}
+		}
+		segments = Arrays.copyOf(segments, count);
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	/**
+	 * Open segment file for appending.
+	 * @param number segment number
+	 * @return open file
+	 * @throws IOException
+	 */
+	private RandomAccessFile openSegment(long number) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(new File(directory, baseName + number), "rw");
+		file.seek(file.length());
+		return file;
+	}
+
+	/**
+	 * Append stored or removed record to log. Record is written to disk
+	 * by group commit thread.
+	 * @param callID unique identifier of call record
+	 * @param callType call record, or <I>null</I> if record was removed
+	 */
+	public synchronized void append(String callID, CallType callType) {
+
+		byte[] callIDRaw = callID.getBytes();
+		if (suspended || callIDRaw.length > SyncFrame.MAX_CALLID_LEN) {
+			return;
+		}
+		byte[] callTypeRaw = (callType != null) ? callType.getBytes() : new byte[0];
+
+		/*
+		 * Op, both lengths and both parts of record.
+		 */
+		int recordLen = 3 + callIDRaw.length + callTypeRaw.length;
+		if (activeLen + recordLen > active.length) {
+			int newLen = active.length;
+			while (activeLen + recordLen > newLen && newLen < MAX_BUFFER_LEN) {
+				newLen = newLen * 2;
+			}
+			if (activeLen + recordLen > newLen) {
+				/*
+				 * Disk does not keep up, or is stuck. Stop logging,
+				 * next snapshot covers dropped records.
+				 */
+				suspended = true;
+				activeLen = 0;
+				LoadBalancer.log(Thread.currentThread().getName(),
+						"Write-ahead log buffer full, log suspended until next snapshot.");
+				return;
+			}
+			active = Arrays.copyOf(active, newLen);
+		}
+
+		active[activeLen++] = (byte) ((callType != null) ? 1 : 0);
+		active[activeLen++] = (byte) callIDRaw.length;
+		System.arraycopy(callIDRaw, 0, active, activeLen, callIDRaw.length);
+		activeLen = activeLen + callIDRaw.length;
+		active[activeLen++] = (byte) callTypeRaw.length;
+		System.arraycopy(callTypeRaw, 0, active, activeLen, callTypeRaw.length);
+		activeLen = activeLen + callTypeRaw.length;
+	}
+
+	@Override
+	public void run() {
+
+		while (true)
+			try {
+				Thread.sleep(LoadBalancer.walFlushInterval);
+
+				commit();
+
+			} catch (InterruptedException e) {
+				// Quit while loop.
+				break;
+			} catch (IOException e) {
+				// Print error on console.
+				e.printStackTrace();
+			}
+	}
+
+	/**
+	 * Write collected records to current segment and force them to disk.
+	 * Start new segment if current one is full.<BR>
+	 * Buffers are swapped under short lock, so <I>append()</I> does not wait
+	 * while records are written. If write fails, records stay in flushing
+	 * buffer and are written again on next commit.
+	 * @throws IOException
+	 */
+	void commit() throws IOException {
+
+		synchronized (ioLock) {
+
+			/*
+			 * Swap buffers, so that new records are collected while
+			 * these are written. Records of failed write go first.
+			 */
+			if (flushingLen == 0) {
+				synchronized (this) {
+					if (activeLen == 0) {
+						return;
+					}
+					byte[] buffer = active;
+					active = (flushing.length >= buffer.length) ? flushing : new byte[buffer.length];
+					flushing = buffer;
+					flushingLen = activeLen;
+					activeLen = 0;
+				}
+			}
+
+			FileChannel channel = segmentFile.getChannel();
+			long start = channel.size();
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(flushing, 0, flushingLen);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(false);
+			} catch (IOException e) {
+				/*
+				 * Drop partly written records, whole buffer is written
+				 * again.
+				 */
+				try {
+					channel.truncate(start);
+					segmentFile.seek(start);
+				} catch (IOException e1) {
+					// Segment end is checked by replay.
+				}
+				throw e;
+			}
+			sinceSnapshot = sinceSnapshot + flushingLen;
+			flushingLen = 0;
+
+			if (channel.size() > SEGMENT_SIZE) {
+				rotate();
+			}
+		}
+	}
+
+	/**
+	 * Close current segment and start new one.
+	 * @return number of new segment
+	 * @throws IOException
+	 */
+	private long rotate() throws IOException {
+		synchronized (ioLock) {
+			segmentFile.close();
+			segment++;
+			segmentFile = openSegment(segment);
+			return segment;
+		}
+	}
+
+	/**
+	 * Mark start of snapshot. Records collected so far are committed,
+	 * and new segment is started. Snapshot which is written after this
+	 * call contains all records of older segments.
+	 * @return number of first segment not covered by snapshot
+	 * @throws IOException
+	 */
+	long beginSnapshot() throws IOException {
+		synchronized (ioLock) {
+			commit();
+			sinceSnapshot = 0;
+			/*
+			 * Snapshot is written after this point, so it covers
+			 * records dropped while log was suspended.
+			 */
+			synchronized (this) {
+				suspended = false;
+			}
+			return rotate();
+		}
+	}
+
+	/**
+	 * Check if log dropped records, and waits for next snapshot.
+	 * @return <I>true</I> if log is suspended
+	 */
+	public synchronized boolean isSuspended() {
+		return suspended;
+	}
+
+	/**
+	 * Delete segments which are covered by snapshot.
+	 * @param firstSegment number returned by <I>beginSnapshot()</I>
+	 */
+	void compact(long firstSegment) {
+		for (long number : listSegments()) {
+			if (number < firstSegment) {
+				new File(directory, baseName + number).delete();
+			}
+		}
+	}
+
+	/**
+	 * Get number of bytes written since last snapshot.
+	 * @return log size since last snapshot
+	 */
+	public long getSinceSnapshot() {
+		return sinceSnapshot;
+	}
+
+	/**
+	 * Replay all segments in order and apply them to call table.
+	 * Partly written record at the end of segment is ignored.
+	 * @return number of replayed records
+	 * @throws IOException
+	 */
+	public int replay() throws IOException {
+		int count = 0;
+		for (long number : listSegments()) {
+			File file = new File(directory, baseName + number);
+			if (file.length() == 0) {
+				continue;
+			}
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				while (map.hasRemaining()) {
+					boolean store = (map.get() == 1);
+					if (!readRecord(map, store)) {
+						break;
+					}
+					count++;
+				}
+			} finally {
+				raf.close();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Read one record and apply it to call table.
+	 * @param map mapped file
+	 * @param store <I>true</I> to store record, <I>false</I> to remove it
+	 * @return <I>false</I> if record is incomplete or invalid
+	 */
+	static boolean readRecord(ByteBuffer map, boolean store) {
+
+		if (map.remaining() < 2) {
+			return false;
+		}
+		int callIDLen = map.get() & 0xFF;
+		if (map.remaining() < callIDLen + 1) {
+			return false;
+		}
+		byte[] callIDRaw = new byte[callIDLen];
+		map.get(callIDRaw);
+		String callID = new String(callIDRaw);
+
+		int callTypeLen = map.get() & 0xFF;
+		if (map.remaining() < callTypeLen) {
+			return false;
+		}
+		byte[] callTypeRaw = new byte[callTypeLen];
+		map.get(callTypeRaw);
+
+		if (store) {
+			try {
+				LoadBalancer.putCallRecord(callID, new CallType(callTypeRaw));
+			} catch (UnknownHostException e) {
+				return false;
+			} catch (IndexOutOfBoundsException e) {
+				return false;
+			}
+		}
+		else {
+			LoadBalancer.removeCallRecord(callID);
+		}
+		return true;
+	}
+
+}
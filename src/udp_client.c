@@ -7,14 +7,54 @@
 #include<string.h> //memset
 #include<stdlib.h> //exit(0);
 #include<time.h> //sleep
+#include<unistd.h> //sysconf
+#include<stdint.h>
 #include<arpa/inet.h>
 #include<sys/socket.h>
 
 #define SERVER "127.0.0.1"
-#define BUFLEN 512  //Max length of buffer
 #define PORT 5556   //The port on which to send data
 #define COUNT 10   //How many packets to send
 
+#define HEARTBEAT_LEN 12     //Length of binary heartbeat
+#define HEARTBEAT_VERSION 1  //Version of heartbeat format
+
+/*
+    Binary heartbeat, all values in network byte order:
+    'W' 'D' version reserved | cpu load (u16, 1/100 %) | active calls (u32) | capacity (u16)
+*/
+void build_heartbeat(unsigned char *buf, uint16_t cpu_load, uint32_t calls, uint16_t capacity)
+{
+    buf[0] = 'W';
+    buf[1] = 'D';
+    buf[2] = HEARTBEAT_VERSION;
+    buf[3] = 0;
+    buf[4] = cpu_load >> 8;
+    buf[5] = cpu_load & 0xFF;
+    buf[6] = (calls >> 24) & 0xFF;
+    buf[7] = (calls >> 16) & 0xFF;
+    buf[8] = (calls >> 8) & 0xFF;
+    buf[9] = calls & 0xFF;
+    buf[10] = capacity >> 8;
+    buf[11] = capacity & 0xFF;
+}
+
+/*
+    Cpu load in 1/100 of percent, from 1 min. load average per cpu core.
+*/
+uint16_t cpu_load()
+{
+    double load;
+    long cores = sysconf(_SC_NPROCESSORS_ONLN);
+
+    if (getloadavg(&load, 1) != 1 || cores < 1)
+    {
+        return 0;
+    }
+    load = load * 10000 / cores;
+    return (load > 10000) ? 10000 : (uint16_t) load;
+}
+
 void die(char *s)
 {
     perror(s);
@@ -25,12 +65,13 @@ int main(int argc, char* argv[])
 {
     struct sockaddr_in si_other;
     int s, i, slen=sizeof(si_other);
-    char buf[BUFLEN];
-    char message[BUFLEN] = "test123\n";
+    unsigned char message[HEARTBEAT_LEN];
 
     char* server = SERVER;
     int port = PORT;
     int count = COUNT;
+    uint32_t calls = 0;
+    uint16_t capacity = 0;
 
     if ( (s=socket(AF_INET, SOCK_DGRAM, IPPROTO_UDP)) == -1)
     {
@@ -39,7 +80,7 @@ int main(int argc, char* argv[])
 
     if ( (argc) == 1)
     {
-	    die("Usage:\n udp_client -s {ip_address} -p {udp_port} [-c {packets}]\n");
+	    die("Usage:\n udp_client -s {ip_address} -p {udp_port} [-c {packets}] [-a {active_calls}] [-m {capacity}]\n");
     }
     else
     {
@@ -57,6 +98,14 @@ int main(int argc, char* argv[])
 	    {
 		count = atol(argv[++i]);
 	    }
+	    else if (strcmp(argv[i], "-a") == 0)
+	    {
+		calls = atol(argv[++i]);
+	    }
+	    else if (strcmp(argv[i], "-m") == 0)
+	    {
+		capacity = atol(argv[++i]);
+	    }
 	    else
 	    {
 		printf("Invalid: %s\n", argv[i]);
@@ -80,13 +129,12 @@ int main(int argc, char* argv[])
 
     int counter;
     for (counter = 0; counter < count; counter++) {
-        //send the message
-        if (sendto(s, message, strlen(message) , 0 , (struct sockaddr *) &si_other, slen)==-1)
+        //send the heartbeat with current load
+        build_heartbeat(message, cpu_load(), calls, capacity);
+        if (sendto(s, message, HEARTBEAT_LEN, 0 , (struct sockaddr *) &si_other, slen)==-1)
         {
             die("sendto()");
         }
-
-        memset(buf,'\0', BUFLEN);
 	
 	float percent = (counter * 100) / count;
 	printf("%.2f \%\n", percent);